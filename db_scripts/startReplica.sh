@@ -0,0 +1,18 @@
+#! /bin/bash
+# Starts a hot standby of the database on port PGPORT + 1 that streams the
+# primary's WAL. Run after startPostgreSQL.sh, and start Retail with
+# -Dretail.replica.port=$REPLICA_PGPORT to send the reports there.
+folder=/tmp/$USER
+export REPLICA_PGDATA=$folder/myDB/replica
+export REPLICA_PGPORT=$((PGPORT + 1))
+
+#Clear folder
+rm -rf $REPLICA_PGDATA
+
+#Copy the primary and write the standby settings (-R)
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_PGDATA -R -X stream
+chmod 700 $REPLICA_PGDATA
+
+sleep 1
+#Start folder
+pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $REPLICA_PGPORT -c hot_standby=on" -D $REPLICA_PGDATA -l $folder/replica.log start
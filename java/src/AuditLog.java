@@ -0,0 +1,558 @@
+/*
+ * Retail Audit Log
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class writes the ProductUpdates audit rows behind the product
+ * updates instead of in a commit of their own. Before an update commits,
+ * begin reserves room in a bounded queue and spools the row as an intent,
+ * with the ID of the update's transaction. Once the update has committed,
+ * commit spools the row again with a sequence number and queues it; when
+ * the update fails, abort marks the intent aborted. A background writer
+ * inserts the queued rows in batches, one transaction per batch, when the
+ * batch is full or the oldest row has waited long enough. When the queue
+ * stays full, begin gives up after a short wait, so an update holding a
+ * connection and a row lock never waits on the writer, which needs a
+ * connection too; the caller then inserts the row in its own transaction.
+ *
+ * Each batch records the highest sequence number it inserted in
+ * AuditSpool in the same transaction. A spool left behind by a crash is
+ * replayed at startup from the row after that number, together with the
+ * intents that never got a sequence number but whose transaction
+ * committed, so no audit row is lost or inserted twice. The spool is
+ * emptied whenever the writer has caught up and no update is between
+ * begin and commit.
+ *
+ */
+public class AuditLog {
+
+   static final String INSERT_UPDATE = "INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES (?, ?, ?, ?);";
+   static final String SAVE_POSITION =
+      "INSERT INTO AuditSpool (spoolID, flushedThrough) VALUES (?, ?) " +
+      "ON CONFLICT (spoolID) DO UPDATE SET flushedThrough = EXCLUDED.flushedThrough;";
+   static final String FLUSHED_THROUGH = "SELECT flushedThrough FROM AuditSpool WHERE spoolID = ?;";
+   static final String FORGET_SPOOL = "DELETE FROM AuditSpool WHERE spoolID = ?;";
+   static final String TRANSACTION_STATUS = "SELECT txid_status(?);";
+
+   private static final String HEADER = "spool ";
+   // spool lines that start with these are intents and aborted intents; the others are committed rows
+   private static final char INTENT = '?';
+   private static final char ABORTED = '-';
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /**
+    * One audit row; an intent has no sequence number yet
+    */
+   static class Event {
+      final long seq;
+      final long txid;
+      final int managerID;
+      final int storeID;
+      final String productName;
+      final Timestamp updatedOn;
+
+      Event(long seq, long txid, int managerID, int storeID, String productName, Timestamp updatedOn) {
+         this.seq = seq;
+         this.txid = txid;
+         this.managerID = managerID;
+         this.storeID = storeID;
+         this.productName = productName.trim();
+         this.updatedOn = updatedOn;
+      }
+
+      Event numbered(long seq) {
+         return new Event(seq, this.txid, this.managerID, this.storeID, this.productName, this.updatedOn);
+      }
+
+      String toLine() {
+         return this.seq + "," + this.txid + "," + this.managerID + "," + this.storeID + "," + this.updatedOn.getTime() + "," + this.productName;
+      }
+
+      static Event parse(String line) {
+         String[] fields = line.split(",", 6);
+         return new Event(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+            Integer.parseInt(fields[3]), fields[5], new Timestamp(Long.parseLong(fields[4])));
+      }
+   }//end Event
+
+   private final ConnectionPool _pool;
+   private final File _file;
+   private final int _batchSize;
+   private final long _flushMillis;
+   private final boolean _sync;
+   private final BlockingQueue<Event> _queue = new LinkedBlockingQueue<Event>();
+   // room in the queue; begin takes a permit and the writer gives it back
+   private final Semaphore _room;
+   private Thread _thread = null;
+
+   // guards the sequence, the spool, the open intents and the order rows enter the queue in
+   private final ReentrantLock _appendLock = new ReentrantLock();
+   private final String _spoolID = UUID.randomUUID().toString();
+   private FileOutputStream _spoolFile;
+   private Writer _spool;
+   private long _nextSeq = 1;
+   private int _open = 0;
+
+   // highest sequence number committed, guarded by this
+   private long _flushed = 0;
+   private boolean _flushRequested = false;
+
+   private final AtomicLong _events = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _failures = new AtomicLong();
+   private final AtomicLong _full = new AtomicLong();
+   private final LatencyHistogram _flushes = new LatencyHistogram();
+
+   /**
+    * Replays a spool left behind by an earlier run and starts a new one
+    *
+    * @param pool the pool the rows are inserted through
+    * @param file the spool file
+    * @param capacity the number of rows the queue holds
+    * @param batchSize the largest number of rows inserted in one transaction
+    * @param flushMillis the longest a row waits before its batch is inserted, and an update for room in the queue
+    * @param sync whether every append is forced to disk, not only handed to the operating system
+    * @throws java.io.IOException when the spool cannot be read or written
+    * @throws java.sql.SQLException when the rows of the old spool cannot be inserted
+    */
+   public AuditLog(ConnectionPool pool, File file, int capacity, int batchSize, long flushMillis, boolean sync) throws IOException, SQLException {
+      this._pool = pool;
+      this._file = file;
+      this._batchSize = Math.max(1, batchSize);
+      this._flushMillis = flushMillis;
+      this._sync = sync;
+      this._room = new Semaphore(Math.max(1, capacity));
+      // appends never move back over the rows, even after the spool is emptied
+      this._spoolFile = new FileOutputStream(file, true);
+      if (this._spoolFile.getChannel().tryLock() == null) {
+         this._spoolFile.close();
+         throw new IOException(file + " is in use by another instance; give this one its own with -Dretail.audit.spool");
+      }//end if
+      this._spool = new OutputStreamWriter(this._spoolFile, UTF8);
+      recover();
+      this._spoolFile.getChannel().truncate(0);
+      this._spool.write(HEADER + this._spoolID + "\n");
+      this._spool.flush();
+      this._spoolFile.getFD().sync();
+   }//end AuditLog
+
+   /**
+    * Spools the audit row of an update that has not committed yet. Once
+    * the update's transaction ends, the intent must be passed to commit or
+    * abort.
+    *
+    * @param managerID the user who made the update
+    * @param storeID the store of the product
+    * @param productName the product updated
+    * @param txid the ID of the update's transaction, as txid_current() returns it
+    * @return the intent, or null when the queue stayed full; the row is then the caller's to insert
+    * @throws java.io.IOException when the row cannot be spooled
+    */
+   public Event begin(int managerID, int storeID, String productName, long txid) throws IOException {
+      try{
+         if (!this._room.tryAcquire(Math.max(1, this._flushMillis), TimeUnit.MILLISECONDS)) {
+            this._full.incrementAndGet();
+            return null;
+         }//end if
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         return null;
+      }//end try
+      // ProductUpdates keeps whole seconds, as DATE_TRUNC did when the row was inserted directly
+      Event intent = new Event(0, txid, managerID, storeID, productName, new Timestamp(System.currentTimeMillis() / 1000 * 1000));
+      this._appendLock.lock();
+      try{
+         write(INTENT + intent.toLine());
+         ++this._open;
+      }catch (IOException e){
+         this._room.release();
+         throw e;
+      }finally{
+         this._appendLock.unlock();
+      }//end try
+      return intent;
+   }//end begin
+
+   /**
+    * Queues the row of an intent whose update committed; it reaches
+    * ProductUpdates with a later batch
+    *
+    * @param intent the intent begin returned
+    */
+   public void commit(Event intent) {
+      this._appendLock.lock();
+      try{
+         Event event = intent.numbered(this._nextSeq++);
+         try{
+            write(event.toLine());
+         }catch (IOException e){
+            // the row is still inserted; only a crash before then loses it
+            System.err.println(e.getMessage());
+         }//end try
+         // the room was taken by begin
+         this._queue.add(event);
+         --this._open;
+      }finally{
+         this._appendLock.unlock();
+      }//end try
+      this._events.incrementAndGet();
+   }//end commit
+
+   /**
+    * Drops the row of an intent whose update did not commit
+    *
+    * @param intent the intent begin returned
+    */
+   public void abort(Event intent) {
+      this._appendLock.lock();
+      try{
+         write(ABORTED + Long.toString(intent.txid));
+      }catch (IOException e){
+         // at startup the transaction's status tells the intent is aborted
+         System.err.println(e.getMessage());
+      }finally{
+         --this._open;
+         this._appendLock.unlock();
+      }//end try
+      this._room.release();
+   }//end abort
+
+   // appends a line to the spool; the caller holds the append lock
+   private void write(String line) throws IOException {
+      this._spool.write(line);
+      this._spool.write('\n');
+      this._spool.flush();
+      if (this._sync)
+         this._spoolFile.getFD().sync();
+   }//end write
+
+   /**
+    * Waits until every row appended so far is in ProductUpdates
+    *
+    * @throws java.sql.SQLException when the writer does not catch up in time
+    */
+   public void flush() throws SQLException {
+      long target;
+      this._appendLock.lock();
+      try{
+         target = this._nextSeq - 1;
+      }finally{
+         this._appendLock.unlock();
+      }//end try
+      long deadline = System.currentTimeMillis() + Math.max(10000L, 10 * this._flushMillis);
+      synchronized (this) {
+         this._flushRequested = true;
+         notifyAll();
+         while (this._flushed < target) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0 || this._thread == null)
+               throw new SQLException("Timed out waiting for the audit rows to be written");
+            try{
+               wait(wait);
+            }catch (InterruptedException e){
+               Thread.currentThread().interrupt();
+               throw new SQLException("Interrupted waiting for the audit rows to be written");
+            }//end try
+         }//end while
+      }
+   }//end flush
+
+   /**
+    * Starts the background writer
+    */
+   public synchronized void start() {
+      if (this._thread != null)
+         return;
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            Metrics.begin("auditFlush");
+            writeLoop();
+         }
+      }, "audit-writer");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end start
+
+   /**
+    * Inserts the queued rows and stops the writer. Rows that cannot be
+    * inserted stay in the spool for the next start.
+    */
+   public void close() {
+      Thread thread;
+      synchronized (this) {
+         thread = this._thread;
+      }
+      if (thread == null)
+         return;
+      try{
+         flush();
+      }catch (SQLException e){
+         System.err.println(e.getMessage());
+      }//end try
+      thread.interrupt();
+      try{
+         thread.join(1000);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+      this._appendLock.lock();
+      try{
+         this._spool.close();
+      }catch (IOException e){
+         System.err.println(e.getMessage());
+      }finally{
+         this._appendLock.unlock();
+      }//end try
+   }//end close
+
+   // runs on the writer thread
+   private void writeLoop() {
+      List<Event> batch = new ArrayList<Event>(this._batchSize);
+      while (!Thread.currentThread().isInterrupted()) {
+         try{
+            if (batch.isEmpty()) {
+               Event first = this._queue.poll(this._flushMillis, TimeUnit.MILLISECONDS);
+               if (first == null)
+                  continue;
+               batch.add(first);
+               this._room.release();
+               // the first row waits at most flushMillis for the batch to fill up
+               long deadline = System.currentTimeMillis() + this._flushMillis;
+               while (batch.size() < this._batchSize && !flushRequested()) {
+                  this._room.release(this._queue.drainTo(batch, this._batchSize - batch.size()));
+                  long wait = deadline - System.currentTimeMillis();
+                  if (batch.size() == this._batchSize || wait <= 0)
+                     break;
+                  Event next = this._queue.poll(Math.min(wait, 5), TimeUnit.MILLISECONDS);
+                  if (next != null) {
+                     batch.add(next);
+                     this._room.release();
+                  }//end if
+               }//end while
+               this._room.release(this._queue.drainTo(batch, this._batchSize - batch.size()));
+            }//end if
+            insert(batch);
+            batch.clear();
+            truncateIfCaughtUp();
+         }catch (InterruptedException e){
+            return;
+         }catch (SQLException e){
+            // the batch is kept and tried again
+            this._failures.incrementAndGet();
+            System.err.println("audit log: " + e.getMessage());
+            try{
+               Thread.sleep(Math.max(100, this._flushMillis));
+            }catch (InterruptedException ie){
+               return;
+            }//end try
+         }catch (IOException e){
+            System.err.println("audit log: " + e.getMessage());
+         }//end try
+      }//end while
+   }//end writeLoop
+
+   private synchronized boolean flushRequested() {
+      boolean requested = this._flushRequested;
+      this._flushRequested = false;
+      return requested;
+   }//end flushRequested
+
+   // inserts a batch and records its last sequence number in the same transaction
+   private void insert(List<Event> batch) throws SQLException {
+      long start = System.nanoTime();
+      long last = batch.get(batch.size() - 1).seq;
+      insert(this._pool, this._spoolID, batch, last);
+      this._flushes.record(System.nanoTime() - start);
+      this._batches.incrementAndGet();
+      Metrics.record(start, 3);
+      synchronized (this) {
+         this._flushed = last;
+         notifyAll();
+      }
+   }//end insert
+
+   private static void insert(ConnectionPool pool, String spoolID, List<Event> batch, long last) throws SQLException {
+      ConnectionPool.PooledConnection pc = pool.borrow();
+      try{
+         Connection conn = pc.getConnection();
+         conn.setAutoCommit(false);
+         // batches are built on statements of their own, so a failed one leaves nothing in the statement cache
+         PreparedStatement insert = conn.prepareStatement(INSERT_UPDATE);
+         for (Event event : batch) {
+            insert.setInt(1, event.managerID);
+            insert.setInt(2, event.storeID);
+            insert.setString(3, event.productName);
+            insert.setTimestamp(4, event.updatedOn);
+            insert.addBatch();
+         }//end for
+         insert.executeBatch();
+         insert.close();
+         PreparedStatement position = conn.prepareStatement(SAVE_POSITION);
+         position.setString(1, spoolID);
+         position.setLong(2, last);
+         position.execute();
+         position.close();
+         conn.commit();
+      }finally{
+         // rolls back the transaction unless it was committed
+         pool.release(pc);
+      }//end try
+   }//end insert
+
+   // empties the spool when every row in it is committed and no intent is open
+   private void truncateIfCaughtUp() throws IOException {
+      if (!this._queue.isEmpty() || !this._appendLock.tryLock())
+         return;
+      try{
+         long flushed;
+         synchronized (this) {
+            flushed = this._flushed;
+         }
+         if (flushed != this._nextSeq - 1 || this._open > 0)
+            return;
+         this._spoolFile.getChannel().truncate(0);
+         this._spool.write(HEADER + this._spoolID + "\n");
+         this._spool.flush();
+      }finally{
+         this._appendLock.unlock();
+      }//end try
+   }//end truncateIfCaughtUp
+
+   // inserts the rows of an old spool that its run did not commit
+   private void recover() throws IOException, SQLException {
+      BufferedReader in = new BufferedReader(new FileReader(this._file));
+      String spoolID = null;
+      List<Event> events = new ArrayList<Event>();
+      Map<Long, Event> intents = new LinkedHashMap<Long, Event>();
+      Set<Long> ended = new HashSet<Long>();
+      try{
+         String header = in.readLine();
+         if (header == null || !header.startsWith(HEADER))
+            return;
+         spoolID = header.substring(HEADER.length()).trim();
+         String line;
+         while ((line = in.readLine()) != null) {
+            try{
+               if (line.charAt(0) == INTENT) {
+                  Event intent = Event.parse(line.substring(1));
+                  intents.put(intent.txid, intent);
+               }else if (line.charAt(0) == ABORTED) {
+                  ended.add(Long.parseLong(line.substring(1)));
+               }else {
+                  Event event = Event.parse(line);
+                  events.add(event);
+                  ended.add(event.txid);
+               }//end if
+            }catch (RuntimeException e){
+               // a line cut short by the crash; nothing after it was queued
+               break;
+            }//end try
+         }//end while
+      }finally{
+         in.close();
+      }//end try
+      // intents whose update committed before the crash but never got a row; numbered after
+      // the last row, so a recovery that is cut short numbers them the same way the next time
+      long seq = events.isEmpty() ? 0 : events.get(events.size() - 1).seq;
+      for (Event intent : intents.values())
+         if (!ended.contains(intent.txid) && committed(intent.txid))
+            events.add(intent.numbered(++seq));
+
+      long flushed = 0;
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      try{
+         PreparedStatement stmt = pc.getConnection().prepareStatement(FLUSHED_THROUGH);
+         stmt.setString(1, spoolID);
+         ResultSet rs = stmt.executeQuery();
+         if (rs.next())
+            flushed = rs.getLong(1);
+         rs.close();
+         stmt.close();
+      }finally{
+         this._pool.release(pc);
+      }//end try
+      List<Event> lost = new ArrayList<Event>();
+      for (Event event : events)
+         if (event.seq > flushed)
+            lost.add(event);
+      for (int i = 0; i < lost.size(); i += this._batchSize) {
+         List<Event> batch = lost.subList(i, Math.min(lost.size(), i + this._batchSize));
+         insert(this._pool, spoolID, batch, batch.get(batch.size() - 1).seq);
+      }//end for
+      if (!lost.isEmpty())
+         System.out.println("Recovered " + lost.size() + " audit rows from " + this._file);
+
+      pc = this._pool.borrow();
+      try{
+         PreparedStatement stmt = pc.getConnection().prepareStatement(FORGET_SPOOL);
+         stmt.setString(1, spoolID);
+         stmt.execute();
+         stmt.close();
+      }finally{
+         this._pool.release(pc);
+      }//end try
+   }//end recover
+
+   // whether a transaction of an earlier run committed
+   private boolean committed(long txid) throws SQLException {
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      try{
+         PreparedStatement stmt = pc.getConnection().prepareStatement(TRANSACTION_STATUS);
+         stmt.setLong(1, txid);
+         ResultSet rs = stmt.executeQuery();
+         String status = rs.next() ? rs.getString(1) : null;
+         rs.close();
+         stmt.close();
+         return "committed".equals(status);
+      }finally{
+         this._pool.release(pc);
+      }//end try
+   }//end committed
+
+   /**
+    * @return the rows written and how long their batches took
+    */
+   public String report() {
+      return String.format("audit log: %d rows in %d batches (mean %.2f ms, p99 %.2f ms), %d rows queued, %d failed batches, " +
+         "%d rows inserted by their update while the queue was full",
+         this._events.get(), this._batches.get(), this._flushes.getMean() / 1e6, this._flushes.getQuantile(0.99) / 1e6,
+         this._queue.size(), this._failures.get(), this._full.get());
+   }//end report
+
+}//end AuditLog
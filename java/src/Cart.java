@@ -0,0 +1,101 @@
+/*
+ * Retail Shopping Cart
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class collects the lines of a customer's basket, each a product of
+ * a store and a number of units, so they can be ordered together. The
+ * lines are placed by Retail.submitCart in one statement: every line
+ * becomes an order, or none does.
+ *
+ */
+public class Cart {
+
+   // lines of one cart; each line binds three values of one statement
+   public static final int MAX_LINES = 100;
+
+   // column names of the rows returned by getRows
+   static final String[] COLUMNS = {"storeid", "productname", "units"};
+
+   /**
+    * One product of the cart
+    */
+   public static class Line {
+      public final int storeID;
+      public final String productName;
+      public final int units;
+
+      public Line(int storeID, String productName, int units) {
+         this.storeID = storeID;
+         this.productName = productName.trim();
+         this.units = units;
+      }
+   }//end Line
+
+   private final List<Line> _lines = new ArrayList<Line>();
+
+   /**
+    * Adds a line; units of a product already in the cart are added to its line
+    *
+    * @param storeID the store the product is ordered from
+    * @param productName the product ordered
+    * @param units the number of units ordered, more than 0
+    */
+   public void add(int storeID, String productName, int units) {
+      if (units <= 0)
+         throw new IllegalArgumentException("Number of units must be positive!");
+      for (int i = 0; i < this._lines.size(); ++i) {
+         Line line = this._lines.get(i);
+         if (line.storeID == storeID && line.productName.equals(productName.trim())) {
+            this._lines.set(i, new Line(storeID, productName, line.units + units));
+            return;
+         }//end if
+      }//end for
+      if (this._lines.size() == MAX_LINES)
+         throw new IllegalStateException("A cart holds at most " + MAX_LINES + " products");
+      this._lines.add(new Line(storeID, productName, units));
+   }//end add
+
+   /**
+    * @return the lines, in the order they were added
+    */
+   public List<Line> getLines() {
+      return Collections.unmodifiableList(this._lines);
+   }
+
+   /**
+    * @return whether the cart has no lines
+    */
+   public boolean isEmpty() {
+      return this._lines.isEmpty();
+   }
+
+   /**
+    * @return storeID, productName and units rows for printResult
+    */
+   public List<List<String>> getRows() {
+      List<List<String>> rows = new ArrayList<List<String>>(this._lines.size());
+      for (Line line : this._lines) {
+         List<String> row = new ArrayList<String>(3);
+         row.add(String.valueOf(line.storeID));
+         row.add(line.productName);
+         row.add(String.valueOf(line.units));
+         rows.add(row);
+      }//end for
+      return rows;
+   }//end getRows
+
+}//end Cart
@@ -0,0 +1,363 @@
+/*
+ * Connection Pool
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class hands out physical connections to sessions for the length of
+ * one operation. It keeps between a minimum and maximum number of
+ * connections open, validates connections that sat idle for a while and
+ * closes idle connections above the minimum in a background thread.
+ *
+ */
+public class ConnectionPool {
+
+   // query used to check that an idle connection is still usable
+   private static final String VALIDATION_QUERY = "SELECT 1";
+
+   /**
+    * A physical connection together with its own statement cache
+    */
+   public static class PooledConnection {
+      private final Connection _connection;
+      private final StatementCache _statements;
+      private final int _backendPID;
+      private long _lastUsed;
+
+      PooledConnection(Connection connection, int cacheSize, int backendPID) {
+         this._connection = connection;
+         this._statements = new StatementCache(connection, cacheSize);
+         this._backendPID = backendPID;
+         this._lastUsed = System.currentTimeMillis();
+      }
+
+      public Connection getConnection() {
+         return this._connection;
+      }
+
+      public StatementCache getStatements() {
+         return this._statements;
+      }
+
+      void close() {
+         this._statements.clear();
+         try{
+            this._connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end close
+   }//end PooledConnection
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _idleTimeout;
+   private final long _validateAfter;
+   private final long _maxWait;
+   private final int _cacheSize;
+
+   // idle connections, most recently returned first
+   private final LinkedList<PooledConnection> _idle = new LinkedList<PooledConnection>();
+
+   // every open connection, idle or borrowed
+   private final List<PooledConnection> _all = new ArrayList<PooledConnection>();
+
+   private boolean _closed = false;
+   private Thread _evictor = null;
+
+   /**
+    * Creates a new pool and opens the minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open at all times
+    * @param maxSize the largest number of connections ever open at once
+    * @param idleTimeout milliseconds an idle connection above the minimum is kept
+    * @param validateAfter milliseconds of idleness after which a connection is checked before use
+    * @param maxWait milliseconds a borrower waits for a free connection
+    * @param cacheSize the number of prepared statements cached per connection
+    * @throws java.sql.SQLException when the initial connections cannot be made
+    */
+   public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+                         long idleTimeout, long validateAfter, long maxWait, int cacheSize) throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = Math.max(0, minSize);
+      this._maxSize = Math.max(Math.max(1, minSize), maxSize);
+      this._idleTimeout = idleTimeout;
+      this._validateAfter = validateAfter;
+      this._maxWait = maxWait;
+      this._cacheSize = cacheSize;
+
+      synchronized (this) {
+         for (int i = 0; i < this._minSize; ++i)
+            this._idle.add(open());
+      }
+      if (idleTimeout > 0) {
+         this._evictor = new Thread(new Runnable() {
+            public void run() {
+               evictLoop();
+            }
+         }, "connection-pool-evictor");
+         this._evictor.setDaemon(true);
+         this._evictor.start();
+      }//end if
+   }//end ConnectionPool
+
+   /**
+    * Takes a connection from the pool, opening a new one if none is idle and
+    * the pool is below its maximum size. Blocks up to the configured wait.
+    *
+    * @return a validated connection that must be given back with release
+    * @throws java.sql.SQLException when no connection becomes available
+    */
+   public PooledConnection borrow() throws SQLException {
+      long deadline = System.currentTimeMillis() + this._maxWait;
+      while (true) {
+         PooledConnection pc = null;
+         boolean create = false;
+         synchronized (this) {
+            while (pc == null && !create) {
+               if (this._closed)
+                  throw new SQLException("Connection pool is closed");
+               if (!this._idle.isEmpty()) {
+                  pc = this._idle.removeFirst();
+               }else if (this._all.size() < this._maxSize) {
+                  // reserve the slot before connecting outside the lock
+                  this._all.add(null);
+                  create = true;
+               }else {
+                  long wait = deadline - System.currentTimeMillis();
+                  if (wait <= 0)
+                     throw new SQLException("Timed out waiting for a database connection");
+                  try{
+                     wait(wait);
+                  }catch (InterruptedException e){
+                     Thread.currentThread().interrupt();
+                     throw new SQLException("Interrupted waiting for a database connection");
+                  }//end try
+               }
+            }//end while
+         }
+         if (create) {
+            try{
+               PooledConnection opened = connect();
+               synchronized (this) {
+                  this._all.set(this._all.indexOf(null), opened);
+               }
+               return opened;
+            }catch (SQLException e){
+               synchronized (this) {
+                  this._all.remove(null);
+                  notifyAll();
+               }
+               throw e;
+            }//end try
+         }//end if
+         if (System.currentTimeMillis() - pc._lastUsed < this._validateAfter || isValid(pc))
+            return pc;
+         discard(pc);
+      }//end while
+   }//end borrow
+
+   /**
+    * Gives a borrowed connection back to the pool.
+    *
+    * @param pc the connection returned by borrow
+    */
+   public void release(PooledConnection pc) {
+      if (pc == null)
+         return;
+      boolean usable;
+      try{
+         usable = !pc._connection.isClosed();
+         if (usable && !pc._connection.getAutoCommit()) {
+            // never hand an open transaction to the next borrower
+            pc._connection.rollback();
+            pc._connection.setAutoCommit(true);
+         }//end if
+      }catch (SQLException e){
+         usable = false;
+      }//end try
+      if (!usable) {
+         discard(pc);
+         return;
+      }//end if
+      synchronized (this) {
+         pc._lastUsed = System.currentTimeMillis();
+         if (this._closed) {
+            this._all.remove(pc);
+            pc.close();
+         }else {
+            this._idle.addFirst(pc);
+         }
+         notifyAll();
+      }
+   }//end release
+
+   /**
+    * Removes a connection that failed from the pool and closes it.
+    *
+    * @param pc the broken connection
+    */
+   public void discard(PooledConnection pc) {
+      synchronized (this) {
+         this._all.remove(pc);
+         this._idle.remove(pc);
+         notifyAll();
+      }
+      pc.close();
+   }//end discard
+
+   /**
+    * @return the total number of statements found in the connections' caches
+    */
+   public synchronized long getStatementCacheHits() {
+      long hits = 0;
+      for (PooledConnection pc : this._all)
+         if (pc != null)
+            hits += pc._statements.getHits();
+      return hits;
+   }
+
+   /**
+    * @return the total number of statements the connections had to prepare
+    */
+   public synchronized long getStatementCacheMisses() {
+      long misses = 0;
+      for (PooledConnection pc : this._all)
+         if (pc != null)
+            misses += pc._statements.getMisses();
+      return misses;
+   }
+
+   /**
+    * @param pid a backend process ID, e.g. of a notification
+    * @return whether one of this pool's connections is served by that backend
+    */
+   public synchronized boolean isOwnBackend(int pid) {
+      for (PooledConnection pc : this._all)
+         if (pc != null && pc._backendPID == pid)
+            return true;
+      return false;
+   }//end isOwnBackend
+
+   /**
+    * @param pc a borrowed connection
+    * @return whether the connection belongs to this pool
+    */
+   public synchronized boolean owns(PooledConnection pc) {
+      return this._all.contains(pc);
+   }//end owns
+
+   public synchronized int getOpenCount() {
+      return this._all.size();
+   }
+
+   public synchronized int getIdleCount() {
+      return this._idle.size();
+   }
+
+   public int getMaxSize() {
+      return this._maxSize;
+   }
+
+   /**
+    * Closes the idle connections now and borrowed connections as they are
+    * returned.
+    */
+   public void close() {
+      List<PooledConnection> idle;
+      synchronized (this) {
+         this._closed = true;
+         idle = new ArrayList<PooledConnection>(this._idle);
+         this._all.removeAll(idle);
+         this._idle.clear();
+         notifyAll();
+      }
+      for (PooledConnection pc : idle)
+         pc.close();
+      if (this._evictor != null)
+         this._evictor.interrupt();
+   }//end close
+
+   private PooledConnection open() throws SQLException {
+      PooledConnection pc = connect();
+      this._all.add(pc);
+      return pc;
+   }//end open
+
+   private PooledConnection connect() throws SQLException {
+      Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      // the process ID tells this pool's own notifications from other clients'
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery("SELECT pg_backend_pid()");
+      int pid = rs.next() ? rs.getInt(1) : 0;
+      rs.close();
+      stmt.close();
+      return new PooledConnection(conn, this._cacheSize, pid);
+   }//end connect
+
+   private boolean isValid(PooledConnection pc) {
+      try{
+         ResultSet rs = pc._statements.prepare(VALIDATION_QUERY).executeQuery();
+         rs.close();
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end isValid
+
+   private void evictLoop() {
+      long period = Math.max(1000, this._idleTimeout / 2);
+      while (true) {
+         try{
+            Thread.sleep(period);
+         }catch (InterruptedException e){
+            return;
+         }//end try
+         List<PooledConnection> expired = new ArrayList<PooledConnection>();
+         synchronized (this) {
+            if (this._closed)
+               return;
+            long now = System.currentTimeMillis();
+            // oldest idle connections sit at the end of the list
+            Iterator<PooledConnection> it = this._idle.descendingIterator();
+            while (it.hasNext() && this._all.size() - expired.size() > this._minSize) {
+               PooledConnection pc = it.next();
+               if (now - pc._lastUsed < this._idleTimeout)
+                  break;
+               it.remove();
+               expired.add(pc);
+            }//end while
+            this._all.removeAll(expired);
+         }
+         for (PooledConnection pc : expired)
+            pc.close();
+      }//end while
+   }//end evictLoop
+
+}//end ConnectionPool
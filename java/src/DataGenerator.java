@@ -0,0 +1,378 @@
+/*
+ * Retail Data Generator
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * This class writes the data/*.csv files of the database at a multiple of
+ * the shipped size, with the same columns, so load_data.sql loads them as
+ * it loads the shipped ones. The data has the skew of a real store chain:
+ * stores stand in clusters, customers live around them, a few products and
+ * customers take most of the orders (Zipf), and orders come in bursts.
+ *
+ * The output depends only on the scale and the seed. Every file is drawn
+ * from a random stream of its own and written row by row, so only the
+ * stores and the popularity tables are kept in memory, never the orders.
+ *
+ * At scale s there are 100s users, 20s stores carrying 10 to 50 products
+ * each, 5 sqrt(s) warehouses, 500s orders, 50s product updates and 10s
+ * supply requests; the number of orders can be given on its own.
+ *
+ * Usage: java DataGenerator <outputDir> [scale] [seed] [orders]
+ *
+ */
+public class DataGenerator {
+
+   // the shipped products; larger catalogs add numbered ones
+   private static final String[] PRODUCTS = {"7up", "Pepsi", "Lemonade", "Brisk", "Orange Juice",
+      "Egg", "Donuts", "Hot and Sour Soup", "Ice Cream", "Pudding"};
+   private static final String[] NAMES = {"Amy", "Paige", "Karianne", "Luz", "Aubrey", "Rozella", "Clotilde",
+      "Jerome", "Marcus", "Nina", "Omar", "Priya", "Quinn", "Rosa", "Sven", "Tariq", "Uma", "Victor", "Wendy", "Yuki"};
+
+   // Zipf exponents of product and customer popularity
+   private static final double PRODUCT_SKEW = 1.0;
+   private static final double CUSTOMER_SKEW = 0.8;
+   // spread of stores around their cluster center and of customers around theirs
+   private static final double STORE_SPREAD = 2.0;
+   private static final double USER_SPREAD = 5.0;
+   // chance per order of a burst starting and ending, and how much faster orders come in one
+   private static final double BURST_START = 0.002;
+   private static final double BURST_END = 0.02;
+   private static final double BURST_RATE = 20.0;
+   // orders, updates and requests are spread over this many days from the first shipped order
+   private static final int DAYS = 365;
+   private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+   private final File _dir;
+   private final long _seed;
+   private final int _users;
+   private final int _managers;
+   private final int _stores;
+   private final int _warehouses;
+   private final String[] _catalog;
+   private final long _orders;
+   private final int _updates;
+   private final int _requests;
+   private final long _start;
+
+   // location and manager of every store, and the cluster centers they stand around
+   private final double[] _storeLatitude;
+   private final double[] _storeLongitude;
+   private final double[][] _clusters;
+
+   /**
+    * @param dir the directory the files are written to
+    * @param scale the multiple of the shipped data, 1 to 10000
+    * @param seed the seed every random stream is derived from
+    * @param orders the number of orders, or -1 for 500 per scale
+    */
+   public DataGenerator(File dir, int scale, long seed, long orders) {
+      if (scale < 1 || scale > 10000)
+         throw new IllegalArgumentException("scale must be between 1 and 10000");
+      this._dir = dir;
+      this._seed = seed;
+      this._users = 100 * scale;
+      this._stores = 20 * scale;
+      this._managers = (this._stores + 2) / 3;
+      this._warehouses = 5 * (int)Math.ceil(Math.sqrt(scale));
+      this._catalog = catalog(10 * (1 + (int)Math.log10(scale)));
+      this._orders = orders < 0 ? 500L * scale : orders;
+      this._updates = 50 * scale;
+      this._requests = 10 * scale;
+
+      // UTC, so the times are the same whatever the local time zone
+      Calendar calendar = Calendar.getInstance(UTC);
+      calendar.clear();
+      calendar.set(2016, Calendar.SEPTEMBER, 10);
+      this._start = calendar.getTimeInMillis();
+
+      Random random = random(0);
+      this._clusters = new double[Math.max(2, this._stores / 25)][];
+      for (int c = 0; c < this._clusters.length; ++c)
+         this._clusters[c] = new double[] {5 + 90 * random.nextDouble(), 5 + 90 * random.nextDouble()};
+      this._storeLatitude = new double[this._stores];
+      this._storeLongitude = new double[this._stores];
+      for (int s = 0; s < this._stores; ++s) {
+         double[] center = this._clusters[random.nextInt(this._clusters.length)];
+         this._storeLatitude[s] = around(random, center[0], STORE_SPREAD);
+         this._storeLongitude[s] = around(random, center[1], STORE_SPREAD);
+      }//end for
+   }//end DataGenerator
+
+   /**
+    * Writes every file
+    *
+    * @throws java.io.IOException when a file cannot be written
+    */
+   public void run() throws IOException {
+      if (!this._dir.isDirectory() && !this._dir.mkdirs())
+         throw new IOException("Cannot create " + this._dir);
+      writeUsers();
+      writeStores();
+      writeProducts();
+      writeWarehouses();
+      writeOrders();
+      writeUpdates();
+      writeRequests();
+   }//end run
+
+   // userID 1 is the admin, 2 to managers + 1 the managers and the rest customers
+   private void writeUsers() throws IOException {
+      Random random = random(1);
+      BufferedWriter out = open("users.csv", "userID,name,password,latitude,longitude,type");
+      try{
+         line(out, "1,Admin,xyz,98.38120,37.46294,admin");
+         for (int u = 2; u <= this._users; ++u) {
+            double[] center = this._clusters[random.nextInt(this._clusters.length)];
+            line(out, u + "," + NAMES[random.nextInt(NAMES.length)] + u + ",xyz," +
+               coordinate(around(random, center[0], USER_SPREAD)) + "," + coordinate(around(random, center[1], USER_SPREAD)) + "," +
+               (u <= this._managers + 1 ? "manager" : "customer"));
+         }//end for
+      }finally{
+         out.close();
+      }//end try
+      report("users.csv", this._users);
+   }//end writeUsers
+
+   private void writeStores() throws IOException {
+      Random random = random(2);
+      BufferedWriter out = open("stores.csv", "storeID,name,latitude,longitude,managerID,dateEstablished");
+      try{
+         for (int s = 0; s < this._stores; ++s) {
+            StringBuilder name = new StringBuilder(4);
+            for (int i = 0; i < 4; ++i)
+               name.append((char)('a' + random.nextInt(26)));
+            line(out, (s + 1) + "," + name + "," + coordinate(this._storeLatitude[s]) + "," +
+               coordinate(this._storeLongitude[s]) + "," + manager(s + 1) + "," +
+               (1 + random.nextInt(12)) + "/" + (1 + random.nextInt(28)) + "/" + (1950 + random.nextInt(66)));
+         }//end for
+      }finally{
+         out.close();
+      }//end try
+      report("stores.csv", this._stores);
+   }//end writeStores
+
+   // every store carries the whole catalog
+   private void writeProducts() throws IOException {
+      Random random = random(3);
+      BufferedWriter out = open("products.csv", "storeID,productName,numberOfUnits,pricePerUnit");
+      try{
+         for (int s = 1; s <= this._stores; ++s)
+            for (String product : this._catalog)
+               line(out, s + "," + product + "," + random.nextInt(101) + "," + (1 + random.nextInt(10)));
+      }finally{
+         out.close();
+      }//end try
+      report("products.csv", (long)this._stores * this._catalog.length);
+   }//end writeProducts
+
+   private void writeWarehouses() throws IOException {
+      Random random = random(4);
+      BufferedWriter out = open("warehouse.csv", "wareHouseID,area,latitude,longitude");
+      try{
+         for (int w = 1; w <= this._warehouses; ++w) {
+            double[] center = this._clusters[random.nextInt(this._clusters.length)];
+            line(out, w + "," + (10000 + 100 * random.nextInt(200)) + "," +
+               coordinate(around(random, center[0], USER_SPREAD)) + "," + coordinate(around(random, center[1], USER_SPREAD)));
+         }//end for
+      }finally{
+         out.close();
+      }//end try
+      report("warehouse.csv", this._warehouses);
+   }//end writeWarehouses
+
+   // orders in time order; a customer orders from a random store, products and customers by popularity
+   private void writeOrders() throws IOException {
+      Random random = random(5);
+      Zipf products = new Zipf(this._catalog.length, PRODUCT_SKEW);
+      int customers = this._users - this._managers - 1;
+      Zipf customerRanks = new Zipf(customers, CUSTOMER_SKEW);
+      int stride = coprime(customers);
+      Times times = new Times(this._orders);
+      BufferedWriter out = open("orders.csv", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime");
+      try{
+         boolean burst = false;
+         for (long o = 1; o <= this._orders; ++o) {
+            burst = burst ? random.nextDouble() >= BURST_END : random.nextDouble() < BURST_START;
+            // scatters the popular customers over the IDs
+            int customer = this._managers + 2 + (int)((long)customerRanks.next(random) * stride % customers);
+            line(out, o + "," + customer + "," + (1 + random.nextInt(this._stores)) + "," +
+               this._catalog[products.next(random)] + "," + (1 + Math.min(49, (int)(-10 * Math.log(1 - random.nextDouble())))) + "," +
+               times.next(random, burst ? BURST_RATE : 1));
+         }//end for
+      }finally{
+         out.close();
+      }//end try
+      report("orders.csv", this._orders);
+   }//end writeOrders
+
+   private void writeUpdates() throws IOException {
+      Random random = random(6);
+      Times times = new Times(this._updates);
+      BufferedWriter out = open("productUpdates.csv", "updateNumber,managerID,storeID,productName,updatedOn");
+      try{
+         for (int u = 1; u <= this._updates; ++u) {
+            int store = 1 + random.nextInt(this._stores);
+            line(out, u + "," + manager(store) + "," + store + "," +
+               this._catalog[random.nextInt(this._catalog.length)] + "," + times.next(random, 1));
+         }//end for
+      }finally{
+         out.close();
+      }//end try
+      report("productUpdates.csv", this._updates);
+   }//end writeUpdates
+
+   private void writeRequests() throws IOException {
+      Random random = random(7);
+      BufferedWriter out = open("productSupplyRequests.csv", "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested");
+      try{
+         for (int r = 1; r <= this._requests; ++r) {
+            int store = 1 + random.nextInt(this._stores);
+            line(out, r + "," + manager(store) + "," + (1 + random.nextInt(this._warehouses)) + "," + store + "," +
+               this._catalog[random.nextInt(this._catalog.length)] + "," + (1 + random.nextInt(100)));
+         }//end for
+      }finally{
+         out.close();
+      }//end try
+      report("productSupplyRequests.csv", this._requests);
+   }//end writeRequests
+
+   /**
+    * Draws ranks 0 to n - 1 with probability proportional to 1 / (rank + 1)^skew
+    */
+   static class Zipf {
+      private final double[] _cumulative;
+
+      Zipf(int n, double skew) {
+         this._cumulative = new double[n];
+         double sum = 0;
+         for (int i = 0; i < n; ++i) {
+            sum += 1 / Math.pow(i + 1, skew);
+            this._cumulative[i] = sum;
+         }//end for
+         for (int i = 0; i < n; ++i)
+            this._cumulative[i] /= sum;
+      }
+
+      int next(Random random) {
+         int i = Arrays.binarySearch(this._cumulative, random.nextDouble());
+         return Math.min(i < 0 ? -i - 1 : i, this._cumulative.length - 1);
+      }
+   }//end Zipf
+
+   /**
+    * Increasing timestamps over DAYS days with exponential gaps, formatted
+    * once per second
+    */
+   private class Times {
+      private final double _meanGap;
+      private final SimpleDateFormat _format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+      {
+         this._format.setTimeZone(UTC);
+      }
+      private double _time = DataGenerator.this._start;
+      private long _second = -1;
+      private String _formatted;
+
+      Times(long count) {
+         this._meanGap = DAYS * 86400000.0 / Math.max(1, count);
+      }
+
+      String next(Random random, double rate) {
+         this._time += -this._meanGap / rate * Math.log(1 - random.nextDouble());
+         long second = (long)this._time / 1000;
+         if (second != this._second) {
+            this._second = second;
+            this._formatted = this._format.format(new Date(second * 1000));
+         }//end if
+         return this._formatted;
+      }
+   }//end Times
+
+   // the manager of a store; managers run three stores each
+   private int manager(int storeID) {
+      return 2 + (storeID - 1) % this._managers;
+   }//end manager
+
+   private Random random(int stream) {
+      return new Random(this._seed * 31 + stream);
+   }//end random
+
+   private BufferedWriter open(String name, String header) throws IOException {
+      BufferedWriter out = new BufferedWriter(new FileWriter(new File(this._dir, name)), 1 << 16);
+      line(out, header);
+      return out;
+   }//end open
+
+   private static void line(BufferedWriter out, String line) throws IOException {
+      out.write(line);
+      out.newLine();
+   }//end line
+
+   private void report(String name, long rows) {
+      System.out.println(String.format("%-40s%,14d rows", new File(this._dir, name).getPath(), rows));
+   }//end report
+
+   private static String[] catalog(int size) {
+      String[] catalog = new String[size];
+      for (int i = 0; i < size; ++i)
+         catalog[i] = i < PRODUCTS.length ? PRODUCTS[i] : "Product " + (i + 1);
+      return catalog;
+   }//end catalog
+
+   // a point near a center, inside the 0 to 100 grid of the shipped data
+   private static double around(Random random, double center, double spread) {
+      return Math.max(0, Math.min(99.99999, center + spread * random.nextGaussian()));
+   }//end around
+
+   private static String coordinate(double value) {
+      return String.format(Locale.ROOT, "%.5f", value);
+   }//end coordinate
+
+   // a multiplier that permutes 0 to n - 1
+   private static int coprime(int n) {
+      int stride = 7919;
+      while (gcd(stride, n) != 1)
+         stride += 2;
+      return stride;
+   }//end coprime
+
+   private static int gcd(int a, int b) {
+      return b == 0 ? a : gcd(b, a % b);
+   }//end gcd
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1 || args.length > 4) {
+         System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName() +
+            " <outputDir> [scale] [seed] [orders]");
+         return;
+      }//end if
+      int scale = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+      long seed = args.length > 2 ? Long.parseLong(args[2]) : 166;
+      long orders = args.length > 3 ? Long.parseLong(args[3]) : -1;
+      long start = System.nanoTime();
+      new DataGenerator(new File(args[0]), scale, seed, orders).run();
+      System.out.println(String.format("generated scale %d in %.1f s", scale, (System.nanoTime() - start) / 1e9));
+   }//end main
+
+}//end DataGenerator
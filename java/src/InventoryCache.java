@@ -0,0 +1,341 @@
+/*
+ * Retail Inventory Cache
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class caches the Product rows of the most recently used stores, so
+ * product listings and stock and price lookups need no round trip. Each
+ * store's rows form an immutable partition; a change replaces the whole
+ * partition, so readers never lock.
+ *
+ * The application's own writes are applied to the cache once committed.
+ * Writes of other clients are learnt from the Product trigger, which
+ * notifies the channel of every store it changed; the notifications sent by
+ * this application's own connections are ignored. Since the listener polls,
+ * a partition is also dropped after a time to live. The cache only serves
+ * reads: the stock check of an order is still made by the database.
+ *
+ */
+public class InventoryCache {
+
+   // prefix of the per-store channels the Product trigger notifies
+   public static final String CHANNEL_PREFIX = "retail_inventory_";
+
+   // load versions are kept per stripe of stores, so memory stays bounded
+   private static final int STRIPES = 64;
+
+   /**
+    * One Product row
+    */
+   public static class Product {
+      public final int storeID;
+      public final String productName;
+      public final int numberOfUnits;
+      public final String pricePerUnit;
+
+      public Product(int storeID, String productName, int numberOfUnits, String pricePerUnit) {
+         this.storeID = storeID;
+         this.productName = productName.trim();
+         this.numberOfUnits = numberOfUnits;
+         this.pricePerUnit = pricePerUnit;
+      }
+
+      /**
+       * @return storeID, productName, numberOfUnits and pricePerUnit, for printResult
+       */
+      public List<String> toRow() {
+         List<String> row = new ArrayList<String>(4);
+         row.add(String.valueOf(this.storeID));
+         row.add(this.productName);
+         row.add(String.valueOf(this.numberOfUnits));
+         row.add(this.pricePerUnit);
+         return row;
+      }//end toRow
+   }//end Product
+
+   /**
+    * The products of one store
+    */
+   public static class Partition {
+      private final Map<String, Product> _products;
+      private final long _loadedAt;
+      private volatile long _lastUsed;
+
+      Partition(Map<String, Product> products, long loadedAt) {
+         this._products = products;
+         this._loadedAt = loadedAt;
+         this._lastUsed = System.currentTimeMillis();
+      }
+
+      /**
+       * @return every product of the store, by productName
+       */
+      public List<Product> getProducts() {
+         return Collections.unmodifiableList(new ArrayList<Product>(this._products.values()));
+      }
+
+      /**
+       * @param productName a product name
+       * @return the product, or null when the store does not sell it
+       */
+      public Product getProduct(String productName) {
+         return this._products.get(productName.trim());
+      }
+
+      /**
+       * @return storeID, productName, numberOfUnits and pricePerUnit rows for printResult
+       */
+      public List<List<String>> rows() {
+         List<List<String>> rows = new ArrayList<List<String>>(this._products.size());
+         for (Product p : this._products.values())
+            rows.add(p.toRow());
+         return rows;
+      }//end rows
+
+      // a copy with one product replaced
+      Partition with(Product product) {
+         Map<String, Product> products = new TreeMap<String, Product>(this._products);
+         products.put(product.productName, product);
+         Partition p = new Partition(Collections.unmodifiableMap(products), this._loadedAt);
+         p._lastUsed = this._lastUsed;
+         return p;
+      }//end with
+   }//end Partition
+
+   private final int _maxStores;
+   private final long _ttl;
+   private final ConcurrentMap<Integer, Partition> _partitions = new ConcurrentHashMap<Integer, Partition>();
+   // bumped whenever a store changes, so a load that overlapped the change is not kept
+   private final AtomicLongArray _versions = new AtomicLongArray(STRIPES);
+   private final Object _evictLock = new Object();
+   private NotificationListener _listener = null;
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _writes = new AtomicLong();
+   private final AtomicLong _invalidations = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+
+   /**
+    * @param maxStores the largest number of stores whose products are kept
+    * @param ttl milliseconds a store's products are kept without a reload
+    */
+   public InventoryCache(int maxStores, long ttl) {
+      this._maxStores = Math.max(1, maxStores);
+      this._ttl = ttl;
+   }//end InventoryCache
+
+   /**
+    * Invalidates stores when other clients change their products. Call
+    * before the listener is started.
+    *
+    * @param listener the listener the store channels are subscribed on
+    * @param pool the pool whose connections' own notifications are ignored
+    */
+   public void attach(NotificationListener listener, final ConnectionPool pool) {
+      this._listener = listener;
+      listener.listenPrefix(CHANNEL_PREFIX, new NotificationListener.Handler() {
+         public void notified(String channel, int pid) {
+            if (pool.isOwnBackend(pid))
+               return;
+            try{
+               invalidate(Integer.parseInt(channel.substring(CHANNEL_PREFIX.length())));
+            }catch (NumberFormatException e){
+               // not a store channel.
+            }//end try
+         }
+         public void reconnected() {
+            clear();
+         }
+      });
+   }//end attach
+
+   /**
+    * @param storeID a storeID
+    * @return the channel the Product trigger notifies when the store's products change
+    */
+   public static String channel(int storeID) {
+      return CHANNEL_PREFIX + storeID;
+   }
+
+   /**
+    * @param storeID a storeID
+    * @return the store's cached products, or null when they have to be loaded
+    */
+   public Partition get(int storeID) {
+      Partition p = this._partitions.get(storeID);
+      if (p != null && System.currentTimeMillis() - p._loadedAt > this._ttl) {
+         this._partitions.remove(storeID, p);
+         p = null;
+      }//end if
+      if (p == null) {
+         this._misses.incrementAndGet();
+         return null;
+      }//end if
+      this._hits.incrementAndGet();
+      p._lastUsed = System.currentTimeMillis();
+      return p;
+   }//end get
+
+   /**
+    * Starts loading a store: subscribes its channel and waits until it is
+    * listened to, so a change made while the rows are read is noticed, and
+    * returns the version to hand to put.
+    *
+    * @param storeID a storeID
+    * @return the store's current version
+    */
+   public long beginLoad(int storeID) {
+      long version;
+      synchronized (this._evictLock) {
+         if (this._listener != null)
+            this._listener.subscribe(channel(storeID));
+         version = this._versions.get(stripe(storeID));
+      }//end synchronized
+      // outside the lock, so other loads and evictions do not wait for the LISTEN
+      if (this._listener != null)
+         this._listener.sync();
+      return version;
+   }//end beginLoad
+
+   /**
+    * Caches the products of a store read after beginLoad. They are not kept
+    * when the store changed since, but are returned all the same.
+    *
+    * @param storeID a storeID
+    * @param products every product of the store
+    * @param version the version beginLoad returned
+    * @return the store's products
+    */
+   public Partition put(int storeID, List<Product> products, long version) {
+      Map<String, Product> byName = new TreeMap<String, Product>();
+      for (Product p : products)
+         byName.put(p.productName, p);
+      Partition partition = new Partition(Collections.unmodifiableMap(byName), System.currentTimeMillis());
+      this._partitions.put(storeID, partition);
+      // checked after the put, so a change racing with it removes it again
+      if (this._versions.get(stripe(storeID)) != version)
+         this._partitions.remove(storeID, partition);
+      else if (this._partitions.size() > this._maxStores)
+         evict();
+      return partition;
+   }//end put
+
+   // drops the least recently used stores until the cache is within its cap
+   private void evict() {
+      synchronized (this._evictLock) {
+         while (this._partitions.size() > this._maxStores) {
+            Integer oldest = null;
+            long oldestUse = Long.MAX_VALUE;
+            for (Map.Entry<Integer, Partition> e : this._partitions.entrySet()) {
+               if (e.getValue()._lastUsed < oldestUse) {
+                  oldest = e.getKey();
+                  oldestUse = e.getValue()._lastUsed;
+               }//end if
+            }//end for
+            if (oldest == null)
+               return;
+            this._partitions.remove(oldest);
+            this._versions.incrementAndGet(stripe(oldest));
+            if (this._listener != null)
+               this._listener.unsubscribe(channel(oldest));
+            this._evictions.incrementAndGet();
+         }//end while
+      }//end synchronized
+   }//end evict
+
+   /**
+    * Applies a committed write that set a product's row
+    *
+    * @param product the product as written
+    */
+   public void set(Product product) {
+      this._versions.incrementAndGet(stripe(product.storeID));
+      this._writes.incrementAndGet();
+      while (true) {
+         Partition p = this._partitions.get(product.storeID);
+         if (p == null || this._partitions.replace(product.storeID, p, p.with(product)))
+            return;
+      }//end while
+   }//end set
+
+   /**
+    * Applies a committed write that changed a product's stock by an amount
+    *
+    * @param storeID the store of the product
+    * @param productName the product
+    * @param delta the units added, negative when taken off
+    */
+   public void adjust(int storeID, String productName, int delta) {
+      this._versions.incrementAndGet(stripe(storeID));
+      this._writes.incrementAndGet();
+      while (true) {
+         Partition p = this._partitions.get(storeID);
+         if (p == null)
+            return;
+         Product old = p.getProduct(productName);
+         if (old == null) {
+            // the row is not known here, so the store is read again
+            this._partitions.remove(storeID, p);
+            return;
+         }//end if
+         Product changed = new Product(storeID, old.productName, old.numberOfUnits + delta, old.pricePerUnit);
+         if (this._partitions.replace(storeID, p, p.with(changed)))
+            return;
+      }//end while
+   }//end adjust
+
+   /**
+    * Drops a store's products, e.g. when another client changed them
+    *
+    * @param storeID a storeID
+    */
+   public void invalidate(int storeID) {
+      this._versions.incrementAndGet(stripe(storeID));
+      if (this._partitions.remove(storeID) != null)
+         this._invalidations.incrementAndGet();
+   }//end invalidate
+
+   /**
+    * Drops every store's products
+    */
+   public void clear() {
+      for (int i = 0; i < STRIPES; ++i)
+         this._versions.incrementAndGet(i);
+      this._partitions.clear();
+   }//end clear
+
+   private static int stripe(int storeID) {
+      return storeID & (STRIPES - 1);
+   }
+
+   /**
+    * @return the number of stores cached, the hit rate and the writes, invalidations and evictions
+    */
+   public String report() {
+      long hits = this._hits.get(), misses = this._misses.get();
+      return String.format("inventory cache: %d/%d stores, %d hits, %d misses (%.1f%% hit rate), %d writes, %d invalidations, %d evictions",
+         this._partitions.size(), this._maxStores, hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses),
+         this._writes.get(), this._invalidations.get(), this._evictions.get());
+   }//end report
+
+}//end InventoryCache
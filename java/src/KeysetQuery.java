@@ -0,0 +1,86 @@
+/*
+ * Keyset Query
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * This class holds the SQL of a listing that is read one page at a time.
+ * Each page after the first starts right after the sort key of the last row
+ * shown, so a page costs the same index range scan however deep into the
+ * listing it is, unlike OFFSET which reads and throws away every row before
+ * it. The sort key has to be unique, so it ends with a key column.
+ *
+ * The query strings take the listing's own parameters first, then the key
+ * of the last row shown (next page only), then the page size.
+ *
+ */
+public class KeysetQuery {
+
+   private final String _all;
+   private final String _firstPage;
+   private final String _nextPage;
+   private final int[] _keys;
+
+   /**
+    * @param select the SELECT and FROM clauses
+    * @param where the filter of the listing, or null for none
+    * @param after the predicate matching rows after the key, with one '?' per key column
+    * @param order the ORDER BY list the predicate follows
+    * @param keys the 0-based positions of the sort key columns in the rows
+    */
+   public KeysetQuery(String select, String where, String after, String order, int... keys) {
+      String filter = where == null ? "" : " WHERE " + where;
+      this._all = select + filter + " ORDER BY " + order + ";";
+      this._firstPage = select + filter + " ORDER BY " + order + " LIMIT ?;";
+      this._nextPage = select + (where == null ? " WHERE " : filter + " AND ") + after + " ORDER BY " + order + " LIMIT ?;";
+      this._keys = keys;
+   }//end KeysetQuery
+
+   /**
+    * @return the whole listing, for streaming through a cursor
+    */
+   public String getAll() {
+      return this._all;
+   }
+
+   /**
+    * @return the first page
+    */
+   public String getFirstPage() {
+      return this._firstPage;
+   }
+
+   /**
+    * @return the page after a given key
+    */
+   public String getNextPage() {
+      return this._nextPage;
+   }
+
+   /**
+    * Builds the parameters of a page
+    *
+    * @param params the parameters of the listing
+    * @param last the last row shown, or null for the first page
+    * @param pageSize the number of rows on a page
+    * @return the parameters of the page query
+    */
+   public Object[] pageParameters(Object[] params, String[] last, int pageSize) {
+      int keyCount = last == null ? 0 : this._keys.length;
+      Object[] result = new Object[params.length + keyCount + 1];
+      System.arraycopy(params, 0, result, 0, params.length);
+      for (int i = 0; i < keyCount; ++i)
+         result[params.length + i] = last[this._keys[i]];
+      result[result.length - 1] = Integer.valueOf(pageSize);
+      return result;
+   }//end pageParameters
+
+}//end KeysetQuery
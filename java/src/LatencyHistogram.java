@@ -0,0 +1,155 @@
+/*
+ * Latency Histogram
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records durations in nanoseconds into log-linear buckets: every
+ * power of two is split into 32 buckets, so percentiles are within about 3%
+ * of the true value. Recording is a few atomic adds and never locks, so many
+ * threads can share one histogram.
+ *
+ */
+public class LatencyHistogram {
+
+   // number of sub-buckets per power of two, as a power of two
+   private static final int SUB_BITS = 5;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKETS = 64 * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Records one value
+    *
+    * @param value the duration in nanoseconds; negative values count as zero
+    */
+   public void record(long value) {
+      if (value < 0)
+         value = 0;
+      this._counts.incrementAndGet(bucket(value));
+      this._count.incrementAndGet();
+      this._sum.addAndGet(value);
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }//end record
+
+   public long getCount() {
+      return this._count.get();
+   }
+
+   public long getSum() {
+      return this._sum.get();
+   }
+
+   public long getMax() {
+      return this._max.get();
+   }
+
+   public double getMean() {
+      long count = this._count.get();
+      return count == 0 ? 0 : this._sum.get() / (double) count;
+   }
+
+   /**
+    * Returns the value below which the given fraction of recorded values fall
+    *
+    * @param quantile the fraction between 0 and 1, e.g. 0.99
+    * @return the estimated value in nanoseconds
+    */
+   public long getQuantile(double quantile) {
+      long count = this._count.get();
+      if (count == 0)
+         return 0;
+      long rank = (long) Math.ceil(quantile * count);
+      if (rank < 1)
+         rank = 1;
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get(i);
+         if (seen >= rank)
+            return Math.min(midpoint(i), this._max.get());
+      }//end for
+      return this._max.get();
+   }//end getQuantile
+
+   /**
+    * Adds the counts of this histogram for every bucket upper bound to an
+    * array, for exporting cumulative buckets.
+    *
+    * @param bounds upper bounds in nanoseconds, ascending
+    * @return the number of recorded values at or below each bound
+    */
+   public long[] getCumulativeCounts(long[] bounds) {
+      long[] result = new long[bounds.length];
+      long seen = 0;
+      int b = 0;
+      for (int i = 0; i < BUCKETS && b < bounds.length; ++i) {
+         while (b < bounds.length && lowest(i) > bounds[b])
+            result[b++] = seen;
+         seen += this._counts.get(i);
+      }//end for
+      while (b < bounds.length)
+         result[b++] = seen;
+      return result;
+   }//end getCumulativeCounts
+
+   /**
+    * Adds every value of another histogram to this one
+    *
+    * @param other the histogram to merge in
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; ++i) {
+         long c = other._counts.get(i);
+         if (c != 0)
+            this._counts.addAndGet(i, c);
+      }//end for
+      this._count.addAndGet(other._count.get());
+      this._sum.addAndGet(other._sum.get());
+      long value = other._max.get();
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }//end add
+
+   private static int bucket(long value) {
+      if (value < SUB_COUNT)
+         return (int) value;
+      int magnitude = 63 - Long.numberOfLeadingZeros(value);
+      int shift = magnitude - SUB_BITS;
+      int top = (int) (value >>> shift);
+      return (shift + 1) * SUB_COUNT + (top - SUB_COUNT);
+   }//end bucket
+
+   private static long lowest(int bucket) {
+      if (bucket < SUB_COUNT)
+         return bucket;
+      int shift = bucket / SUB_COUNT - 1;
+      long top = bucket % SUB_COUNT + SUB_COUNT;
+      return top << shift;
+   }//end lowest
+
+   private static long midpoint(int bucket) {
+      if (bucket < SUB_COUNT)
+         return bucket;
+      int shift = bucket / SUB_COUNT - 1;
+      return lowest(bucket) + ((1L << shift) >> 1);
+   }//end midpoint
+
+}//end LatencyHistogram
@@ -0,0 +1,283 @@
+/*
+ * Retail Load Generator
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class drives a Retail database with N concurrent sessions and reports
+ * ops/sec and p50/p99/p999 latency per operation type.
+ *
+ * In replay mode every row of an orders file is placed again through
+ * Retail.submitOrder. Arrival times follow the orderTime column divided by
+ * the speedup factor; a speedup of 0 sends orders as fast as the workers
+ * take them.
+ *
+ * In synthetic mode orders are sampled from the file and mixed with the
+ * product list, recent order and popular product reports. Arrivals are
+ * random with the file's average order rate times the speedup, for the
+ * given number of seconds.
+ *
+ * When arrivals are paced, latency is measured from the scheduled arrival
+ * time, so time spent queued behind slow operations is included.
+ *
+ * Usage: java LoadGenerator <dbname> <port> <user> <orders.csv>
+ *             [replay|synthetic] [workers] [speedup] [seconds]
+ *
+ */
+public class LoadGenerator {
+
+   /**
+    * One operation to run
+    */
+   private static class Task {
+      final String type;
+      final int customerID;
+      final int storeID;
+      final String productName;
+      final int units;
+      long scheduled;
+
+      Task(String type, int customerID, int storeID, String productName, int units) {
+         this.type = type;
+         this.customerID = customerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+      }
+   }//end Task
+
+   // a task telling a worker that no more work is coming
+   private static final Task DONE = new Task("done", 0, 0, null, 0);
+
+   // operation mix of the synthetic mode, in percent
+   private static final String[] MIX_TYPES = {"order", "products", "recent-orders", "popular-products"};
+   private static final int[] MIX_WEIGHTS = {70, 15, 10, 5};
+
+   private final Map<String, LatencyHistogram> _latency = new LinkedHashMap<String, LatencyHistogram>();
+   private final Map<String, AtomicLong> _errors = new LinkedHashMap<String, AtomicLong>();
+   private final AtomicLong _rejected = new AtomicLong();
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java [-classpath <classpath>] " + LoadGenerator.class.getName() +
+            " <dbname> <port> <user> <orders.csv> [replay|synthetic] [workers] [speedup] [seconds]");
+         return;
+      }//end if
+      String mode = args.length > 4 ? args[4] : "replay";
+      int workers = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+      double speedup = args.length > 6 ? Double.parseDouble(args[6]) : 0;
+      long seconds = args.length > 7 ? Long.parseLong(args[7]) : 30;
+      if (System.getProperty("retail.pool.max") == null)
+         System.setProperty("retail.pool.max", String.valueOf(workers));
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      try{
+         new LoadGenerator().run(esql, args[3], mode.equals("synthetic"), workers, speedup, seconds);
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   private void run(final Retail esql, String file, boolean synthetic, int workers, double speedup, long seconds) throws Exception {
+      for (String type : MIX_TYPES) {
+         this._latency.put(type, new LatencyHistogram());
+         this._errors.put(type, new AtomicLong());
+      }//end for
+      final boolean paced = speedup > 0;
+      final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(10000);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < workers; ++i) {
+         final Retail session = esql.newSession();
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               work(session, queue, paced);
+            }
+         }, "load-worker-" + i);
+         threads.add(t);
+         t.start();
+      }//end for
+
+      long start = System.nanoTime();
+      if (synthetic)
+         synthetic(queue, readOrders(file, -1), speedup, seconds, start);
+      else
+         replay(queue, file, speedup, start);
+      for (int i = 0; i < workers; ++i)
+         queue.put(DONE);
+      for (Thread t : threads)
+         t.join();
+      report((System.nanoTime() - start) / 1e9);
+   }//end run
+
+   // queues every order of the file at its compressed arrival time
+   private void replay(BlockingQueue<Task> queue, String file, double speedup, long start) throws Exception {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try{
+         int[] columns = columns(reader.readLine());
+         long first = Long.MIN_VALUE;
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty())
+               continue;
+            String[] fields = line.split(",");
+            Task task = order(fields, columns);
+            if (speedup > 0) {
+               long time = Timestamp.valueOf(fields[columns[4]].trim()).getTime();
+               if (first == Long.MIN_VALUE)
+                  first = time;
+               task.scheduled = start + (long) ((time - first) * 1e6 / speedup);
+            }//end if
+            queue.put(task);
+         }//end while
+      }finally{
+         reader.close();
+      }//end try
+   }//end replay
+
+   // queues random operations at the file's order rate times the speedup
+   private void synthetic(BlockingQueue<Task> queue, List<String[]> orders, double speedup, long seconds, long start) throws Exception {
+      Random random = new Random(1);
+      int[] columns = OrderImporter.columns(orders.remove(0));
+      double meanGap = 0;
+      if (speedup > 0) {
+         long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+         for (String[] fields : orders) {
+            long time = Timestamp.valueOf(fields[columns[4]].trim()).getTime();
+            first = Math.min(first, time);
+            last = Math.max(last, time);
+         }//end for
+         // nanoseconds between arrivals once the timeline is compressed
+         meanGap = (last - first) * 1e6 / Math.max(1, orders.size() - 1) / speedup;
+      }//end if
+      long end = start + seconds * 1000000000L;
+      long next = start;
+      while (System.nanoTime() < end && next < end) {
+         String[] sample = orders.get(random.nextInt(orders.size()));
+         Task order = order(sample, columns);
+         String type = pick(random);
+         Task task = type.equals("order") ? order
+            : new Task(type, order.customerID, order.storeID, null, 0);
+         if (speedup > 0) {
+            next += (long) (-Math.log(1 - random.nextDouble()) * meanGap);
+            task.scheduled = next;
+         }//end if
+         queue.put(task);
+      }//end while
+   }//end synthetic
+
+   private void work(Retail session, BlockingQueue<Task> queue, boolean paced) {
+      while (true) {
+         Task task;
+         try{
+            task = queue.take();
+            if (task == DONE)
+               return;
+            long wait = task.scheduled - System.nanoTime();
+            if (paced && wait > 0)
+               TimeUnit.NANOSECONDS.sleep(wait);
+         }catch (InterruptedException e){
+            return;
+         }//end try
+         long began = paced ? task.scheduled : System.nanoTime();
+         try{
+            if (task.type.equals("order")) {
+               if (session.submitOrder(task.customerID, task.storeID, task.productName, task.units) == null)
+                  this._rejected.incrementAndGet();
+            }else if (task.type.equals("products")) {
+               session.getInventory(task.storeID);
+            }else if (task.type.equals("recent-orders")) {
+               session.executeQueryAndReturnResult(Retail.RECENT_ORDERS, task.customerID);
+            }else {
+               session.executeQueryAndReturnResult(Retail.POPULAR_PRODUCTS, task.storeID);
+            }//end if
+            this._latency.get(task.type).record(System.nanoTime() - began);
+         }catch (Exception e){
+            this._errors.get(task.type).incrementAndGet();
+         }//end try
+      }//end while
+   }//end work
+
+   private void report(double elapsed) {
+      System.out.println();
+      System.out.println(String.format("%-18s%10s%8s%12s%10s%10s%10s%10s",
+         "operation", "count", "errors", "ops/sec", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+      long total = 0;
+      for (Map.Entry<String, LatencyHistogram> e : this._latency.entrySet()) {
+         LatencyHistogram h = e.getValue();
+         long errors = this._errors.get(e.getKey()).get();
+         if (h.getCount() == 0 && errors == 0)
+            continue;
+         total += h.getCount();
+         System.out.println(String.format("%-18s%10d%8d%12.1f%10.2f%10.2f%10.2f%10.2f",
+            e.getKey(), h.getCount(), errors, h.getCount() / elapsed,
+            h.getQuantile(0.50) / 1e6, h.getQuantile(0.99) / 1e6, h.getQuantile(0.999) / 1e6, h.getMax() / 1e6));
+      }//end for
+      System.out.println(String.format("total %d operations in %.1f s: %.1f ops/sec, %d orders rejected for stock",
+         total, elapsed, total / elapsed, this._rejected.get()));
+   }//end report
+
+   private static String pick(Random random) {
+      int roll = random.nextInt(100);
+      for (int i = 0; i < MIX_TYPES.length; ++i) {
+         roll -= MIX_WEIGHTS[i];
+         if (roll < 0)
+            return MIX_TYPES[i];
+      }//end for
+      return MIX_TYPES[0];
+   }//end pick
+
+   /**
+    * Reads the rows of an orders file, header first
+    *
+    * @param file the orders CSV file
+    * @param limit the largest number of data rows read, or -1 for all
+    * @return the header followed by the data rows, split on commas
+    * @throws java.io.IOException when the file cannot be read
+    */
+   static List<String[]> readOrders(String file, int limit) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try{
+         String line;
+         while ((line = reader.readLine()) != null && (limit < 0 || rows.size() <= limit))
+            if (!line.trim().isEmpty())
+               rows.add(line.split(","));
+      }finally{
+         reader.close();
+      }//end try
+      return rows;
+   }//end readOrders
+
+   private static int[] columns(String header) {
+      return OrderImporter.columns(header.split(","));
+   }//end columns
+
+   private static Task order(String[] fields, int[] columns) {
+      return new Task("order", Integer.parseInt(fields[columns[0]].trim()), Integer.parseInt(fields[columns[1]].trim()),
+         fields[columns[2]].trim(), Integer.parseInt(fields[columns[3]].trim()));
+   }//end order
+
+}//end LoadGenerator
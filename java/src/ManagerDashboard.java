@@ -0,0 +1,193 @@
+/*
+ * Retail Manager Dashboard
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class gathers the store reports of a manager, the popular products,
+ * popular customers, low stock and recent supply requests, for every store
+ * the manager runs at once. Every query of every store is a task of its
+ * own on a bounded pool of worker threads, each borrowing its own pooled
+ * connection, so the dashboard takes about as long as the slowest query
+ * rather than the sum of them. The results are merged into one table per
+ * report, with the store of each row.
+ *
+ */
+public class ManagerDashboard {
+
+   // products of one store under its reorder point; stores without a policy use the default
+   static final String LOW_STOCK =
+      "SELECT P.productName, P.numberOfUnits, COALESCE(R.reorderPoint, ?) AS reorderPoint " +
+      "FROM ProductStock P LEFT JOIN ReorderPolicy R ON R.storeID = P.storeID " +
+      "WHERE P.storeID = ? AND P.numberOfUnits < COALESCE(R.reorderPoint, ?) " +
+      "ORDER BY P.numberOfUnits, P.productName;";
+
+   // tasks waiting for a worker; beyond it the submitting thread runs them itself
+   private static final int QUEUE_SIZE = 256;
+
+   /**
+    * One report of the dashboard, merged over the stores
+    */
+   public static class Section {
+      public final String title;
+      public final String[] columns;
+      public final List<List<String>> rows = new ArrayList<List<String>>();
+      // whether the storeID column is added in front of the query's own
+      final boolean addStore;
+
+      Section(String title, String[] columns, boolean addStore) {
+         this.title = title;
+         this.columns = columns;
+         this.addStore = addStore;
+      }
+   }//end Section
+
+   /**
+    * The reports of every store and how long they took
+    */
+   public static class Result {
+      public final List<Section> sections = new ArrayList<Section>();
+      public final int stores;
+      // nanoseconds from the first submit to the last result
+      public long elapsed;
+      // nanoseconds the queries took together
+      public long queryTime;
+
+      Result(int stores) {
+         this.stores = stores;
+      }
+   }//end Result
+
+   private final ThreadPoolExecutor _workers;
+   private final LatencyHistogram _latency = new LatencyHistogram();
+   private final AtomicLong _queries = new AtomicLong();
+
+   /**
+    * @param threads the number of queries run at once, across all sessions
+    */
+   public ManagerDashboard(int threads) {
+      threads = Math.max(1, threads);
+      this._workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+         new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "dashboard");
+               t.setDaemon(true);
+               return t;
+            }
+         }, new ThreadPoolExecutor.CallerRunsPolicy());
+      this._workers.allowCoreThreadTimeOut(true);
+   }//end ManagerDashboard
+
+   /**
+    * Runs the reports of every store concurrently and merges them
+    *
+    * @param esql the session the queries run through
+    * @param stores the stores to report on
+    * @return one section per report, its rows in store order
+    * @throws java.sql.SQLException when a query fails
+    */
+   public Result load(Retail esql, List<StoreLocator.Store> stores) throws SQLException {
+      int reorderPoint = ReplenishmentEngine.REORDER_POINT;
+      Result result = new Result(stores.size());
+      result.sections.add(new Section("Popular Products", new String[] {"storeid", "productname", "numoforders"}, true));
+      result.sections.add(new Section("Popular Customers", new String[] {"storeid", "customerid", "name", "numoforders"}, true));
+      result.sections.add(new Section("Low Stock", new String[] {"storeid", "productname", "numberofunits", "reorderpoint"}, true));
+      result.sections.add(new Section("Recent Supply Requests", Retail.SUPPLY_REQUEST_COLUMNS, false));
+
+      long start = System.nanoTime();
+      List<List<Future<List<List<String>>>>> futures = new ArrayList<List<Future<List<List<String>>>>>();
+      for (StoreLocator.Store store : stores) {
+         List<Future<List<List<String>>>> reports = new ArrayList<Future<List<List<String>>>>(4);
+         reports.add(submit(esql, result, Retail.POPULAR_PRODUCTS, store.storeID));
+         reports.add(submit(esql, result, Retail.POPULAR_CUSTOMERS, store.storeID));
+         reports.add(submit(esql, result, LOW_STOCK, reorderPoint, store.storeID, reorderPoint));
+         reports.add(submit(esql, result, Retail.SUPPLY_REQUESTS, store.storeID));
+         futures.add(reports);
+      }//end for
+
+      for (int s = 0; s < stores.size(); ++s) {
+         String storeID = String.valueOf(stores.get(s).storeID);
+         for (int r = 0; r < result.sections.size(); ++r) {
+            Section section = result.sections.get(r);
+            for (List<String> row : get(futures.get(s).get(r))) {
+               if (section.addStore)
+                  row.add(0, storeID);
+               section.rows.add(row);
+            }//end for
+         }//end for
+      }//end for
+      result.elapsed = System.nanoTime() - start;
+      return result;
+   }//end load
+
+   private Future<List<List<String>>> submit(final Retail esql, final Result result, final String query, final Object... params) {
+      final String operation = Metrics.getOperation();
+      return this._workers.submit(new Callable<List<List<String>>>() {
+         public List<List<String>> call() throws SQLException {
+            Metrics.join(operation);
+            long start = System.nanoTime();
+            try{
+               return esql.executeQueryAndReturnResult(query, params);
+            }finally{
+               long elapsed = System.nanoTime() - start;
+               ManagerDashboard.this._latency.record(elapsed);
+               ManagerDashboard.this._queries.incrementAndGet();
+               synchronized (result) {
+                  result.queryTime += elapsed;
+               }
+            }//end try
+         }
+      });
+   }//end submit
+
+   // waits for a query and rethrows its failure
+   private static List<List<String>> get(Future<List<List<String>>> future) throws SQLException {
+      try{
+         return future.get();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while loading the dashboard");
+      }catch (ExecutionException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException)e.getCause();
+         throw new SQLException(e.getCause().getMessage());
+      }//end try
+   }//end get
+
+   /**
+    * @return the number and latency of the dashboard queries so far
+    */
+   public String report() {
+      return String.format("dashboard: %d queries (mean %.2f ms, p99 %.2f ms, max %.2f ms) on %d worker threads",
+         this._queries.get(), this._latency.getMean() / 1e6, this._latency.getQuantile(0.99) / 1e6,
+         this._latency.getMax() / 1e6, this._workers.getMaximumPoolSize());
+   }//end report
+
+   /**
+    * Stops the worker threads
+    */
+   public void close() {
+      this._workers.shutdownNow();
+   }//end close
+
+}//end ManagerDashboard
@@ -0,0 +1,223 @@
+/*
+ * Retail Query Metrics
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class times every database round trip and files it under the menu
+ * operation the calling thread is running, so the cost of one user action
+ * can be read as its latency and its number of queries. Recording takes a
+ * map lookup and a few atomic adds; nothing locks.
+ *
+ * The figures can be printed as a table or written in the Prometheus text
+ * format, once or periodically to a file.
+ *
+ */
+public class Metrics {
+
+   // operation of queries made outside any menu action
+   public static final String NO_OPERATION = "other";
+
+   // histogram bucket bounds of the Prometheus output, in seconds
+   private static final String[] BOUNDS = {"0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+      "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+   private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+   static {
+      for (int i = 0; i < BOUNDS.length; ++i)
+         BOUNDS_NANOS[i] = Math.round(Double.parseDouble(BOUNDS[i]) * 1e9);
+   }
+
+   /**
+    * The figures of one operation
+    */
+   private static class Operation {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong actions = new AtomicLong();
+      final AtomicLong roundTrips = new AtomicLong();
+   }//end Operation
+
+   private static final ConcurrentMap<String, Operation> OPERATIONS = new ConcurrentHashMap<String, Operation>();
+
+   private static final ThreadLocal<String> CURRENT = new ThreadLocal<String>() {
+      protected String initialValue() {
+         return NO_OPERATION;
+      }
+   };
+
+   private Metrics() {
+   }
+
+   /**
+    * Starts one action of an operation on the calling thread; the queries
+    * that follow are counted under it until the next action starts.
+    *
+    * @param operation the name of the operation, e.g. placeOrder
+    */
+   public static void begin(String operation) {
+      CURRENT.set(operation);
+      get(operation).actions.incrementAndGet();
+   }//end begin
+
+   /**
+    * Counts the queries of the calling thread under an action another
+    * thread began, e.g. on a worker thread running part of it
+    *
+    * @param operation the name of the operation
+    */
+   public static void join(String operation) {
+      CURRENT.set(operation);
+   }//end join
+
+   /**
+    * @return the operation the calling thread is running
+    */
+   public static String getOperation() {
+      return CURRENT.get();
+   }
+
+   /**
+    * Records a query of the current operation
+    *
+    * @param start the System.nanoTime() the query started at
+    * @param roundTrips the number of round trips the query took
+    */
+   public static void record(long start, int roundTrips) {
+      Operation op = get(CURRENT.get());
+      op.latency.record(System.nanoTime() - start);
+      op.roundTrips.addAndGet(roundTrips);
+   }//end record
+
+   private static Operation get(String name) {
+      Operation op = OPERATIONS.get(name);
+      if (op == null) {
+         Operation created = new Operation();
+         op = OPERATIONS.putIfAbsent(name, created);
+         if (op == null)
+            op = created;
+      }//end if
+      return op;
+   }//end get
+
+   private static List<String> names() {
+      List<String> names = new ArrayList<String>(OPERATIONS.keySet());
+      Collections.sort(names);
+      return names;
+   }//end names
+
+   /**
+    * @return a table of the query latency and queries per action of every operation
+    */
+   public static String report() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%-28s%9s%9s%11s%10s%10s%10s%10s%n",
+         "operation", "actions", "queries", "per action", "mean ms", "p50 ms", "p99 ms", "max ms"));
+      for (String name : names()) {
+         Operation op = OPERATIONS.get(name);
+         LatencyHistogram h = op.latency;
+         long actions = op.actions.get();
+         sb.append(String.format("%-28s%9d%9d%11s%10.2f%10.2f%10.2f%10.2f%n",
+            name, actions, op.roundTrips.get(),
+            actions == 0 ? "-" : String.format("%.1f", op.roundTrips.get() / (double) actions),
+            h.getMean() / 1e6, h.getQuantile(0.50) / 1e6, h.getQuantile(0.99) / 1e6, h.getMax() / 1e6));
+      }//end for
+      return sb.toString();
+   }//end report
+
+   /**
+    * Writes every operation's figures in the Prometheus text format
+    *
+    * @param out the writer the figures are written to
+    * @throws java.io.IOException when the writer fails
+    */
+   public static void writePrometheus(Writer out) throws IOException {
+      List<String> names = names();
+      out.write("# HELP retail_query_seconds Time of database queries per menu operation.\n");
+      out.write("# TYPE retail_query_seconds histogram\n");
+      for (String name : names) {
+         LatencyHistogram h = OPERATIONS.get(name).latency;
+         String label = "operation=\"" + name + "\"";
+         long count = h.getCount();
+         long[] cumulative = h.getCumulativeCounts(BOUNDS_NANOS);
+         for (int i = 0; i < BOUNDS.length; ++i)
+            out.write("retail_query_seconds_bucket{" + label + ",le=\"" + BOUNDS[i] + "\"} " + cumulative[i] + "\n");
+         out.write("retail_query_seconds_bucket{" + label + ",le=\"+Inf\"} " + count + "\n");
+         out.write("retail_query_seconds_sum{" + label + "} " + h.getSum() / 1e9 + "\n");
+         out.write("retail_query_seconds_count{" + label + "} " + count + "\n");
+      }//end for
+      out.write("# HELP retail_round_trips_total Database round trips per menu operation.\n");
+      out.write("# TYPE retail_round_trips_total counter\n");
+      for (String name : names)
+         out.write("retail_round_trips_total{operation=\"" + name + "\"} " + OPERATIONS.get(name).roundTrips.get() + "\n");
+      out.write("# HELP retail_actions_total Menu operations started.\n");
+      out.write("# TYPE retail_actions_total counter\n");
+      for (String name : names)
+         out.write("retail_actions_total{operation=\"" + name + "\"} " + OPERATIONS.get(name).actions.get() + "\n");
+   }//end writePrometheus
+
+   /**
+    * Writes the figures to a file. The file is replaced whole, so a reader
+    * never sees half of a dump.
+    *
+    * @param file the file to write
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public static void dump(File file) throws IOException {
+      File temp = new File(file.getPath() + ".tmp");
+      Writer out = new FileWriter(temp);
+      try{
+         writePrometheus(out);
+      }finally{
+         out.close();
+      }//end try
+      if (!temp.renameTo(file)) {
+         file.delete();
+         if (!temp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+      }//end if
+   }//end dump
+
+   /**
+    * Starts a background thread that dumps the figures to a file
+    *
+    * @param file the file to write
+    * @param interval milliseconds between dumps
+    */
+   public static void startDump(final File file, final long interval) {
+      Thread dumper = new Thread(new Runnable() {
+         public void run() {
+            while (true) {
+               try{
+                  Thread.sleep(interval);
+                  dump(file);
+               }catch (InterruptedException e){
+                  return;
+               }catch (IOException e){
+                  System.err.println(e.getMessage());
+               }//end try
+            }//end while
+         }
+      }, "metrics-dump");
+      dumper.setDaemon(true);
+      dumper.start();
+   }//end startDump
+
+}//end Metrics
@@ -0,0 +1,308 @@
+/*
+ * Retail Notification Listener
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class LISTENs on Postgres notification channels over a connection
+ * of its own and calls a handler for each notification. The bundled driver
+ * only reads notifications when a statement runs, so a background thread
+ * sends an empty query every poll interval. start connects and listens
+ * before it returns, so data loaded after it misses no change. When the
+ * connection is lost it reconnects, listens again and tells every handler,
+ * since notifications sent in between were missed.
+ *
+ * Besides the fixed channels of the handlers, channels can be subscribed
+ * and unsubscribed while the listener runs, for example one per cached
+ * store. Their notifications go to the handler registered for their
+ * prefix. A subscription wakes the background thread, and sync waits
+ * until it has been listened to.
+ *
+ */
+public class NotificationListener {
+
+   /**
+    * Receives the notifications of one channel
+    */
+   public interface Handler {
+      /**
+       * @param channel the channel, in lower case
+       * @param pid the backend process ID of the session that sent it
+       */
+      void notified(String channel, int pid);
+
+      /**
+       * Called after the listening connection was (re)opened; notifications
+       * sent while it was down are lost.
+       */
+      void reconnected();
+   }//end Handler
+
+   private static class Registration {
+      final String channel;
+      final boolean prefix;
+      final Handler handler;
+
+      Registration(String channel, boolean prefix, Handler handler) {
+         this.channel = channel;
+         this.prefix = prefix;
+         this.handler = handler;
+      }
+
+      boolean matches(String name) {
+         return this.prefix ? name.startsWith(this.channel) : name.equals(this.channel);
+      }
+   }//end Registration
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final long _pollInterval;
+   private final List<Registration> _registrations = new CopyOnWriteArrayList<Registration>();
+   private final Set<String> _subscribed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   private final Queue<String> _pending = new ConcurrentLinkedQueue<String>();
+   private volatile boolean _closed = false;
+
+   // wakes the background thread for a command; the counts and the state are guarded by it
+   private final Object _wake = new Object();
+   private long _queued = 0;
+   private long _issued = 0;
+   private boolean _connected = false;
+   private Thread _thread = null;
+
+   /**
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param pollInterval milliseconds between checks for notifications
+    */
+   public NotificationListener(String url, String user, String passwd, long pollInterval) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._pollInterval = pollInterval;
+   }//end NotificationListener
+
+   /**
+    * Registers a handler; channels registered after start are listened to
+    * from the next reconnect on, so register before starting.
+    *
+    * @param channel the channel name, in lower case
+    * @param handler the handler called for the channel's notifications
+    */
+   public void listen(String channel, Handler handler) {
+      this._registrations.add(new Registration(channel, false, handler));
+   }//end listen
+
+   /**
+    * Registers a handler for every subscribed channel starting with a prefix
+    *
+    * @param prefix the start of the channel names, in lower case
+    * @param handler the handler called for those channels' notifications
+    */
+   public void listenPrefix(String prefix, Handler handler) {
+      this._registrations.add(new Registration(prefix, true, handler));
+   }//end listenPrefix
+
+   /**
+    * Starts listening on a channel while running
+    *
+    * @param channel the channel name, in lower case
+    */
+   public void subscribe(String channel) {
+      if (this._subscribed.add(channel))
+         command("LISTEN " + channel);
+   }//end subscribe
+
+   /**
+    * Stops listening on a subscribed channel
+    *
+    * @param channel the channel name, in lower case
+    */
+   public void unsubscribe(String channel) {
+      if (this._subscribed.remove(channel))
+         command("UNLISTEN " + channel);
+   }//end unsubscribe
+
+   private void command(String command) {
+      synchronized (this._wake) {
+         this._pending.add(command);
+         ++this._queued;
+         this._wake.notifyAll();
+      }//end synchronized
+   }//end command
+
+   /**
+    * Waits until the subscriptions made so far are listened to. It gives
+    * up after two poll intervals, or at once while the listener is not
+    * connected; the handlers are told when it reconnects.
+    */
+   public void sync() {
+      boolean interrupted = false;
+      synchronized (this._wake) {
+         long target = this._queued;
+         long deadline = System.currentTimeMillis() + Math.max(1000L, 2 * this._pollInterval);
+         long left;
+         while (this._connected && this._issued < target && (left = deadline - System.currentTimeMillis()) > 0) {
+            try{
+               this._wake.wait(left);
+            }catch (InterruptedException e){
+               interrupted = true;
+            }//end try
+         }//end while
+      }//end synchronized
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }//end sync
+
+   /**
+    * Connects, listens on the channels registered so far and starts the
+    * background thread
+    *
+    * @throws java.sql.SQLException when the database cannot be reached
+    */
+   public synchronized void start() throws SQLException {
+      if (this._thread != null)
+         return;
+      final Connection conn = connect();
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            loop(conn);
+         }
+      }, "notification-listener");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end start
+
+   /**
+    * Stops the background thread and closes its connection
+    */
+   public synchronized void close() {
+      this._closed = true;
+      if (this._thread != null)
+         this._thread.interrupt();
+   }//end close
+
+   // opens the listening connection and listens on every channel; the commands queued before
+   // the channels are read are covered, the ones queued later stay pending
+   private Connection connect() throws SQLException {
+      Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      long covered;
+      try{
+         Statement stmt = conn.createStatement();
+         synchronized (this._wake) {
+            covered = this._queued;
+            this._pending.clear();
+         }//end synchronized
+         for (Registration r : this._registrations)
+            if (!r.prefix)
+               stmt.execute("LISTEN " + r.channel);
+         for (String channel : this._subscribed)
+            stmt.execute("LISTEN " + channel);
+         stmt.close();
+      }catch (SQLException e){
+         conn.close();
+         throw e;
+      }//end try
+      synchronized (this._wake) {
+         this._issued = covered;
+         this._connected = true;
+         this._wake.notifyAll();
+      }//end synchronized
+      return conn;
+   }//end connect
+
+   private void loop(Connection first) {
+      Connection conn = first;
+      while (!this._closed) {
+         try{
+            if (conn == null) {
+               conn = connect();
+               for (Registration r : this._registrations)
+                  r.handler.reconnected();
+            }//end if
+            Statement stmt = conn.createStatement();
+            while (!this._closed) {
+               String command;
+               while ((command = this._pending.poll()) != null) {
+                  stmt.execute(command);
+                  synchronized (this._wake) {
+                     ++this._issued;
+                     this._wake.notifyAll();
+                  }//end synchronized
+               }//end while
+               ResultSet rs = stmt.executeQuery("SELECT 1");
+               rs.close();
+               PGNotification[] notifications = ((PGConnection) conn).getNotifications();
+               if (notifications != null)
+                  for (PGNotification n : notifications)
+                     dispatch(n.getName(), n.getPID());
+               synchronized (this._wake) {
+                  if (this._pending.isEmpty())
+                     this._wake.wait(this._pollInterval);
+               }//end synchronized
+            }//end while
+         }catch (InterruptedException e){
+            return;
+         }catch (Exception e){
+            if (!this._closed)
+               System.err.println("notification listener: " + e.getMessage());
+            try{
+               Thread.sleep(Math.max(this._pollInterval, 5000));
+            }catch (InterruptedException ie){
+               return;
+            }//end try
+         }finally{
+            synchronized (this._wake) {
+               this._connected = false;
+               this._wake.notifyAll();
+            }//end synchronized
+            if (conn != null) {
+               try{
+                  conn.close();
+               }catch (SQLException e){
+                  // ignored.
+               }//end try
+            }//end if
+            conn = null;
+         }//end try
+      }//end while
+   }//end loop
+
+   private void dispatch(String channel, int pid) {
+      for (Registration r : this._registrations) {
+         if (!r.matches(channel))
+            continue;
+         try{
+            r.handler.notified(channel, pid);
+         }catch (RuntimeException e){
+            System.err.println("notification handler: " + e.getMessage());
+         }//end try
+      }//end for
+   }//end dispatch
+
+}//end NotificationListener
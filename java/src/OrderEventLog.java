@@ -0,0 +1,576 @@
+/*
+ * Retail Order Event Log
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * This class appends every order placed to a local log, so that rollups
+ * can be rebuilt or the orders replayed into another database without
+ * reading Orders. An order is one fixed-width binary record: orderNumber,
+ * customerID, storeID, a product ID, units, the order time in epoch
+ * milliseconds and a CRC32 of the rest. Product names get their IDs from a
+ * dictionary file next to the log, which is on disk before any record
+ * using a new ID is appended.
+ *
+ * The log is a directory of segment files, each named after the offset of
+ * its first record and mapped into memory at its full size, so an append
+ * is a copy into the mapping. A background thread forces the written
+ * records to disk every few milliseconds, one fsync for all the records
+ * appended since the last one; appends can wait for it when they must be
+ * durable on return. When a segment is full the next one is created. On
+ * open, the last segment is scanned up to its first record whose checksum
+ * does not match, and appending continues there. Whatever follows it in
+ * the segment is zeroed and forced to disk first, so a record of the
+ * crashed run that reached disk after a torn one is never read as new.
+ *
+ * A Reader starts at any offset and returns the records after it as they
+ * are appended, from this process or another one.
+ *
+ * An order is appended after Postgres has committed it, so a crash between
+ * the two leaves a committed order out of the log. orderNumber gaps do not
+ * tell such orders apart, since orders that fail also use up a number, so
+ * a replay or rebuild that must be complete has to compare the log's last
+ * orderNumbers with Orders.
+ *
+ */
+public class OrderEventLog {
+
+   // bytes per record: six fields and the checksum
+   static final int RECORD_SIZE = 32;
+   private static final int CHECKED_BYTES = 28;
+
+   static final String SEGMENT_SUFFIX = ".log";
+   static final String DICTIONARY = "products.dict";
+   private static final String LOCK = "lock";
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /**
+    * One order as it was logged
+    */
+   public static class Event {
+      // the position of the record in the log
+      public final long offset;
+      public final int orderNumber;
+      public final int customerID;
+      public final int storeID;
+      public final int productID;
+      public final int units;
+      // the order time in epoch milliseconds
+      public final long time;
+
+      Event(long offset, int orderNumber, int customerID, int storeID, int productID, int units, long time) {
+         this.offset = offset;
+         this.orderNumber = orderNumber;
+         this.customerID = customerID;
+         this.storeID = storeID;
+         this.productID = productID;
+         this.units = units;
+         this.time = time;
+      }
+   }//end Event
+
+   private final File _dir;
+   private final int _segmentRecords;
+   private final long _syncMillis;
+   private final boolean _waitForSync;
+   private final FileOutputStream _lockFile;
+   private final FileLock _lock;
+
+   // guarded by this
+   private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+   private final FileOutputStream _dictionaryFile;
+   private final Writer _dictionary;
+   private MappedByteBuffer _segment;
+   private ByteBuffer _writer;
+   private long _base;
+   private final CRC32 _crc = new CRC32();
+   private final ByteBuffer _record = ByteBuffer.allocate(RECORD_SIZE);
+   private boolean _closed = false;
+
+   // the offset after the last record appended, and after the last one forced to disk
+   private volatile long _appended;
+   private long _synced;
+   private final Object _syncLock = new Object();
+   private volatile Thread _thread = null;
+
+   private final AtomicLong _syncs = new AtomicLong();
+   private final AtomicLong _failures = new AtomicLong();
+   private final LatencyHistogram _syncLatency = new LatencyHistogram();
+
+   /**
+    * Opens the log in a directory, continuing after its last whole record
+    *
+    * @param dir the directory of the segments, created when missing
+    * @param segmentBytes the size of a segment file, rounded down to whole records
+    * @param syncMillis milliseconds between forcing the appended records to disk
+    * @param waitForSync whether an append returns only once its record is on disk
+    * @throws java.io.IOException when the log cannot be opened, or another process has it open
+    */
+   public OrderEventLog(File dir, int segmentBytes, long syncMillis, boolean waitForSync) throws IOException {
+      this._dir = dir;
+      this._segmentRecords = Math.max(1, segmentBytes / RECORD_SIZE);
+      this._syncMillis = syncMillis;
+      this._waitForSync = waitForSync;
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create the order event log " + dir);
+      this._lockFile = new FileOutputStream(new File(dir, LOCK));
+      this._lock = this._lockFile.getChannel().tryLock();
+      if (this._lock == null) {
+         this._lockFile.close();
+         throw new IOException("The order event log " + dir + " is in use by another process");
+      }//end if
+
+      File dictionary = new File(dir, DICTIONARY);
+      List<String> products = new ArrayList<String>();
+      int length = dictionary.exists() ? parseDictionary(Files.readAllBytes(dictionary.toPath()), products) : 0;
+      for (int id = 0; id < products.size(); ++id)
+         this._codes.put(products.get(id), id);
+      this._dictionaryFile = new FileOutputStream(dictionary, true);
+      // a line cut short by a crash is dropped, so the next one starts on a line of its own
+      this._dictionaryFile.getChannel().truncate(length);
+      this._dictionary = new OutputStreamWriter(this._dictionaryFile, UTF8);
+
+      List<Long> bases = segments(dir);
+      this._base = bases.isEmpty() ? 0 : bases.get(bases.size() - 1);
+      // the last segment keeps the size it was created with
+      File last = segmentFile(dir, this._base);
+      long size = last.length() >= RECORD_SIZE ? last.length() / RECORD_SIZE * RECORD_SIZE : (long)this._segmentRecords * RECORD_SIZE;
+      this._segment = map(last, size, FileChannel.MapMode.READ_WRITE);
+      int records = 0;
+      byte[] scratch = new byte[RECORD_SIZE];
+      while (records < this._segment.capacity() / RECORD_SIZE && valid(this._segment, records * RECORD_SIZE, scratch, this._crc))
+         ++records;
+      clearFrom(this._segment, records * RECORD_SIZE);
+      this._writer = this._segment.duplicate();
+      this._writer.position(records * RECORD_SIZE);
+      this._appended = this._base + records;
+      this._synced = this._appended;
+   }//end OrderEventLog
+
+   /**
+    * Appends an order
+    *
+    * @param orderNumber the orderNumber
+    * @param customerID the customerID
+    * @param storeID the storeID
+    * @param productName the product name, without padding
+    * @param units the units ordered
+    * @param time the order time in epoch milliseconds
+    * @return the offset of the record
+    * @throws java.io.IOException when the record cannot be written
+    */
+   public long append(int orderNumber, int customerID, int storeID, String productName, int units, long time) throws IOException {
+      long offset;
+      synchronized (this) {
+         if (this._closed)
+            throw new IOException("The order event log is closed");
+         try{
+            int productID = productID(productName);
+            if (!this._writer.hasRemaining())
+               roll();
+            ByteBuffer record = this._record;
+            record.putInt(0, orderNumber);
+            record.putInt(4, customerID);
+            record.putInt(8, storeID);
+            record.putInt(12, productID);
+            record.putInt(16, units);
+            record.putLong(20, time);
+            this._crc.reset();
+            this._crc.update(record.array(), 0, CHECKED_BYTES);
+            record.putInt(CHECKED_BYTES, (int)this._crc.getValue());
+            record.clear();
+            this._writer.put(record);
+            offset = this._appended;
+            this._appended = offset + 1;
+         }catch (IOException e){
+            this._failures.incrementAndGet();
+            throw e;
+         }//end try
+      }//end synchronized
+      if (this._waitForSync)
+         awaitSynced(offset + 1);
+      return offset;
+   }//end append
+
+   // the ID of a product, written to the dictionary the first time it is seen
+   private int productID(String productName) throws IOException {
+      Integer id = this._codes.get(productName);
+      if (id == null) {
+         id = this._codes.size();
+         this._dictionary.write(id + "," + productName + "\n");
+         this._dictionary.flush();
+         this._dictionaryFile.getFD().sync();
+         this._codes.put(productName, id);
+      }//end if
+      return id;
+   }//end productID
+
+   // zeroes a segment from a position on and forces it, unless it is zero there already
+   private static void clearFrom(MappedByteBuffer segment, int position) {
+      int dirty = position;
+      while (dirty < segment.capacity() && segment.get(dirty) == 0)
+         ++dirty;
+      if (dirty == segment.capacity())
+         return;
+      for (int i = dirty; i < segment.capacity(); ++i)
+         segment.put(i, (byte)0);
+      segment.force();
+   }//end clearFrom
+
+   // forces the full segment to disk and starts the next one
+   private void roll() throws IOException {
+      this._segment.force();
+      this._base += this._segment.capacity() / RECORD_SIZE;
+      this._segment = map(segmentFile(this._dir, this._base), (long)this._segmentRecords * RECORD_SIZE, FileChannel.MapMode.READ_WRITE);
+      this._writer = this._segment.duplicate();
+   }//end roll
+
+   /**
+    * Forces the records appended so far to disk
+    *
+    * @throws java.io.IOException when they cannot be forced
+    */
+   public void sync() throws IOException {
+      long target;
+      MappedByteBuffer segment;
+      synchronized (this) {
+         target = this._appended;
+         segment = this._segment;
+      }//end synchronized
+      synchronized (this._syncLock) {
+         if (target <= this._synced)
+            return;
+      }//end synchronized
+      long start = System.nanoTime();
+      // a segment rolled over since was forced by the roll
+      segment.force();
+      this._syncLatency.record(System.nanoTime() - start);
+      this._syncs.incrementAndGet();
+      synchronized (this._syncLock) {
+         this._synced = Math.max(this._synced, target);
+         this._syncLock.notifyAll();
+      }//end synchronized
+   }//end sync
+
+   // waits until the background thread has forced the offsets before the given one
+   private void awaitSynced(long offset) throws IOException {
+      synchronized (this._syncLock) {
+         boolean interrupted = false;
+         while (this._synced < offset) {
+            if (this._thread == null || !this._thread.isAlive())
+               throw new IOException("The order event log is not being synced");
+            try{
+               this._syncLock.wait(this._syncMillis + 1);
+            }catch (InterruptedException e){
+               interrupted = true;
+            }//end try
+         }//end while
+         if (interrupted)
+            Thread.currentThread().interrupt();
+      }//end synchronized
+   }//end awaitSynced
+
+   /**
+    * Starts a background thread that forces the appended records to disk
+    * every syncMillis
+    */
+   public synchronized void start() {
+      if (this._thread != null)
+         return;
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            Metrics.begin("orderEventSync");
+            while (!Thread.currentThread().isInterrupted()) {
+               try{
+                  Thread.sleep(OrderEventLog.this._syncMillis);
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+               try{
+                  sync();
+               }catch (IOException e){
+                  System.err.println(e.getMessage());
+               }//end try
+            }//end while
+         }
+      }, "order-event-sync");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end start
+
+   /**
+    * Stops the background thread, forces what is left and closes the log
+    */
+   public void close() {
+      Thread thread;
+      synchronized (this) {
+         if (this._closed)
+            return;
+         thread = this._thread;
+      }//end synchronized
+      if (thread != null) {
+         thread.interrupt();
+         try{
+            thread.join();
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }//end try
+      }//end if
+      try{
+         sync();
+      }catch (IOException e){
+         System.err.println(e.getMessage());
+      }//end try
+      synchronized (this) {
+         this._closed = true;
+         try{
+            this._dictionary.close();
+            this._lock.release();
+            this._lockFile.close();
+         }catch (IOException e){
+            System.err.println(e.getMessage());
+         }//end try
+      }//end synchronized
+   }//end close
+
+   /**
+    * @return the offset the next record is appended at
+    */
+   public long getAppended() {
+      return this._appended;
+   }
+
+   /**
+    * Opens a reader of this log
+    *
+    * @param offset the offset of the first record read
+    * @return a reader that returns the records of this log up to the last one appended
+    */
+   public Reader reader(long offset) {
+      return new Reader(this._dir, offset, this);
+   }//end reader
+
+   /**
+    * @return the records appended and how they were forced to disk
+    */
+   public String report() {
+      long syncs = this._syncs.get();
+      synchronized (this._syncLock) {
+         return String.format("order events: %d records through segment %d (%d records each), %d failed appends; " +
+            "%d syncs (mean %.2f ms, max %.2f ms), %.1f records per sync",
+            this._appended, this._base, this._segmentRecords, this._failures.get(),
+            syncs, this._syncLatency.getMean() / 1e6, this._syncLatency.getMax() / 1e6,
+            syncs == 0 ? 0.0 : (double)this._synced / syncs);
+      }//end synchronized
+   }//end report
+
+   /**
+    * Reads the records of a log from an offset on. When it reaches the last
+    * whole record, it returns null until more are appended. The reader of
+    * an OrderEventLog in the same process stops at the last record appended;
+    * a reader of a directory stops at the first record whose checksum does
+    * not match.
+    */
+   public static class Reader implements Closeable {
+      private final File _dir;
+      private final OrderEventLog _log;
+      private final byte[] _scratch = new byte[RECORD_SIZE];
+      private final ByteBuffer _record = ByteBuffer.wrap(this._scratch);
+      private final CRC32 _crc = new CRC32();
+      private MappedByteBuffer _segment = null;
+      private long _base;
+      private long _offset;
+      private List<String> _products = new ArrayList<String>();
+
+      /**
+       * @param dir the directory of the log
+       * @param offset the offset of the first record read
+       */
+      public Reader(File dir, long offset) {
+         this(dir, offset, null);
+      }
+
+      Reader(File dir, long offset, OrderEventLog log) {
+         this._dir = dir;
+         this._offset = offset;
+         this._log = log;
+      }
+
+      /**
+       * @return the next record, or null when none has been appended after it yet
+       * @throws java.io.IOException when the log cannot be read
+       */
+      public Event next() throws IOException {
+         if (this._log != null && this._offset >= this._log._appended)
+            return null;
+         if (this._segment == null || this._offset >= this._base + this._segment.capacity() / RECORD_SIZE) {
+            if (!open())
+               return null;
+         }//end if
+         int at = (int)(this._offset - this._base) * RECORD_SIZE;
+         if (!valid(this._segment, at, this._scratch, this._crc))
+            return null;
+         ByteBuffer record = this._record;
+         Event event = new Event(this._offset, record.getInt(0), record.getInt(4), record.getInt(8),
+            record.getInt(12), record.getInt(16), record.getLong(20));
+         ++this._offset;
+         return event;
+      }//end next
+
+      /**
+       * Waits for the next record
+       *
+       * @param timeoutMillis milliseconds to wait at most
+       * @return the next record, or null when none was appended in time
+       * @throws java.io.IOException when the log cannot be read
+       * @throws java.lang.InterruptedException when interrupted while waiting
+       */
+      public Event next(long timeoutMillis) throws IOException, InterruptedException {
+         long deadline = System.currentTimeMillis() + timeoutMillis;
+         Event event = next();
+         while (event == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+            event = next();
+         }//end while
+         return event;
+      }//end next
+
+      // maps the segment holding the offset, if it exists yet
+      private boolean open() throws IOException {
+         List<Long> bases = segments(this._dir);
+         for (int i = bases.size() - 1; i >= 0; --i) {
+            long base = bases.get(i);
+            if (base > this._offset)
+               continue;
+            File file = segmentFile(this._dir, base);
+            MappedByteBuffer segment = map(file, file.length(), FileChannel.MapMode.READ_ONLY);
+            if (this._offset >= base + segment.capacity() / RECORD_SIZE)
+               return false;
+            this._segment = segment;
+            this._base = base;
+            return true;
+         }//end for
+         return false;
+      }//end open
+
+      /**
+       * @return the offset of the next record read
+       */
+      public long getOffset() {
+         return this._offset;
+      }
+
+      /**
+       * @param productID the product ID of a record
+       * @return the product's name
+       * @throws java.io.IOException when the dictionary cannot be read
+       */
+      public String productName(int productID) throws IOException {
+         if (productID >= this._products.size()) {
+            List<String> products = new ArrayList<String>();
+            parseDictionary(Files.readAllBytes(new File(this._dir, DICTIONARY).toPath()), products);
+            this._products = products;
+         }//end if
+         if (productID >= this._products.size())
+            throw new IOException("Product " + productID + " is not in the dictionary");
+         return this._products.get(productID);
+      }//end productName
+
+      /**
+       * Lets go of the mapped segment
+       */
+      public void close() {
+         this._segment = null;
+      }//end close
+   }//end Reader
+
+   // whether the record at a position is whole; its bytes are left in scratch
+   private static boolean valid(ByteBuffer segment, int at, byte[] scratch, CRC32 crc) {
+      if (at + RECORD_SIZE > segment.capacity())
+         return false;
+      for (int i = 0; i < RECORD_SIZE; ++i)
+         scratch[i] = segment.get(at + i);
+      crc.reset();
+      crc.update(scratch, 0, CHECKED_BYTES);
+      return ByteBuffer.wrap(scratch).getInt(CHECKED_BYTES) == (int)crc.getValue();
+   }//end valid
+
+   private static MappedByteBuffer map(File file, long length, FileChannel.MapMode mode) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+      try{
+         // the mapping stays valid after the file is closed
+         return raf.getChannel().map(mode, 0, length);
+      }finally{
+         raf.close();
+      }//end try
+   }//end map
+
+   // the base offsets of the segments in the directory, in order
+   private static List<Long> segments(File dir) {
+      List<Long> bases = new ArrayList<Long>();
+      String[] names = dir.list();
+      if (names != null) {
+         for (String name : names) {
+            if (!name.endsWith(SEGMENT_SUFFIX))
+               continue;
+            try{
+               bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }catch (NumberFormatException e){
+               // not a segment
+            }//end try
+         }//end for
+      }//end if
+      Collections.sort(bases);
+      return bases;
+   }//end segments
+
+   private static File segmentFile(File dir, long base) {
+      return new File(dir, String.format("%020d%s", base, SEGMENT_SUFFIX));
+   }//end segmentFile
+
+   // adds the product names by ID and returns the length of the whole lines read
+   private static int parseDictionary(byte[] bytes, List<String> products) {
+      int start = 0;
+      for (int end = 0; end < bytes.length; ++end) {
+         if (bytes[end] != '\n')
+            continue;
+         String line = new String(bytes, start, end - start, UTF8);
+         int comma = line.indexOf(',');
+         if (comma < 0 || !line.substring(0, comma).equals(String.valueOf(products.size())))
+            break;
+         products.add(line.substring(comma + 1));
+         start = end + 1;
+      }//end for
+      return start;
+   }//end parseDictionary
+
+}//end OrderEventLog
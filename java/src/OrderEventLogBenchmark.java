@@ -0,0 +1,184 @@
+/*
+ * Order Event Log Benchmark
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures how many orders per second OrderEventLog appends, on
+ * one thread and on several, how many per second a Reader tails back, on
+ * its own and while orders are still being appended, and how many
+ * appends per second go through when every append waits for its fsync.
+ * The records read back are rolled up into units per store and checked
+ * against what was appended, and the log is reopened to check that it
+ * continues after its last record. No database is needed.
+ *
+ * The log is written to a directory of its own, which is deleted when done.
+ *
+ * Usage: java OrderEventLogBenchmark <dir> [events] [threads] [segmentBytes]
+ *
+ */
+public class OrderEventLogBenchmark {
+
+   private static final int STORES = 1000;
+   private static final int PRODUCTS = 500;
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: java [-classpath <classpath>] " + OrderEventLogBenchmark.class.getName() +
+            " <dir> [events] [threads] [segmentBytes]");
+         return;
+      }//end if
+      File dir = new File(args[0]);
+      final int events = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+      int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+      int segmentBytes = args.length > 3 ? Integer.parseInt(args[3]) : 64 << 20;
+      String[] list = dir.list();
+      if (list != null && list.length > 0)
+         throw new IllegalArgumentException(dir + " is not empty");
+      final String[] names = new String[PRODUCTS];
+      for (int p = 0; p < PRODUCTS; ++p)
+         names[p] = "Product " + p;
+
+      File async = new File(dir, "async");
+      File durable = new File(dir, "durable");
+      try{
+         final OrderEventLog log = new OrderEventLog(async, segmentBytes, 100, false);
+         log.start();
+         long[] units = new long[STORES + 1];
+
+         long start = System.nanoTime();
+         append(log, names, 0, events, units);
+         report("append 1 thread", events, System.nanoTime() - start);
+
+         start = System.nanoTime();
+         appendConcurrently(log, names, threads, events, units);
+         report("append " + threads + " threads", events, System.nanoTime() - start);
+
+         OrderEventLog.Reader reader = log.reader(0);
+         long[] read = new long[STORES + 1];
+         start = System.nanoTime();
+         long count = tail(reader, read, 2L * events);
+         report("tail-read", count, System.nanoTime() - start);
+
+         // a reader following a writer that keeps appending
+         final long[] more = new long[STORES + 1];
+         Thread writer = new Thread(new Runnable() {
+            public void run() {
+               try{
+                  append(log, names, 2 * events, events, more);
+               }catch (Exception e){
+                  System.err.println(e.getMessage());
+               }
+            }
+         });
+         start = System.nanoTime();
+         writer.start();
+         count = tail(reader, read, events);
+         writer.join();
+         report("tail while append", count, System.nanoTime() - start);
+         for (int s = 0; s <= STORES; ++s)
+            units[s] += more[s];
+         System.out.println(Arrays.equals(units, read) && reader.productName(0).equals(names[0]) ?
+            "OK: the units per store read back match the appends" : "FAILED: the units per store read back differ");
+         reader.close();
+         System.out.println(log.report());
+         log.close();
+
+         OrderEventLog reopened = new OrderEventLog(async, segmentBytes, 100, false);
+         System.out.println(reopened.getAppended() == 3L * events ?
+            "OK: the reopened log continues after record " + reopened.getAppended() : "FAILED: the reopened log continues at " + reopened.getAppended());
+         reopened.close();
+
+         int durableEvents = Math.min(events, 20000);
+         OrderEventLog synced = new OrderEventLog(durable, segmentBytes, 2, true);
+         synced.start();
+         start = System.nanoTime();
+         appendConcurrently(synced, names, threads * 4, durableEvents, new long[STORES + 1]);
+         report("durable " + threads * 4 + " threads", durableEvents, System.nanoTime() - start);
+         System.out.println(synced.report());
+         synced.close();
+      }finally{
+         delete(dir);
+      }//end try
+   }//end main
+
+   // appends orders numbered from first on and counts their units per store
+   private static void append(OrderEventLog log, String[] names, int first, int count, long[] units) throws Exception {
+      long now = System.currentTimeMillis();
+      for (int i = first; i < first + count; ++i) {
+         int store = 1 + i % STORES;
+         int n = 1 + i % 7;
+         log.append(i + 1, 2 + i % 5000, store, names[i % PRODUCTS], n, now + i);
+         units[store] += n;
+      }//end for
+   }//end append
+
+   private static void appendConcurrently(final OrderEventLog log, final String[] names, int threads, int count, long[] units) throws Exception {
+      final AtomicLong next = new AtomicLong();
+      final int total = count;
+      final long[][] counted = new long[threads][STORES + 1];
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int t = 0; t < threads; ++t) {
+         final long[] mine = counted[t];
+         Thread worker = new Thread(new Runnable() {
+            public void run() {
+               try{
+                  long i;
+                  while ((i = next.getAndIncrement()) < total)
+                     append(log, names, (int)(total + i), 1, mine);
+               }catch (Exception e){
+                  System.err.println(e.getMessage());
+               }
+            }
+         });
+         workers.add(worker);
+         worker.start();
+      }//end for
+      for (Thread worker : workers)
+         worker.join();
+      for (long[] mine : counted)
+         for (int s = 0; s <= STORES; ++s)
+            units[s] += mine[s];
+   }//end appendConcurrently
+
+   // reads count records, waiting for those not appended yet, and rolls up their units per store
+   private static long tail(OrderEventLog.Reader reader, long[] units, long count) throws Exception {
+      long read = 0;
+      while (read < count) {
+         OrderEventLog.Event event = reader.next(1000);
+         if (event == null)
+            break;
+         units[event.storeID] += event.units;
+         ++read;
+      }//end while
+      return read;
+   }//end tail
+
+   private static void report(String name, long events, long nanos) {
+      System.out.println(String.format("%-22s%12d events%10.1f ms%14.0f events/sec",
+         name, events, nanos / 1e6, events / (nanos / 1e9)));
+   }//end report
+
+   private static void delete(File file) {
+      File[] children = file.listFiles();
+      if (children != null)
+         for (File child : children)
+            delete(child);
+      file.delete();
+   }//end delete
+
+}//end OrderEventLogBenchmark
@@ -0,0 +1,130 @@
+/*
+ * Retail Order Importer
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class loads an orders CSV file, such as a day-end export of a point
+ * of sale system, in batches. Each batch is a single multi-row INSERT, so
+ * the statement-level order triggers see the whole batch at once and take
+ * the stock of every product down with one aggregated UPDATE. Orders get
+ * new order numbers; an orderNumber column in the file is ignored. The
+ * orders already happened at the till, so they are not checked for stock.
+ *
+ */
+public class OrderImporter {
+
+   // Postgres allows at most 65535 bound values in one statement
+   public static final int MAX_BATCH = 65535 / 5;
+
+   // rows between progress lines
+   private static final long PROGRESS_EVERY = 100000;
+
+   private final Retail _esql;
+   private final int _batchSize;
+   private final String _insert;
+
+   /**
+    * @param esql the session the orders are inserted through
+    * @param batchSize the number of orders per INSERT, at most MAX_BATCH
+    */
+   public OrderImporter(Retail esql, int batchSize) {
+      this._esql = esql;
+      this._batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH));
+      this._insert = insert(this._batchSize);
+   }//end OrderImporter
+
+   /**
+    * Loads every order of a CSV file with a header line and prints the load
+    * rate as it goes
+    *
+    * @param input the orders file
+    * @return the number of orders loaded
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.sql.SQLException when a batch is rejected; earlier batches stay loaded
+    */
+   public long run(BufferedReader input) throws IOException, SQLException {
+      String header = input.readLine();
+      if (header == null)
+         return 0;
+      int[] columns = columns(header.split(","));
+      Object[] params = new Object[this._batchSize * 5];
+      int rows = 0;
+      long total = 0;
+      long start = System.nanoTime();
+      String line;
+      while ((line = input.readLine()) != null) {
+         if (line.trim().isEmpty())
+            continue;
+         String[] fields = line.split(",");
+         int p = rows * 5;
+         for (int i = 0; i < 5; ++i)
+            params[p + i] = fields[columns[i]].trim();
+         params[p] = Integer.valueOf((String) params[p]);
+         params[p + 1] = Integer.valueOf((String) params[p + 1]);
+         params[p + 3] = Integer.valueOf((String) params[p + 3]);
+         if (++rows == this._batchSize) {
+            this._esql.executeUpdate(this._insert, params);
+            if ((total + rows) / PROGRESS_EVERY != total / PROGRESS_EVERY)
+               progress(total + rows, start);
+            total += rows;
+            rows = 0;
+         }//end if
+      }//end while
+      if (rows > 0) {
+         this._esql.executeUpdate(insert(rows), Arrays.copyOf(params, rows * 5));
+         total += rows;
+      }//end if
+      progress(total, start);
+      return total;
+   }//end run
+
+   private static void progress(long rows, long start) {
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("%d orders loaded in %.1f s: %.0f rows/sec", rows, seconds, rows / seconds));
+   }//end progress
+
+   // one multi-row INSERT for a batch of the given size
+   private static String insert(int rows) {
+      StringBuilder sql = new StringBuilder("INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES ");
+      for (int i = 0; i < rows; ++i)
+         sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?::timestamp)");
+      return sql.append(";").toString();
+   }//end insert
+
+   /**
+    * Finds the order columns in the header of an orders file
+    *
+    * @param header the column names
+    * @return the positions of customerID, storeID, productName, unitsOrdered and orderTime
+    */
+   static int[] columns(String[] header) {
+      List<String> names = new ArrayList<String>();
+      for (String name : header)
+         names.add(name.trim().toLowerCase());
+      String[] wanted = {"customerid", "storeid", "productname", "unitsordered", "ordertime"};
+      int[] columns = new int[wanted.length];
+      for (int i = 0; i < wanted.length; ++i) {
+         columns[i] = names.indexOf(wanted[i]);
+         if (columns[i] < 0)
+            throw new IllegalArgumentException("Orders file has no " + wanted[i] + " column: " + Arrays.toString(header));
+      }//end for
+      return columns;
+   }//end columns
+
+}//end OrderImporter
@@ -0,0 +1,99 @@
+/*
+ * Connection Pool Benchmark
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures how read throughput grows with the number of
+ * concurrent sessions sharing one Retail connection pool. Each session runs
+ * the queries behind the store, product and recent order screens for
+ * random users and stores from the shipped data set.
+ *
+ * Usage: java PoolBenchmark <dbname> <port> <user> [maxSessions] [seconds]
+ *
+ */
+public class PoolBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java [-classpath <classpath>] " + PoolBenchmark.class.getName() +
+            " <dbname> <port> <user> [maxSessions] [seconds]");
+         return;
+      }//end if
+      int maxSessions = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+      final long seconds = args.length > 4 ? Long.parseLong(args[4]) : 10;
+      if (System.getProperty("retail.pool.max") == null)
+         System.setProperty("retail.pool.max", String.valueOf(maxSessions));
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      final Retail esql = new Retail(args[0], args[1], args[2], "");
+      try{
+         System.out.println();
+         System.out.println(String.format("%-12s%-16s%-16s", "sessions", "ops/sec", "speedup"));
+         double base = 0;
+         for (int sessions = 1; sessions <= maxSessions; sessions *= 2) {
+            double rate = run(esql, sessions, seconds);
+            if (base == 0)
+               base = rate;
+            System.out.println(String.format("%-12d%-16.1f%-16.2f", sessions, rate, rate / base));
+         }//end for
+         System.out.println(String.format("statement cache hits: %d misses: %d",
+            esql.getStatementCacheHits(), esql.getStatementCacheMisses()));
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   private static double run(final Retail esql, int sessions, final long seconds) throws InterruptedException {
+      final AtomicLong ops = new AtomicLong();
+      final long deadline = System.nanoTime() + seconds * 1000000000L;
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < sessions; ++i) {
+         final Retail session = esql.newSession();
+         final Random random = new Random(i);
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               try{
+                  while (System.nanoTime() < deadline) {
+                     int user = 1 + random.nextInt(100);
+                     int store = 1 + random.nextInt(20);
+                     switch (random.nextInt(3)) {
+                        case 0:
+                           session.executeQueryAndReturnResult("SELECT S.storeID, S.name, calculate_distance(U.latitude, U.longitude, S.latitude, S.longitude) AS distance FROM Store S, Users U WHERE U.userID = ? AND calculate_distance(U.latitude, U.longitude, S.latitude, S.longitude)<= 30;", user);
+                           break;
+                        case 1:
+                           session.executeQueryAndReturnResult("SELECT P.productName as Name, P.numberOfUnits as Qty, P.pricePerUnit as Unit_Price FROM Product P WHERE P.storeID = ?;", store);
+                           break;
+                        default:
+                           session.executeQueryAndReturnResult("SELECT S.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime FROM Store S, Orders O WHERE ? = O.customerID AND O.storeID = S.storeID ORDER BY O.orderTime desc LIMIT 5;", user);
+                           break;
+                     }//end switch
+                     ops.incrementAndGet();
+                  }//end while
+               }catch (Exception e){
+                  System.err.println(e.getMessage());
+               }//end try
+            }
+         });
+         threads.add(t);
+         t.start();
+      }//end for
+      for (Thread t : threads)
+         t.join();
+      return ops.get() / (double) seconds;
+   }//end run
+
+}//end PoolBenchmark
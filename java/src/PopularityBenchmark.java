@@ -0,0 +1,108 @@
+/*
+ * Popularity Report Benchmark
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * This class times the popular product and popular customer reports as the
+ * order history of one store grows. Each step adds orders through the
+ * normal insert path, so update_order_counts_trigger keeps the rollups, and
+ * then times the GROUP BY over Orders the reports used to run next to the
+ * rollup reads they run now. Everything runs in one transaction that is
+ * rolled back, so the database is left as it was.
+ *
+ * Usage: java PopularityBenchmark <dbname> <port> <user> [storeID] [maxOrders] [repeats]
+ *
+ */
+public class PopularityBenchmark {
+
+   // the reports before the rollup tables existed
+   private static final String SCAN_PRODUCTS = "SELECT O.productName, COUNT(*) as NumOfOrders FROM Orders O WHERE O.storeID =? GROUP BY O.productName ORDER BY COUNT(*) DESC LIMIT 5;";
+   private static final String SCAN_CUSTOMERS = "SELECT O.customerID, U.name, COUNT(*) as NumOfOrders FROM Orders O, Users U WHERE O.storeID=? AND O.customerID=U.userID GROUP BY O.customerID, U.name ORDER BY COUNT(*) DESC LIMIT 5;";
+
+   // spreads generated orders over the store's products and the customers
+   private static final String GROW_ORDERS =
+      "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
+      "SELECT C.userID, P.storeID, P.productName, 1 + g % 5, CURRENT_TIMESTAMP::timestamp " +
+      "FROM generate_series(1, ?) g " +
+      "JOIN (SELECT storeID, productName, row_number() OVER () - 1 AS i, count(*) OVER () AS n FROM Product WHERE storeID = ?) P ON P.i = g % P.n " +
+      "JOIN (SELECT userID, row_number() OVER () - 1 AS j, count(*) OVER () AS m FROM Users WHERE type = 'customer') C ON C.j = (g * 7919) % C.m;";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java [-classpath <classpath>] " + PopularityBenchmark.class.getName() +
+            " <dbname> <port> <user> [storeID] [maxOrders] [repeats]");
+         return;
+      }//end if
+      int store = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+      int maxOrders = args.length > 4 ? Integer.parseInt(args[4]) : 1000000;
+      int repeats = args.length > 5 ? Integer.parseInt(args[5]) : 50;
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      Connection connection = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+      connection.setAutoCommit(false);
+      try{
+         PreparedStatement grow = connection.prepareStatement(GROW_ORDERS);
+         PreparedStatement[] reports = {
+            connection.prepareStatement(SCAN_PRODUCTS), connection.prepareStatement(Retail.POPULAR_PRODUCTS),
+            connection.prepareStatement(SCAN_CUSTOMERS), connection.prepareStatement(Retail.POPULAR_CUSTOMERS)};
+         String[] names = {"products scan", "products rollup", "customers scan", "customers rollup"};
+
+         System.out.println(String.format("%14s%18s%18s%18s%18s", "store orders", names[0] + " ms", names[1] + " ms", names[2] + " ms", names[3] + " ms"));
+         int added = 0;
+         for (int target = 1000; target <= maxOrders; target *= 10) {
+            grow.setInt(1, target - added);
+            grow.setInt(2, store);
+            grow.executeUpdate();
+            added = target;
+            connection.createStatement().execute("ANALYZE Orders");
+
+            StringBuilder line = new StringBuilder(String.format("%14d", count(connection, store)));
+            for (PreparedStatement report : reports) {
+               report.setInt(1, store);
+               run(report);
+               long start = System.nanoTime();
+               for (int i = 0; i < repeats; ++i)
+                  run(report);
+               line.append(String.format("%18.3f", (System.nanoTime() - start) / 1e6 / repeats));
+            }//end for
+            System.out.println(line);
+         }//end for
+      }finally{
+         connection.rollback();
+         connection.close();
+      }//end try
+   }//end main
+
+   private static void run(PreparedStatement report) throws Exception {
+      ResultSet rs = report.executeQuery();
+      while (rs.next())
+         rs.getString(1);
+      rs.close();
+   }//end run
+
+   private static long count(Connection connection, int store) throws Exception {
+      PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) FROM Orders WHERE storeID = ?");
+      stmt.setInt(1, store);
+      ResultSet rs = stmt.executeQuery();
+      rs.next();
+      long count = rs.getLong(1);
+      rs.close();
+      stmt.close();
+      return count;
+   }//end count
+
+}//end PopularityBenchmark
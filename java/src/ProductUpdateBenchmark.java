@@ -0,0 +1,202 @@
+/*
+ * Concurrent Product Update Check
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class checks that manager edits no longer lose the orders placed
+ * while the manager was typing. Order workers place one-unit orders for a
+ * product while editors each read the product, wait a think time and
+ * restock it by RESTOCK units; once the old way, writing back the stock
+ * they read plus RESTOCK, and once through update_product with a relative
+ * change checked against the version read. Afterwards the stock should be
+ * the starting stock, less the units ordered, plus the units restocked;
+ * every unit off is a lost update. Both ways print their orders and edits
+ * per second, and the check fails when the versioned way loses anything.
+ *
+ * The check adds a product of its own to the store and removes it, with
+ * its orders, when done; the order counts are then rebuilt.
+ *
+ * Usage: java ProductUpdateBenchmark <dbname> <port> <user> [storeID] [orderWorkers] [editors] [seconds] [thinkMillis]
+ *
+ */
+public class ProductUpdateBenchmark {
+
+   private static final String PRODUCT = "update benchmark";
+   private static final int STOCK = 1000000;
+   private static final int RESTOCK = 10;
+
+   // the edit before versions: the stock read plus the restock, written back as is
+   private static final String READ_STOCK = "SELECT numberOfUnits FROM ProductStock WHERE storeID = ? AND productName = ?;";
+   private static final String UNSAFE_UPDATE =
+      "WITH updated AS (UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE storeID = ? AND productName = ? RETURNING storeID, productName), " +
+      "cleared AS (UPDATE ProductStockShards S SET numberOfUnits = 0 FROM updated U WHERE S.storeID = U.storeID AND S.productName = U.productName) " +
+      "SELECT * FROM updated;";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java [-classpath <classpath>] " + ProductUpdateBenchmark.class.getName() +
+            " <dbname> <port> <user> [storeID] [orderWorkers] [editors] [seconds] [thinkMillis]");
+         return;
+      }//end if
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      int store = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+      int workers = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+      int editors = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+      int seconds = args.length > 6 ? Integer.parseInt(args[6]) : 10;
+      int think = args.length > 7 ? Integer.parseInt(args[7]) : 20;
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      Connection admin = DriverManager.getConnection(url, args[2], "");
+      boolean lost = false;
+      try{
+         List<Integer> customers = new ArrayList<Integer>();
+         ResultSet rs = admin.createStatement().executeQuery("SELECT userID FROM Users WHERE type = 'customer' ORDER BY userID;");
+         while (rs.next())
+            customers.add(rs.getInt(1));
+         rs.close();
+         if (customers.isEmpty())
+            throw new IllegalStateException("There are no customers to order with");
+         update(admin, "INSERT INTO Product (storeID, productName, numberOfUnits, pricePerUnit) VALUES (?, ?, ?, 1);", store, PRODUCT, STOCK);
+
+         System.out.println(String.format("%d order workers and %d editors (%d ms think time) on one product of store %d for %d s",
+            workers, editors, think, store, seconds));
+         System.out.println(String.format("%-16s%14s%14s%12s%14s", "edit", "orders/sec", "edits/sec", "conflicts", "lost units"));
+         run(url, args[2], admin, false, store, customers, workers, editors, seconds, think);
+         update(admin, "UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?;", STOCK, store, PRODUCT);
+         lost = run(url, args[2], admin, true, store, customers, workers, editors, seconds, think) != 0;
+      }finally{
+         update(admin, "DELETE FROM Orders WHERE storeID = ? AND productName = ?;", store, PRODUCT);
+         update(admin, "DELETE FROM Product WHERE storeID = ? AND productName = ?;", store, PRODUCT);
+         update(admin, "SELECT backfill_order_counts();");
+         admin.close();
+      }//end try
+      System.out.println(lost ? "FAILED: versioned edits lost updates" : "OK: versioned edits lost no updates");
+      if (lost)
+         System.exit(1);
+   }//end main
+
+   // runs orders and edits together and returns the units lost
+   private static long run(final String url, final String user, Connection admin, final boolean versioned, final int store,
+                           final List<Integer> customers, int workers, int editors, int seconds, final int think) throws Exception {
+      final AtomicLong ordered = new AtomicLong();
+      final AtomicLong edits = new AtomicLong();
+      final AtomicLong conflicts = new AtomicLong();
+      final CountDownLatch ready = new CountDownLatch(workers + editors);
+      final CountDownLatch go = new CountDownLatch(1);
+      final long[] window = new long[2];
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int w = 0; w < workers + editors; ++w) {
+         final boolean editor = w >= workers;
+         final int customer = customers.get(w % customers.size());
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               Connection conn = null;
+               boolean started = false;
+               try{
+                  conn = DriverManager.getConnection(url, user, "");
+                  ready.countDown();
+                  started = true;
+                  go.await();
+                  while (System.nanoTime() < window[1]) {
+                     if (!editor) {
+                        ResultSet rs = query(conn, Retail.PLACE_ORDER, customer, store, PRODUCT, 1);
+                        if (rs.next())
+                           ordered.incrementAndGet();
+                        rs.close();
+                     }else if (versioned) {
+                        // read, think, and retry from a fresh read when another editor got there first
+                        while (true) {
+                           ResultSet rs = query(conn, Retail.READ_PRODUCT, store, PRODUCT);
+                           rs.next();
+                           int version = rs.getInt(5);
+                           int units = rs.getInt(3);
+                           rs.close();
+                           Thread.sleep(think);
+                           rs = query(conn, Retail.UPDATE_PRODUCT, store, PRODUCT, version, false, units, RESTOCK, 1.0);
+                           boolean updated = rs.next() && rs.getString(6).equals("updated");
+                           rs.close();
+                           if (updated)
+                              break;
+                           conflicts.incrementAndGet();
+                        }//end while
+                        edits.incrementAndGet();
+                     }else {
+                        ResultSet rs = query(conn, READ_STOCK, store, PRODUCT);
+                        rs.next();
+                        int units = rs.getInt(1);
+                        rs.close();
+                        Thread.sleep(think);
+                        query(conn, UNSAFE_UPDATE, units + RESTOCK, 1.0, store, PRODUCT).close();
+                        edits.incrementAndGet();
+                     }//end if
+                  }//end while
+               }catch (Exception e){
+                  System.err.println(e.getMessage());
+               }finally{
+                  if (!started)
+                     ready.countDown();
+                  try{
+                     if (conn != null)
+                        conn.close();
+                  }catch (SQLException e){
+                     // ignored.
+                  }//end try
+               }//end try
+            }
+         });
+         threads.add(t);
+         t.start();
+      }//end for
+      ready.await();
+      window[0] = System.nanoTime();
+      window[1] = window[0] + seconds * 1000000000L;
+      go.countDown();
+      for (Thread t : threads)
+         t.join();
+      double elapsed = (System.nanoTime() - window[0]) / 1e9;
+
+      ResultSet rs = query(admin, READ_STOCK, store, PRODUCT);
+      rs.next();
+      long stock = rs.getLong(1);
+      rs.close();
+      long lost = STOCK - ordered.get() + RESTOCK * edits.get() - stock;
+      System.out.println(String.format("%-16s%14.0f%14.1f%12d%14d", versioned ? "versioned" : "read and write",
+         ordered.get() / elapsed, edits.get() / elapsed, conflicts.get(), lost));
+      return lost;
+   }//end run
+
+   private static ResultSet query(Connection conn, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(sql);
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+      return stmt.executeQuery();
+   }//end query
+
+   private static void update(Connection conn, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(sql);
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+      stmt.execute();
+      stmt.close();
+   }//end update
+
+}//end ProductUpdateBenchmark
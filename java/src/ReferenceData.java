@@ -0,0 +1,210 @@
+/*
+ * Retail Reference Data
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is an immutable snapshot of the Store and Warehouse tables.
+ * Store and warehouse listings, store ID and warehouse ID checks, and the
+ * check that a manager runs a store are all answered from it without a
+ * round trip, as is the warehouse nearest to each store. A changed table
+ * is handled by loading a new snapshot and swapping it in.
+ *
+ */
+public class ReferenceData {
+
+   /**
+    * One Warehouse row
+    */
+   public static class Warehouse {
+      public final int warehouseID;
+      public final String area;
+      public final double latitude;
+      public final double longitude;
+
+      public Warehouse(int warehouseID, String area, double latitude, double longitude) {
+         this.warehouseID = warehouseID;
+         this.area = area;
+         this.latitude = latitude;
+         this.longitude = longitude;
+      }
+   }//end Warehouse
+
+   private static final Comparator<StoreLocator.Store> STORE_ORDER = new Comparator<StoreLocator.Store>() {
+      public int compare(StoreLocator.Store a, StoreLocator.Store b) {
+         return Integer.compare(a.storeID, b.storeID);
+      }
+   };
+
+   private final long _loadedAt;
+   private final StoreLocator _locator;
+   private final List<StoreLocator.Store> _stores;
+   private final Map<Integer, List<StoreLocator.Store>> _byManager;
+   private final List<Warehouse> _warehouses;
+   private final Map<Integer, Warehouse> _warehouseByID;
+   private final Map<Integer, Warehouse> _nearestWarehouse;
+
+   /**
+    * @param stores every Store row
+    * @param warehouses every Warehouse row
+    */
+   public ReferenceData(List<StoreLocator.Store> stores, List<Warehouse> warehouses) {
+      this._loadedAt = System.currentTimeMillis();
+      this._locator = new StoreLocator(stores);
+
+      List<StoreLocator.Store> sorted = new ArrayList<StoreLocator.Store>(stores);
+      Collections.sort(sorted, STORE_ORDER);
+      this._stores = Collections.unmodifiableList(sorted);
+      Map<Integer, List<StoreLocator.Store>> byManager = new HashMap<Integer, List<StoreLocator.Store>>();
+      for (StoreLocator.Store s : sorted) {
+         List<StoreLocator.Store> managed = byManager.get(s.managerID);
+         if (managed == null) {
+            managed = new ArrayList<StoreLocator.Store>();
+            byManager.put(s.managerID, managed);
+         }//end if
+         managed.add(s);
+      }//end for
+      this._byManager = byManager;
+
+      this._warehouses = Collections.unmodifiableList(new ArrayList<Warehouse>(warehouses));
+      this._warehouseByID = new HashMap<Integer, Warehouse>();
+      for (Warehouse w : warehouses)
+         this._warehouseByID.put(w.warehouseID, w);
+
+      // same euclidean distance as calculate_distance; ties go to the lower warehouseID
+      this._nearestWarehouse = new HashMap<Integer, Warehouse>();
+      for (StoreLocator.Store s : sorted) {
+         Warehouse nearest = null;
+         double best = Double.MAX_VALUE;
+         for (Warehouse w : this._warehouses) {
+            double d = Math.sqrt((s.latitude - w.latitude) * (s.latitude - w.latitude)
+               + (s.longitude - w.longitude) * (s.longitude - w.longitude));
+            if (d < best) {
+               best = d;
+               nearest = w;
+            }//end if
+         }//end for
+         if (nearest != null)
+            this._nearestWarehouse.put(s.storeID, nearest);
+      }//end for
+   }//end ReferenceData
+
+   /**
+    * @return the System.currentTimeMillis() the snapshot was built at
+    */
+   public long getLoadedAt() {
+      return this._loadedAt;
+   }
+
+   /**
+    * @return the location index of the stores
+    */
+   public StoreLocator getLocator() {
+      return this._locator;
+   }
+
+   /**
+    * @return every store, by storeID
+    */
+   public List<StoreLocator.Store> getStores() {
+      return this._stores;
+   }
+
+   /**
+    * @param managerID a userID
+    * @return the stores the user manages, by storeID
+    */
+   public List<StoreLocator.Store> getManagedStores(int managerID) {
+      List<StoreLocator.Store> managed = this._byManager.get(managerID);
+      return managed == null ? Collections.<StoreLocator.Store>emptyList() : Collections.unmodifiableList(managed);
+   }//end getManagedStores
+
+   /**
+    * @param storeID a storeID
+    * @return the store, or null when it does not exist
+    */
+   public StoreLocator.Store getStore(int storeID) {
+      return this._locator.get(storeID);
+   }
+
+   /**
+    * @param storeID a storeID
+    * @param managerID a userID
+    * @return whether the store exists and the user manages it
+    */
+   public boolean isManager(int storeID, int managerID) {
+      StoreLocator.Store s = this._locator.get(storeID);
+      return s != null && s.managerID == managerID;
+   }//end isManager
+
+   /**
+    * @return every warehouse, by warehouseID
+    */
+   public List<Warehouse> getWarehouses() {
+      return this._warehouses;
+   }
+
+   /**
+    * @param warehouseID a warehouseID
+    * @return the warehouse, or null when it does not exist
+    */
+   public Warehouse getWarehouse(int warehouseID) {
+      return this._warehouseByID.get(warehouseID);
+   }
+
+   /**
+    * @param storeID a storeID
+    * @return the warehouse nearest to the store, or null when either does not exist
+    */
+   public Warehouse getNearestWarehouse(int storeID) {
+      return this._nearestWarehouse.get(storeID);
+   }
+
+   /**
+    * @param stores stores to list
+    * @return storeID, name and dateEstablished rows for printResult
+    */
+   public static List<List<String>> storeRows(List<StoreLocator.Store> stores) {
+      List<List<String>> rows = new ArrayList<List<String>>(stores.size());
+      for (StoreLocator.Store s : stores) {
+         List<String> row = new ArrayList<String>(3);
+         row.add(String.valueOf(s.storeID));
+         row.add(s.name);
+         row.add(s.dateEstablished);
+         rows.add(row);
+      }//end for
+      return rows;
+   }//end storeRows
+
+   /**
+    * @return warehouseID, area, latitude and longitude rows for printResult
+    */
+   public List<List<String>> warehouseRows() {
+      List<List<String>> rows = new ArrayList<List<String>>(this._warehouses.size());
+      for (Warehouse w : this._warehouses) {
+         List<String> row = new ArrayList<String>(4);
+         row.add(String.valueOf(w.warehouseID));
+         row.add(w.area);
+         row.add(String.valueOf(w.latitude));
+         row.add(String.valueOf(w.longitude));
+         rows.add(row);
+      }//end for
+      return rows;
+   }//end warehouseRows
+
+}//end ReferenceData
@@ -0,0 +1,122 @@
+/*
+ * Result Renderer Benchmark
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class compares ResultRenderer with the row building that
+ * executeQueryAndPrintResult used before it, on rows shaped like the Orders
+ * table with char(n) padding. Both write into a stream that discards its
+ * bytes, so only the formatting cost is timed. Every variant is run a few
+ * times first so the JIT has compiled it.
+ *
+ * Usage: java RendererBenchmark [rows] [rounds]
+ *
+ */
+public class RendererBenchmark {
+
+   private static final String[] COLUMNS = {"ordernumber", "customerid", "storeid", "productname", "unitsordered", "ordertime"};
+
+   /**
+    * A stream that only counts what is written to it
+    */
+   private static class NullStream extends OutputStream {
+      long bytes;
+
+      public void write(int b) {
+         ++this.bytes;
+      }
+
+      public void write(byte[] b, int off, int len) {
+         this.bytes += len;
+      }
+   }//end NullStream
+
+   public static void main(String[] args) throws Exception {
+      int rowCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      List<List<String>> rows = generate(rowCount);
+
+      for (int i = 0; i < 2; ++i) {
+         legacy(rows);
+         renderer(rows, ResultRenderer.Format.TABLE);
+      }//end for
+
+      for (int r = 1; r <= rounds; ++r) {
+         long start = System.nanoTime();
+         long bytes = legacy(rows);
+         report("legacy table", rowCount, bytes, System.nanoTime() - start);
+
+         start = System.nanoTime();
+         bytes = renderer(rows, ResultRenderer.Format.TABLE);
+         report("renderer table", rowCount, bytes, System.nanoTime() - start);
+
+         start = System.nanoTime();
+         bytes = renderer(rows, ResultRenderer.Format.CSV);
+         report("renderer csv", rowCount, bytes, System.nanoTime() - start);
+      }//end for
+   }//end main
+
+   // the loop executeQueryAndPrintResult ran, with NULLs skipped so it does not throw
+   private static long legacy(List<List<String>> rows) {
+      NullStream sink = new NullStream();
+      PrintStream out = new PrintStream(sink, true);
+      boolean outputHeader = true;
+      for (List<String> record : rows) {
+         if (outputHeader) {
+            for (int i = 0; i < COLUMNS.length; ++i)
+               out.print(String.format("%-25s", COLUMNS[i]));
+            out.println();
+            outputHeader = false;
+         }//end if
+         String row = "";
+         for (String value : record)
+            row += String.format("%-25s", value == null ? "" : value.trim());
+         out.println(row);
+      }//end for
+      return sink.bytes;
+   }//end legacy
+
+   private static long renderer(List<List<String>> rows, ResultRenderer.Format format) throws Exception {
+      NullStream sink = new NullStream();
+      new ResultRenderer(new PrintStream(sink, true), format).render(COLUMNS, rows);
+      return sink.bytes;
+   }//end renderer
+
+   private static void report(String name, int rows, long bytes, long nanos) {
+      System.out.println(String.format("%-16s%10d rows%12.1f ms%12.0f rows/sec%10.1f MB",
+         name, rows, nanos / 1e6, rows / (nanos / 1e9), bytes / 1e6));
+   }//end report
+
+   private static List<List<String>> generate(int count) {
+      List<List<String>> rows = new ArrayList<List<String>>(count);
+      for (int i = 1; i <= count; ++i) {
+         String product = pad("Product " + (i % 97), 30);
+         rows.add(Arrays.asList(String.valueOf(i), String.valueOf(i % 5000 + 1), String.valueOf(i % 20 + 1),
+            product, String.valueOf(i % 9 + 1), i % 1000 == 0 ? null : "2023-04-11 10:" + (i % 60) + ":00"));
+      }//end for
+      return rows;
+   }//end generate
+
+   private static String pad(String value, int width) {
+      StringBuilder sb = new StringBuilder(value);
+      while (sb.length() < width)
+         sb.append(' ');
+      return sb.toString();
+   }//end pad
+
+}//end RendererBenchmark
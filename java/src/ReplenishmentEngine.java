@@ -0,0 +1,187 @@
+/*
+ * Retail Replenishment Engine
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class restocks products that ran low without a manager asking. Each
+ * tick scans the next few stores, in storeID order, for products under
+ * their store's reorder point and restocks them up to the store's restock
+ * level from the warehouse nearest the store. The restocks of a store are
+ * submitted as one batch of supply requests under the store's manager.
+ * Scanning a slice of stores per tick, as a range of the Product primary
+ * key, bounds the cost of a tick however many stores there are.
+ *
+ */
+public class ReplenishmentEngine {
+
+   // products of a range of stores under their reorder point; stores without a policy use the defaults
+   static final String LOW_STOCK =
+      "SELECT P.storeID, P.productName, P.numberOfUnits, COALESCE(R.restockTo, ?) " +
+      "FROM ProductStock P LEFT JOIN ReorderPolicy R ON R.storeID = P.storeID " +
+      "WHERE P.storeID BETWEEN ? AND ? AND P.numberOfUnits < COALESCE(R.reorderPoint, ?) " +
+      "ORDER BY P.storeID, P.productName;";
+
+   // reorder point and restock level of stores without a ReorderPolicy row
+   static final int REORDER_POINT = Integer.getInteger("retail.replenish.reorderPoint", 10);
+   static final int RESTOCK_TO = Integer.getInteger("retail.replenish.restockTo", 50);
+
+   private final Retail _esql;
+   private final long _interval;
+   private final int _storesPerTick;
+   private final int _reorderPoint;
+   private final int _restockTo;
+   private int _next = 0;
+   private Thread _thread = null;
+
+   private final LatencyHistogram _scans = new LatencyHistogram();
+   private final AtomicLong _storesScanned = new AtomicLong();
+   private final AtomicLong _requests = new AtomicLong();
+   private final AtomicLong _units = new AtomicLong();
+   private final AtomicLong _failures = new AtomicLong();
+
+   /**
+    * @param esql the session the stock is read and the requests are submitted through
+    * @param interval milliseconds between ticks
+    * @param storesPerTick the number of stores scanned per tick
+    * @param reorderPoint the default number of units under which a product is restocked
+    * @param restockTo the default number of units a product is restocked up to
+    */
+   public ReplenishmentEngine(Retail esql, long interval, int storesPerTick, int reorderPoint, int restockTo) {
+      this._esql = esql;
+      this._interval = interval;
+      this._storesPerTick = Math.max(1, storesPerTick);
+      this._reorderPoint = reorderPoint;
+      this._restockTo = Math.max(reorderPoint, restockTo);
+   }//end ReplenishmentEngine
+
+   /**
+    * Scans the next slice of stores and restocks their low products
+    *
+    * @return the number of supply requests submitted
+    * @throws java.sql.SQLException when the stock cannot be read
+    */
+   public synchronized int tick() throws SQLException {
+      ReferenceData reference = this._esql.getReferenceData();
+      List<StoreLocator.Store> stores = reference.getStores();
+      if (stores.isEmpty())
+         return 0;
+      if (this._next >= stores.size())
+         this._next = 0;
+      int last = Math.min(this._next + this._storesPerTick, stores.size()) - 1;
+      int from = stores.get(this._next).storeID, to = stores.get(last).storeID;
+      this._storesScanned.addAndGet(last - this._next + 1);
+      this._next = last + 1;
+
+      long start = System.nanoTime();
+      List<List<String>> low = this._esql.executeQueryAndReturnResult(LOW_STOCK, this._restockTo, from, to, this._reorderPoint);
+      this._scans.record(System.nanoTime() - start);
+
+      Map<Integer, List<SupplyImporter.Line>> byStore = new LinkedHashMap<Integer, List<SupplyImporter.Line>>();
+      for (List<String> row : low) {
+         int storeID = Integer.parseInt(row.get(0).trim());
+         List<SupplyImporter.Line> lines = byStore.get(storeID);
+         if (lines == null) {
+            lines = new ArrayList<SupplyImporter.Line>();
+            byStore.put(storeID, lines);
+         }//end if
+         int units = Integer.parseInt(row.get(3).trim()) - Integer.parseInt(row.get(2).trim());
+         if (units > 0)
+            lines.add(new SupplyImporter.Line(row.get(1), units));
+      }//end for
+
+      int submitted = 0;
+      for (Map.Entry<Integer, List<SupplyImporter.Line>> e : byStore.entrySet()) {
+         StoreLocator.Store store = reference.getStore(e.getKey());
+         ReferenceData.Warehouse warehouse = reference.getNearestWarehouse(e.getKey());
+         if (store == null || warehouse == null || e.getValue().isEmpty())
+            continue;
+         try{
+            this._esql.submitSupplyBatch(store.managerID, warehouse.warehouseID, store.storeID, e.getValue());
+         }catch (SQLException ex){
+            // a product removed since the scan; the store is tried again next round
+            this._failures.incrementAndGet();
+            System.err.println("replenishment of store " + store.storeID + ": " + ex.getMessage());
+            continue;
+         }//end try
+         submitted += e.getValue().size();
+         for (SupplyImporter.Line line : e.getValue())
+            this._units.addAndGet(line.units);
+      }//end for
+      this._requests.addAndGet(submitted);
+      return submitted;
+   }//end tick
+
+   /**
+    * Scans every store once
+    *
+    * @return the number of supply requests submitted
+    * @throws java.sql.SQLException when the stock cannot be read
+    */
+   public synchronized int runOnce() throws SQLException {
+      int stores = this._esql.getReferenceData().getStores().size();
+      this._next = 0;
+      int submitted = 0;
+      for (int scanned = 0; scanned < stores; scanned += this._storesPerTick)
+         submitted += tick();
+      return submitted;
+   }//end runOnce
+
+   /**
+    * Starts a background thread that ticks every interval
+    */
+   public synchronized void start() {
+      if (this._thread != null)
+         return;
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            Metrics.begin("replenish");
+            while (!Thread.currentThread().isInterrupted()) {
+               try{
+                  Thread.sleep(ReplenishmentEngine.this._interval);
+                  tick();
+               }catch (InterruptedException e){
+                  return;
+               }catch (SQLException e){
+                  System.err.println(e.getMessage());
+               }//end try
+            }//end while
+         }
+      }, "replenishment");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end start
+
+   /**
+    * Stops the background thread
+    */
+   public synchronized void close() {
+      if (this._thread != null)
+         this._thread.interrupt();
+   }//end close
+
+   /**
+    * @return the scan time, stores scanned and supply requests generated so far
+    */
+   public String report() {
+      return String.format("replenishment: %d scans (mean %.2f ms, p99 %.2f ms, max %.2f ms), %d stores scanned, %d requests for %d units, %d failed batches",
+         this._scans.getCount(), this._scans.getMean() / 1e6, this._scans.getQuantile(0.99) / 1e6, this._scans.getMax() / 1e6,
+         this._storesScanned.get(), this._requests.get(), this._units.get(), this._failures.get());
+   }//end report
+
+}//end ReplenishmentEngine
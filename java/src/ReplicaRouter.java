@@ -0,0 +1,258 @@
+/*
+ * Retail Replica Router
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class sends the read-only reports to a hot standby replica and
+ * everything else to the primary. A background thread samples the
+ * primary's WAL position and then how far the replica has replayed, which
+ * is also the replication lag reported in the metrics. A session that
+ * wrote remembers when its write returned; its reads stay on the primary
+ * until the replica has replayed the first position sampled after that,
+ * which is past the write's commit, so a session always sees its own
+ * orders and updates without a round trip of its own. While the replica
+ * cannot be reached every read goes to the primary.
+ *
+ */
+public class ReplicaRouter {
+
+   static final String PRIMARY_LSN = "SELECT pg_current_wal_lsn()::text;";
+   // the time a session that never wrote passes to borrow
+   static final long NO_WRITE = Long.MIN_VALUE;
+
+   // primary positions remembered; older writes are compared with the oldest
+   private static final int SAMPLES = 64;
+
+   static final String REPLAY_STATUS =
+      "SELECT pg_last_wal_replay_lsn()::text, " +
+      "COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0)::bigint;";
+
+   private final ConnectionPool _primary;
+   private final ConnectionPool _replica;
+   private final Set<String> _reads;
+   private final long _interval;
+   private Thread _thread = null;
+
+   // the last WAL position the replica reported as replayed, 0 before the first poll
+   private final AtomicLong _replayed = new AtomicLong();
+
+   // the latest primary positions and the System.nanoTime() their sampling started at, oldest
+   // first from _sampleStart on; guarded by themselves
+   private final long[] _sampledAt = new long[SAMPLES];
+   private final long[] _sampledLSN = new long[SAMPLES];
+   private int _sampleStart = 0;
+   private int _sampleCount = 0;
+   private volatile boolean _reachable = true;
+
+   private final AtomicLong _replicaReads = new AtomicLong();
+   private final AtomicLong _pinnedReads = new AtomicLong();
+   private final AtomicLong _fallbacks = new AtomicLong();
+   private final AtomicLong _lagBytes = new AtomicLong();
+   private final AtomicLong _lagMillis = new AtomicLong();
+   private final AtomicLong _maxLagBytes = new AtomicLong();
+
+   /**
+    * @param primary the pool of the primary
+    * @param replica the pool of the replica
+    * @param reads the statements that may run on the replica
+    * @param interval milliseconds between polls of the replica's position
+    */
+   public ReplicaRouter(ConnectionPool primary, ConnectionPool replica, Collection<String> reads, long interval) {
+      this._primary = primary;
+      this._replica = replica;
+      this._reads = new HashSet<String>(reads);
+      this._interval = interval;
+   }//end ReplicaRouter
+
+   /**
+    * Takes a connection for a statement: a registered read goes to the
+    * replica once it has replayed the session's last write, anything else
+    * to the primary
+    *
+    * @param sql the statement about to run
+    * @param wroteAt the System.nanoTime() the session's last write returned at, NO_WRITE if none
+    * @return a connection that must be given back with release
+    * @throws java.sql.SQLException when no connection becomes available
+    */
+   public ConnectionPool.PooledConnection borrow(String sql, long wroteAt) throws SQLException {
+      if (!this._reads.contains(sql) || !this._reachable)
+         return this._primary.borrow();
+      if (!replayed(wroteAt)) {
+         this._pinnedReads.incrementAndGet();
+         return this._primary.borrow();
+      }//end if
+      try{
+         ConnectionPool.PooledConnection pc = this._replica.borrow();
+         this._replicaReads.incrementAndGet();
+         return pc;
+      }catch (SQLException e){
+         // the next poll brings the replica back
+         this._reachable = false;
+         this._fallbacks.incrementAndGet();
+         return this._primary.borrow();
+      }//end try
+   }//end borrow
+
+   // whether the replica has replayed a position the primary reached after a write returned
+   private boolean replayed(long wroteAt) {
+      if (wroteAt == NO_WRITE)
+         return true;
+      synchronized (this._sampledAt) {
+         for (int i = 0; i < this._sampleCount; ++i) {
+            int j = (this._sampleStart + i) % SAMPLES;
+            if (this._sampledAt[j] - wroteAt > 0)
+               return this._replayed.get() >= this._sampledLSN[j];
+         }//end for
+      }//end synchronized
+      // no position was sampled since the write
+      return false;
+   }//end replayed
+
+   // remembers a primary position and when its sampling started
+   private void sample(long at, long lsn) {
+      synchronized (this._sampledAt) {
+         int j = (this._sampleStart + this._sampleCount) % SAMPLES;
+         if (this._sampleCount == SAMPLES)
+            this._sampleStart = (this._sampleStart + 1) % SAMPLES;
+         else
+            ++this._sampleCount;
+         this._sampledAt[j] = at;
+         this._sampledLSN[j] = lsn;
+      }//end synchronized
+   }//end sample
+
+   /**
+    * Gives a connection back to the pool it came from
+    *
+    * @param pc the connection returned by borrow
+    */
+   public void release(ConnectionPool.PooledConnection pc) {
+      if (pc != null && this._replica.owns(pc))
+         this._replica.release(pc);
+      else
+         this._primary.release(pc);
+   }//end release
+
+   /**
+    * @return the primary's current WAL position, at or past every commit made so far
+    * @throws java.sql.SQLException when the primary cannot be asked
+    */
+   public long currentLSN() throws SQLException {
+      ConnectionPool.PooledConnection pc = this._primary.borrow();
+      try{
+         ResultSet rs = pc.getStatements().prepare(PRIMARY_LSN).executeQuery();
+         rs.next();
+         long lsn = parseLSN(rs.getString(1));
+         rs.close();
+         return lsn;
+      }finally{
+         this._primary.release(pc);
+      }//end try
+   }//end currentLSN
+
+   /**
+    * Samples the primary's position, then reads how far the replica has
+    * replayed and how far behind it is
+    */
+   public void poll() {
+      ConnectionPool.PooledConnection pc = null;
+      try{
+         // taken before asking, so every write that returned earlier is behind the position
+         long at = System.nanoTime();
+         long primary = currentLSN();
+         sample(at, primary);
+         pc = this._replica.borrow();
+         ResultSet rs = pc.getStatements().prepare(REPLAY_STATUS).executeQuery();
+         rs.next();
+         String replayed = rs.getString(1);
+         long millis = rs.getLong(2);
+         rs.close();
+         this._replica.release(pc);
+         pc = null;
+         if (replayed == null)
+            throw new SQLException("The replica is not in recovery");
+         long lsn = parseLSN(replayed);
+         this._replayed.set(lsn);
+         this._reachable = true;
+
+         long bytes = Math.max(0, primary - lsn);
+         this._lagBytes.set(bytes);
+         this._lagMillis.set(millis);
+         long max = this._maxLagBytes.get();
+         while (bytes > max && !this._maxLagBytes.compareAndSet(max, bytes))
+            max = this._maxLagBytes.get();
+      }catch (SQLException e){
+         this._reachable = false;
+         if (pc != null)
+            this._replica.discard(pc);
+      }//end try
+   }//end poll
+
+   /**
+    * Starts a background thread that polls the replica every interval
+    */
+   public synchronized void start() {
+      if (this._thread != null)
+         return;
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            Metrics.begin("replicaLag");
+            while (!Thread.currentThread().isInterrupted()) {
+               poll();
+               try{
+                  Thread.sleep(ReplicaRouter.this._interval);
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+            }//end while
+         }
+      }, "replica-lag");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end start
+
+   /**
+    * Stops the background thread and closes the replica's connections
+    */
+   public synchronized void close() {
+      if (this._thread != null)
+         this._thread.interrupt();
+      this._replica.close();
+   }//end close
+
+   /**
+    * @return the replication lag and where the reads went so far
+    */
+   public String report() {
+      return String.format("replica: %s, lag %d bytes (max %d), last replayed transaction %d ms ago; " +
+         "%d reads on the replica, %d pinned to the primary after a write, %d fell back to the primary",
+         this._reachable ? "reachable" : "unreachable", this._lagBytes.get(), this._maxLagBytes.get(), this._lagMillis.get(),
+         this._replicaReads.get(), this._pinnedReads.get(), this._fallbacks.get());
+   }//end report
+
+   /**
+    * @param lsn a WAL position as Postgres prints it, e.g. 16/B374D848
+    * @return the position as a number
+    */
+   static long parseLSN(String lsn) {
+      int slash = lsn.indexOf('/');
+      return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+   }//end parseLSN
+
+}//end ReplicaRouter
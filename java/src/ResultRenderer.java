@@ -0,0 +1,256 @@
+/*
+ * Result Renderer
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class writes query results to one buffered sink as they are read.
+ * The table format pads every column to a fixed width, like the '%-25s'
+ * layout the menus always used, but without a format parse or a string
+ * concatenation per cell. Values are trimmed of their char(n) padding in
+ * place and NULL columns are written as NULL. The same rows can also be
+ * written as CSV or TSV.
+ *
+ */
+public class ResultRenderer {
+
+   /**
+    * Output layouts
+    */
+   public enum Format { TABLE, CSV, TSV }
+
+   // width every table column is padded to
+   public static final int COLUMN_WIDTH = 25;
+
+   private static final char[] PADDING = new char[COLUMN_WIDTH];
+   static {
+      Arrays.fill(PADDING, ' ');
+   }
+
+   private final Writer _out;
+   private final Format _format;
+   private boolean _headerDone = false;
+   private String[] _lastRow = null;
+
+   /**
+    * Creates a renderer over an output stream
+    *
+    * @param out the stream rows are written to
+    * @param format the layout of the rows
+    */
+   public ResultRenderer(OutputStream out, Format format) {
+      this(new BufferedWriter(new OutputStreamWriter(out), 1 << 14), format);
+   }//end ResultRenderer
+
+   /**
+    * Creates a renderer over a writer, which should be buffered
+    *
+    * @param out the writer rows are written to
+    * @param format the layout of the rows
+    */
+   public ResultRenderer(Writer out, Format format) {
+      this._out = out;
+      this._format = format;
+   }//end ResultRenderer
+
+   /**
+    * @param name the name of a format, case insensitive
+    * @return the format, or TABLE when the name is not known
+    */
+   public static Format format(String name) {
+      try{
+         return Format.valueOf(name.trim().toUpperCase());
+      }catch (Exception e){
+         return Format.TABLE;
+      }//end try
+   }//end format
+
+   /**
+    * Writes every remaining row of a result set and flushes the sink. The
+    * table header is only written when there is at least one row, and only
+    * once when the renderer is given several result sets of one listing.
+    *
+    * @param rs the result set to write
+    * @return the number of rows written
+    * @throws java.sql.SQLException when the rows cannot be read
+    * @throws java.io.IOException when the sink fails
+    */
+   public int render(ResultSet rs) throws SQLException, IOException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      String[] columns = new String[numCol];
+      for (int i = 0; i < numCol; ++i)
+         columns[i] = rsmd.getColumnName(i + 1);
+      if (this._lastRow == null || this._lastRow.length != numCol)
+         this._lastRow = new String[numCol];
+      int rowCount = 0;
+      while (rs.next()) {
+         if (!this._headerDone)
+            header(columns);
+         for (int i = 1; i <= numCol; ++i) {
+            String value = rs.getString(i);
+            this._lastRow[i - 1] = value;
+            cell(i, value);
+         }//end for
+         endRow();
+         ++rowCount;
+      }//end while
+      if (rowCount == 0 && this._format != Format.TABLE && !this._headerDone)
+         header(columns);
+      flush();
+      return rowCount;
+   }//end render
+
+   /**
+    * Writes rows that are already in memory and flushes the sink
+    *
+    * @param columns the column names
+    * @param rows the rows to write
+    * @return the number of rows written
+    * @throws java.io.IOException when the sink fails
+    */
+   public int render(String[] columns, List<List<String>> rows) throws IOException {
+      if (!this._headerDone && (!rows.isEmpty() || this._format != Format.TABLE))
+         header(columns);
+      for (List<String> row : rows) {
+         for (int i = 0; i < row.size(); ++i)
+            cell(i + 1, row.get(i));
+         endRow();
+      }//end for
+      flush();
+      return rows.size();
+   }//end render
+
+   /**
+    * @return the values of the last row read by render(ResultSet), or null
+    */
+   public String[] getLastRow() {
+      return this._lastRow;
+   }
+
+   /**
+    * Writes the header line
+    *
+    * @param columns the column names
+    * @throws java.io.IOException when the sink fails
+    */
+   public void header(String[] columns) throws IOException {
+      for (int i = 0; i < columns.length; ++i)
+         cell(i + 1, columns[i]);
+      endRow();
+      this._headerDone = true;
+   }//end header
+
+   /**
+    * Writes one value of the current row
+    *
+    * @param column the 1-based position of the value in the row
+    * @param value the value, or null for a NULL column
+    * @throws java.io.IOException when the sink fails
+    */
+   public void cell(int column, String value) throws IOException {
+      if (column > 1 && this._format != Format.TABLE)
+         this._out.write(this._format == Format.CSV ? ',' : '\t');
+      if (value == null) {
+         // CSV and TSV leave NULL columns empty
+         if (this._format == Format.TABLE)
+            pad(writeRange("NULL", 0, 4));
+         return;
+      }//end if
+      int start = 0, end = value.length();
+      while (start < end && value.charAt(start) <= ' ')
+         ++start;
+      while (end > start && value.charAt(end - 1) <= ' ')
+         --end;
+      switch (this._format) {
+         case TABLE: pad(writeRange(value, start, end)); break;
+         case CSV: writeCsv(value, start, end); break;
+         default: writeTsv(value, start, end); break;
+      }//end switch
+   }//end cell
+
+   /**
+    * Ends the current row
+    *
+    * @throws java.io.IOException when the sink fails
+    */
+   public void endRow() throws IOException {
+      this._out.write('\n');
+   }//end endRow
+
+   /**
+    * Pushes buffered output to the sink
+    *
+    * @throws java.io.IOException when the sink fails
+    */
+   public void flush() throws IOException {
+      this._out.flush();
+   }//end flush
+
+   private int writeRange(String value, int start, int end) throws IOException {
+      this._out.write(value, start, end - start);
+      return end - start;
+   }//end writeRange
+
+   private void pad(int written) throws IOException {
+      if (written < COLUMN_WIDTH)
+         this._out.write(PADDING, 0, COLUMN_WIDTH - written);
+   }//end pad
+
+   private void writeCsv(String value, int start, int end) throws IOException {
+      boolean quote = false;
+      for (int i = start; i < end && !quote; ++i) {
+         char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }//end for
+      if (!quote) {
+         writeRange(value, start, end);
+         return;
+      }//end if
+      this._out.write('"');
+      int from = start;
+      for (int i = start; i < end; ++i) {
+         if (value.charAt(i) == '"') {
+            this._out.write(value, from, i + 1 - from);
+            this._out.write('"');
+            from = i + 1;
+         }//end if
+      }//end for
+      this._out.write(value, from, end - from);
+      this._out.write('"');
+   }//end writeCsv
+
+   private void writeTsv(String value, int start, int end) throws IOException {
+      int from = start;
+      for (int i = start; i < end; ++i) {
+         char c = value.charAt(i);
+         String escape = c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : c == '\\' ? "\\\\" : null;
+         if (escape != null) {
+            this._out.write(value, from, i - from);
+            this._out.write(escape);
+            from = i + 1;
+         }//end if
+      }//end for
+      this._out.write(value, from, end - from);
+   }//end writeTsv
+
+}//end ResultRenderer
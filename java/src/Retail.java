@@ -11,20 +11,26 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.math.BigDecimal;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
 import java.lang.Math;
-import java.util.Scanner;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,15 +39,129 @@ import java.util.Scanner;
  */
 public class Retail {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by all sessions.
+   private ConnectionPool _pool = null;
+
+   // maximum number of prepared statements kept open on each connection
+   private static final int STATEMENT_CACHE_SIZE = 64;
+
+   // customers can see and order from stores within this distance
+   static final double STORE_RADIUS = 30;
+
+   // inserts an order only while the product, or one of its stock shards,
+   // has enough stock; see place_order in triggers.sql
+   static final String PLACE_ORDER = "SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime FROM place_order(?, ?, ?, ?);";
+
+   // column names of the rows returned by PLACE_ORDER
+   static final String[] ORDER_COLUMNS = {"ordernumber", "customerid", "storeid", "productname", "unitsordered", "ordertime"};
+
+   // column names of the store and warehouse listings served from ReferenceData
+   static final String[] STORE_COLUMNS = {"storeid", "name", "dateestablished"};
+   static final String[] WAREHOUSE_COLUMNS = {"warehouseid", "area", "latitude", "longitude"};
+
+   // queries shared by the menus and the scripted command mode
+   static final String LOGIN = "SELECT userID, type, latitude, longitude FROM USERS WHERE name = ? AND password = ?";
+   static final String RECENT_ORDERS = "SELECT S.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime FROM Store S, Orders O WHERE ? = O.customerID AND O.storeID = S.storeID ORDER BY O.orderTime desc LIMIT 5;";
+   static final String RECENT_UPDATES = "SELECT * FROM ProductUpdates WHERE storeID = ? ORDER BY updateNumber DESC LIMIT 5;";
+   static final String POPULAR_PRODUCTS = "SELECT C.productName, C.numOrders as NumOfOrders FROM StoreProductOrders C WHERE C.storeID = ? ORDER BY C.numOrders DESC LIMIT 5;";
+   static final String POPULAR_CUSTOMERS = "SELECT C.customerID, U.name, C.numOrders as NumOfOrders FROM StoreCustomerOrders C, Users U WHERE C.storeID = ? AND C.customerID = U.userID ORDER BY C.numOrders DESC LIMIT 5;";
+   static final String SUPPLY_REQUESTS = "SELECT * FROM ProductSupplyRequests WHERE storeID = ? ORDER BY requestNumber DESC LIMIT 5;";
+   // a product with the version an edit is checked against, and the compare-and-set edit; see update_product
+   static final String READ_PRODUCT = "SELECT S.storeID, S.productName, S.numberOfUnits, S.pricePerUnit, P.version FROM ProductStock S, Product P " +
+      "WHERE P.storeID = ? AND P.productName = ? AND S.storeID = P.storeID AND S.productName = P.productName;";
+   static final String UPDATE_PRODUCT = "SELECT storeID, productName, numberOfUnits, pricePerUnit, version, outcome, txid_current() FROM update_product(?, ?, ?, ?, ?, ?, ?);";
+   static final String[] PRODUCT_VERSION_COLUMNS = {"storeid", "productname", "numberofunits", "priceperunit", "version"};
+   static final String READ_USER = "SELECT * FROM Users WHERE userID = ?;";
+   static final String[] USER_COLUMNS = {"userid", "name", "password", "latitude", "longitude", "type", "version"};
+   static final String UPDATE_USER = "UPDATE Users SET name = ?, password = ?, latitude = ?, longitude = ?, type = ?, version = version + 1 WHERE userID = ? AND version = ?;";
+   static final String STORE_INVENTORY = "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM ProductStock WHERE storeID = ?;";
+   static final String INSERT_PRODUCT_UPDATE = "INSERT INTO ProductUpdates (managerID,storeID,productName,updatedOn) VALUES ( ?, ?, ?, DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp));";
+   static final String[] SUPPLY_REQUEST_COLUMNS = {"requestnumber", "managerid", "warehouseid", "storeid", "productname", "unitsrequested"};
+   // restocks with a relative update and records the request in the same statement
+   static final String SUPPLY_PRODUCT = "WITH restocked AS (UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ? " +
+      "RETURNING storeID, productName) INSERT INTO ProductSupplyRequests(managerID,warehouseID,storeID,productName,unitsRequested) " +
+      "SELECT ?, ?, storeID, productName, ? FROM restocked RETURNING *;";
+   static final String RESTOCK_PRODUCT = "UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?;";
+   static final String INSERT_SUPPLY_REQUEST = "INSERT INTO ProductSupplyRequests(managerID,warehouseID,storeID,productName,unitsRequested) VALUES (?, ?, ?, ?, ?);";
+
+   // listings that can grow without bound, read a page or a cursor batch at a time
+   static final KeysetQuery STORE_ORDERS = new KeysetQuery("SELECT * FROM Orders", "storeID = ?",
+      "(orderTime, orderNumber) < (?::timestamp, ?::integer)", "orderTime DESC, orderNumber DESC", 5, 0);
+   static final KeysetQuery ALL_USERS = new KeysetQuery("SELECT * FROM Users", null,
+      "(type, name, userID) > (?::bpchar, ?::bpchar, ?::integer)", "type, name, userID", 5, 1, 0);
+   static final KeysetQuery ALL_PRODUCTS = new KeysetQuery("SELECT * FROM ProductStock", null,
+      "(storeID, productName) > (?::integer, ?::bpchar)", "storeID, productName", 0, 1);
+
+   // reads that may run on a replica a little behind the primary; a session still sees its own writes
+   static final List<String> REPLICA_READS = Arrays.asList(RECENT_ORDERS, RECENT_UPDATES, POPULAR_PRODUCTS,
+      POPULAR_CUSTOMERS, SUPPLY_REQUESTS, ManagerDashboard.LOW_STOCK, SalesAnalytics.ORDERS_RANGE,
+      STORE_ORDERS.getAll(), STORE_ORDERS.getFirstPage(), STORE_ORDERS.getNextPage(),
+      ALL_USERS.getAll(), ALL_USERS.getFirstPage(), ALL_USERS.getNextPage(),
+      ALL_PRODUCTS.getAll(), ALL_PRODUCTS.getFirstPage(), ALL_PRODUCTS.getNextPage());
+
+   // rows shown on one page of a listing before asking for more
+   static final int PAGE_SIZE = Integer.getInteger("retail.page.size", 50);
+
+   // rows fetched from a cursor per round trip when a listing is streamed
+   static final int FETCH_SIZE = Integer.getInteger("retail.fetch.size", 1000);
+
+   // milliseconds before the store and warehouse snapshot is reloaded even
+   // though no change was notified
+   private static final long STORE_TTL = Long.getLong("retail.stores.ttl", 60000L);
+
+   // channel the Store and Warehouse change triggers notify
+   static final String REFERENCE_CHANNEL = "retail_reference";
+
+   // column names of the product listings served from the InventoryCache
+   static final String[] PRODUCT_COLUMNS = {"storeid", "productname", "numberofunits", "priceperunit"};
+   static final String[] STORE_PRODUCT_COLUMNS = {"name", "qty", "unit_price"};
+
+   // statements over the slow query threshold, shared by all sessions
+   private SlowQueryLog _slowLog = null;
+
+   // snapshot of Store and Warehouse, shared by all sessions
+   private AtomicReference<ReferenceData> _reference = new AtomicReference<ReferenceData>();
+
+   // LISTENs for changes made by other instances, shared by all sessions
+   private NotificationListener _listener = null;
+
+   // restocks low products in the background when turned on, shared by all sessions
+   private ReplenishmentEngine _replenisher = null;
+
+   // writes the ProductUpdates rows behind the updates, shared by all sessions
+   private AuditLog _audit = null;
+
+   // sends REPLICA_READS to a hot standby when one is configured, shared by all sessions
+   private ReplicaRouter _router = null;
+
+   // System.nanoTime() this session's last write returned at; its reads stay on the primary until the replica has replayed it
+   private volatile long _wroteAt = ReplicaRouter.NO_WRITE;
+
+   // runs the queries of the multi-store manager dashboard, shared by all sessions
+   private ManagerDashboard _dashboard = null;
+
+   // appends every order placed to a local log when turned on, shared by all sessions
+   private OrderEventLog _events = null;
+
+   // copy of the Orders history for the sales reports, shared by all sessions
+   private SalesAnalytics _analytics = null;
+
+   // Product rows of the recently used stores, shared by all sessions
+   private InventoryCache _inventory = new InventoryCache(
+      Integer.getInteger("retail.inventory.maxStores", 64),
+      Long.getLong("retail.inventory.ttl", 30000L));
 
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // This variable can be global for convenience. It reads from the
+   // console attached to the current session thread.
+   static BufferedReader in = SessionConsole.reader();
    String userID;
    String userType;
+   double userLatitude;
+   double userLongitude;
+
+   // layout of the query results this session prints: table, csv or tsv
+   ResultRenderer.Format outputFormat = ResultRenderer.format(System.getProperty("retail.output", "table"));
 
    /**
     * Creates a new instance of Retail shop
@@ -60,8 +180,76 @@ public class Retail {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool of physical connections
+         this._pool = new ConnectionPool(url, user, passwd,
+            Integer.getInteger("retail.pool.min", 1),
+            Integer.getInteger("retail.pool.max", 8),
+            Long.getLong("retail.pool.idleTimeout", 300000L),
+            Long.getLong("retail.pool.validateAfter", 30000L),
+            Long.getLong("retail.pool.maxWait", 30000L),
+            STATEMENT_CACHE_SIZE);
+         // the reports read from a hot standby when its port is given
+         Integer replicaPort = Integer.getInteger("retail.replica.port");
+         if (replicaPort != null){
+            String replicaUrl = "jdbc:postgresql://" + System.getProperty("retail.replica.host", "localhost") + ":" + replicaPort + "/" + dbname;
+            System.out.println ("Replica URL: " + replicaUrl + "\n");
+            this._router = new ReplicaRouter(this._pool, new ConnectionPool(replicaUrl, user, passwd, 0,
+               Integer.getInteger("retail.replica.max", Integer.getInteger("retail.pool.max", 8)),
+               Long.getLong("retail.pool.idleTimeout", 300000L),
+               Long.getLong("retail.pool.validateAfter", 30000L),
+               Long.getLong("retail.pool.maxWait", 30000L),
+               STATEMENT_CACHE_SIZE), REPLICA_READS, Long.getLong("retail.replica.poll", 500L));
+            this._router.start();
+         }//end if
+         this._slowLog = new SlowQueryLog(this._pool, this._router,
+            Long.getLong("retail.slow.threshold", -1L),
+            Double.parseDouble(System.getProperty("retail.slow.sample", "0.1")),
+            new File(System.getProperty("retail.slow.log", "retail-slow.log")),
+            Long.getLong("retail.slow.logSize", 10L << 20),
+            Integer.getInteger("retail.slow.logCount", 3));
+         // inserts what an earlier run left in the spool before any session updates
+         this._audit = new AuditLog(this._pool,
+            new File(System.getProperty("retail.audit.spool", "retail-audit.spool")),
+            Integer.getInteger("retail.audit.queue", 10000),
+            Integer.getInteger("retail.audit.batch", 500),
+            Long.getLong("retail.audit.flushMillis", 200L),
+            Boolean.getBoolean("retail.audit.sync"));
+         this._audit.start();
+         // logs the orders placed for replay and offload when a directory is given
+         String events = System.getProperty("retail.events.dir");
+         if (events != null){
+            this._events = new OrderEventLog(new File(events),
+               Integer.getInteger("retail.events.segmentBytes", 64 << 20),
+               Long.getLong("retail.events.syncMillis", 100L),
+               Boolean.getBoolean("retail.events.sync"));
+            this._events.start();
+         }//end if
+         this._dashboard = new ManagerDashboard(
+            Integer.getInteger("retail.dashboard.threads", Integer.getInteger("retail.pool.max", 8)));
+         this._analytics = new SalesAnalytics(
+            Integer.getInteger("retail.analytics.threads", Runtime.getRuntime().availableProcessors()),
+            Long.getLong("retail.analytics.gapMillis", 60000L));
+         // reloads the snapshot when another session changes Store or Warehouse
+         this._listener = new NotificationListener(url, user, passwd, Long.getLong("retail.notify.poll", 500L));
+         this._listener.listen(REFERENCE_CHANNEL, new NotificationListener.Handler() {
+            public void notified(String channel, int pid) {
+               reload();
+            }
+            public void reconnected() {
+               reload();
+            }
+            private void reload() {
+               try{
+                  refreshReferenceData();
+               }catch (SQLException e){
+                  System.err.println(e.getMessage());
+               }
+            }
+         });
+         this._inventory.attach(this._listener, this._pool);
+         // listens before the first load, so a change made meanwhile is not missed
+         this._listener.start();
+         refreshReferenceData();
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -70,6 +258,111 @@ public class Retail {
       }//end catch
    }//end Retail
 
+   /**
+    * Creates a new session that shares the connection pool and caches of
+    * another Retail instance. Each session keeps its own logged in user.
+    *
+    * @param parent the instance whose shared state is used
+    */
+   private Retail(Retail parent) {
+      this._pool = parent._pool;
+      this._slowLog = parent._slowLog;
+      this._reference = parent._reference;
+      this._listener = parent._listener;
+      this._inventory = parent._inventory;
+      this._replenisher = parent._replenisher;
+      this._dashboard = parent._dashboard;
+      this._analytics = parent._analytics;
+      this._events = parent._events;
+      this._router = parent._router;
+      this._audit = parent._audit;
+   }//end Retail
+
+   /**
+    * @return a new session sharing this instance's connection pool
+    */
+   public Retail newSession() {
+      return new Retail(this);
+   }//end newSession
+
+   /**
+    * Returns the store and warehouse snapshot, reloading it first when it
+    * is older than STORE_TTL. Changes are normally picked up sooner, when
+    * the change triggers notify REFERENCE_CHANNEL.
+    *
+    * @return the current snapshot
+    * @throws java.sql.SQLException when the snapshot cannot be loaded
+    */
+   public ReferenceData getReferenceData() throws SQLException {
+      ReferenceData data = this._reference.get();
+      if (data == null || System.currentTimeMillis() - data.getLoadedAt() > STORE_TTL)
+         return refreshReferenceData();
+      return data;
+   }//end getReferenceData
+
+   /**
+    * @return the location index of the current snapshot
+    * @throws java.sql.SQLException when the snapshot cannot be loaded
+    */
+   public StoreLocator getStoreLocator() throws SQLException {
+      return getReferenceData().getLocator();
+   }//end getStoreLocator
+
+   /**
+    * Reloads every store and warehouse and swaps the new snapshot in.
+    *
+    * @return the new snapshot
+    * @throws java.sql.SQLException when the tables cannot be read
+    */
+   public ReferenceData refreshReferenceData() throws SQLException {
+      List<StoreLocator.Store> stores = new ArrayList<StoreLocator.Store>();
+      for (List<String> row : executeQueryAndReturnResult("SELECT storeID, name, latitude, longitude, managerID, dateEstablished FROM Store;"))
+         stores.add(new StoreLocator.Store(Integer.parseInt(row.get(0).trim()), row.get(1).trim(),
+            Double.parseDouble(row.get(2)), Double.parseDouble(row.get(3)), Integer.parseInt(row.get(4).trim()), row.get(5)));
+      List<ReferenceData.Warehouse> warehouses = new ArrayList<ReferenceData.Warehouse>();
+      for (List<String> row : executeQueryAndReturnResult("SELECT warehouseID, area, latitude, longitude FROM Warehouse ORDER BY warehouseID;"))
+         warehouses.add(new ReferenceData.Warehouse(Integer.parseInt(row.get(0).trim()), row.get(1),
+            Double.parseDouble(row.get(2)), Double.parseDouble(row.get(3))));
+      ReferenceData data = new ReferenceData(stores, warehouses);
+      this._reference.set(data);
+      return data;
+   }//end refreshReferenceData
+
+   /**
+    * Returns the products of a store from the inventory cache, reading
+    * them from the database when the store is not cached.
+    *
+    * @param storeID a storeID
+    * @return the store's products, by productName
+    * @throws java.sql.SQLException when the products cannot be read
+    */
+   public InventoryCache.Partition getInventory(int storeID) throws SQLException {
+      InventoryCache.Partition cached = this._inventory.get(storeID);
+      if (cached != null)
+         return cached;
+      long version = this._inventory.beginLoad(storeID);
+      List<InventoryCache.Product> products = new ArrayList<InventoryCache.Product>();
+      for (List<String> row : executeQueryAndReturnResult(STORE_INVENTORY, storeID))
+         products.add(product(row));
+      return this._inventory.put(storeID, products, version);
+   }//end getInventory
+
+   /**
+    * @param storeID a storeID
+    * @param productName a product name
+    * @return the product from the inventory cache, or null when the store does not sell it
+    * @throws java.sql.SQLException when the products cannot be read
+    */
+   public InventoryCache.Product getProduct(int storeID, String productName) throws SQLException {
+      return getInventory(storeID).getProduct(productName);
+   }//end getProduct
+
+   // a storeID, productName, numberOfUnits, pricePerUnit row
+   private static InventoryCache.Product product(List<String> row) {
+      return new InventoryCache.Product(Integer.parseInt(row.get(0).trim()), row.get(1),
+         Integer.parseInt(row.get(2).trim()), row.get(3).trim());
+   }//end product
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -80,164 +373,611 @@ public class Retail {
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      // borrows a connection for the length of the statement
+      long start = System.nanoTime ();
+      ConnectionPool.PooledConnection pc = this._pool.borrow ();
+      try{
+         // issues the update instruction
+         int rowCount = prepare (pc, sql, params).executeUpdate ();
+         this._pool.release (pc);
+         pc = null;
+         wrote ();
+         return rowCount;
+      }finally{
+         this._pool.release (pc);
+         finish (start, 1, sql, params);
+      }
+   }//end executeUpdate
+
+   /**
+    * Waits until the audit rows of every update so far are in ProductUpdates,
+    * so the recent updates listing shows them
+    *
+    * @throws java.sql.SQLException when they cannot be written
+    */
+   public void flushAudit () throws SQLException {
+      this._audit.flush ();
+      // the rows were written by the audit writer, on behalf of this session
+      wrote ();
+   }//end flushAudit
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   // borrows the connection a statement runs on; see ReplicaRouter
+   private ConnectionPool.PooledConnection borrowFor (String sql) throws SQLException {
+      if (this._router == null)
+         return this._pool.borrow ();
+      return this._router.borrow (sql, this._wroteAt);
+   }//end borrowFor
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   private void release (ConnectionPool.PooledConnection pc) {
+      if (this._router == null)
+         this._pool.release (pc);
+      else
+         this._router.release (pc);
+   }//end release
+
+   // remembers when a write of this session returned; see ReplicaRouter
+   private void wrote () {
+      this._wroteAt = System.nanoTime ();
+   }//end wrote
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      String row = null;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-            if(i==1){
-               row = String.format("%-25s",rsmd.getColumnName(i));
-            }else{
-               row += String.format("%-25s",rsmd.getColumnName(i));
-            }
-			}
-         System.out.println(row);
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            if(i==1){
-               row = String.format("%-25s",rs.getString (i).trim());
-            }else{
-               row += String.format("%-25s",rs.getString (i).trim());
-            }
-         System.out.println(row);
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return executeQueryAndPrintResult (new ResultRenderer (System.out, this.outputFormat), query, params);
    }//end executeQuery
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * write the results through a renderer that may already hold earlier
+    * pages of the same listing.
+    *
+    * @param renderer the renderer the rows are written to
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (ResultRenderer renderer, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ConnectionPool.PooledConnection pc = borrowFor (query);
+      try{
+         // issues the query instruction
+         ResultSet rs = prepare (pc, query, params).executeQuery ();
+
+         // streams the rows to standard out as they are read
+         int rowCount = renderer.render (rs);
+         rs.close ();
+         return rowCount;
+      }catch (IOException e){
+         throw new SQLException (e.getMessage ());
+      }finally{
+         release (pc);
+         finish (start, 1, query, params);
+      }
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute a query of any size and output the results to
+    * standard out.  The rows are read through a server-side cursor
+    * FETCH_SIZE at a time, so client memory stays flat and the first rows
+    * print as soon as the first batch arrives.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStreamResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int roundTrips = 0;
+      ConnectionPool.PooledConnection pc = borrowFor (query);
+      try{
+         // a cursor only lives as long as its transaction
+         Connection conn = pc.getConnection ();
+         conn.setAutoCommit (false);
+
+         // DECLARE cannot be server-prepared, so it does not go through the statement cache
+         String select = query.trim ();
+         if (select.endsWith (";"))
+            select = select.substring (0, select.length () - 1);
+         PreparedStatement declare = conn.prepareStatement ("DECLARE retail_rows NO SCROLL CURSOR FOR " + select);
+         bind (declare, params);
+         declare.execute ();
+         ++roundTrips;
+         declare.close ();
+
+         ResultRenderer renderer = new ResultRenderer (System.out, this.outputFormat);
+         Statement fetch = conn.createStatement ();
+         int rowCount = 0;
+         int fetched;
+         do {
+            ResultSet rs = fetch.executeQuery ("FETCH FORWARD " + FETCH_SIZE + " FROM retail_rows");
+            ++roundTrips;
+            fetched = renderer.render (rs);
+            rs.close ();
+            rowCount += fetched;
+         } while (fetched == FETCH_SIZE);
+         fetch.execute ("CLOSE retail_rows");
+         fetch.close ();
+         conn.commit ();
+         roundTrips += 2;
+         return rowCount;
+      }catch (IOException e){
+         throw new SQLException (e.getMessage ());
+      }finally{
+         // rolls back the transaction if the listing failed part way
+         release (pc);
+         finish (start, roundTrips, query, params);
+      }
+   }//end executeQueryAndStreamResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ConnectionPool.PooledConnection pc = borrowFor (query);
+      try{
+         // issues the query instruction
+         ResultSet rs = prepare (pc, query, params).executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+           List<String> record = new ArrayList<String>();
+   		for (int i=1; i<=numCol; ++i)
+   			record.add(rs.getString (i));
+           result.add(record);
+         }//end while
+         rs.close ();
+         return result;
+      }finally{
+         release (pc);
+         finish (start, 1, query, params);
+      }
    }//end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   public int executeQuery (String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       ConnectionPool.PooledConnection pc = borrowFor (query);
+       try{
+          // issues the query instruction
+          ResultSet rs = prepare (pc, query, params).executeQuery ();
 
-       int rowCount = 0;
+          int rowCount = 0;
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          rs.close ();
+          return rowCount;
+       }finally{
+          release (pc);
+          finish (start, 1, query, params);
+       }
    }
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Places one order in a single round trip. place_order takes the units
+    * off the locked product row, or off one stock shard of a sharded
+    * product, only when there are enough, and inserts the order in the
+    * same statement, so concurrent orders can never oversell a product.
+    * The inventory cache is updated once the order is in.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param customerID the customer placing the order
+    * @param storeID the store the product is ordered from
+    * @param productName the product ordered
+    * @param units the number of units ordered
+    * @return the new Orders row, or null when the store does not have enough stock
+    * @throws java.sql.SQLException when the order cannot be placed
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public List<String> submitOrder (int customerID, int storeID, String productName, int units) throws SQLException {
+      List<List<String>> result = executeQueryAndReturnResult(PLACE_ORDER, customerID, storeID, productName, units);
+      if (result.isEmpty()) {
+         // the cache showed stock the database did not have
+         this._inventory.invalidate(storeID);
+         return null;
+      }//end if
+      wrote();
+      this._inventory.adjust(storeID, productName, -units);
+      logOrders(result);
+      return result.get(0);
+   }//end submitOrder
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
-   }
+   /**
+    * Places every line of a cart as an order in a single statement, so the
+    * whole cart takes one round trip and one commit. place_cart checks the
+    * stock of all lines in one query and inserts the orders with one
+    * INSERT, whose trigger takes the stock off set-wise; if any line is
+    * short nothing is ordered.
+    *
+    * @param customerID the customer placing the orders
+    * @param cart the lines to order
+    * @return the new Orders rows in cart order, or null when a product is missing or short of stock
+    * @throws java.sql.SQLException when the cart cannot be placed
+    * @throws java.lang.IllegalArgumentException when a line has no or negative units
+    */
+   public List<List<String>> submitCart (int customerID, Cart cart) throws SQLException {
+      List<Cart.Line> lines = cart.getLines();
+      // a short cart returns no rows, so bad units must not get that far
+      for (Cart.Line line : lines)
+         if (line.units <= 0)
+            throw new IllegalArgumentException("Number of units must be positive!");
+      Object[] params = new Object[1 + 3 * lines.size()];
+      params[0] = customerID;
+      for (int i = 0; i < lines.size(); ++i) {
+         Cart.Line line = lines.get(i);
+         params[1 + i] = line.storeID;
+         params[1 + lines.size() + i] = line.productName;
+         params[1 + 2 * lines.size() + i] = line.units;
+      }//end for
+      List<List<String>> orders = executeQueryAndReturnResult(placeCart(lines.size()), params);
+      if (orders.isEmpty()) {
+         for (Cart.Line line : lines)
+            this._inventory.invalidate(line.storeID);
+         return null;
+      }//end if
+      wrote();
+      for (Cart.Line line : lines)
+         this._inventory.adjust(line.storeID, line.productName, -line.units);
+      logOrders(orders);
+      return orders;
+   }//end submitCart
+
+   // appends placed Orders rows to the order event log; the orders stand if it cannot be written
+   private void logOrders (List<List<String>> orders) {
+      if (this._events == null)
+         return;
+      try{
+         for (List<String> order : orders)
+            this._events.append(Integer.parseInt(order.get(0)), Integer.parseInt(order.get(1)), Integer.parseInt(order.get(2)),
+               order.get(3).trim(), Integer.parseInt(order.get(4)), Timestamp.valueOf(order.get(5)).getTime());
+      }catch (IOException e){
+         System.err.println(e.getMessage());
+      }
+   }//end logOrders
+
+   // the place_cart call for a cart of the given number of lines
+   private static String placeCart(int lines) {
+      StringBuilder sql = new StringBuilder("SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime FROM place_cart(?");
+      String[] types = {"integer", "char(30)", "integer"};
+      for (String type : types) {
+         sql.append(", ARRAY[");
+         for (int i = 0; i < lines; ++i)
+            sql.append(i == 0 ? "?" : ", ?");
+         sql.append("]::").append(type).append("[]");
+      }//end for
+      return sql.append(") ORDER BY orderNumber;").toString();
+   }//end placeCart
 
    /**
-    * Method to close the physical connection if it is open.
+    * Checks the credentials of a user and makes them the user of this
+    * session when they match.
+    *
+    * @param name the user name
+    * @param password the user password
+    * @return the userID, type, latitude and longitude of the user, or null when the login is invalid
+    * @throws java.sql.SQLException when the lookup fails
     */
-   public void cleanup(){
+   public List<String> login (String name, String password) throws SQLException {
+      List<List<String>> result = executeQueryAndReturnResult(LOGIN, name, password);
+      if (result.isEmpty())
+         return null;
+      List<String> user = result.get(0);
+      this.userID = user.get(0).trim();
+      this.userType = user.get(1).trim();
+      this.userLatitude = Double.parseDouble(user.get(2));
+      this.userLongitude = Double.parseDouble(user.get(3));
+      return user;
+   }//end login
+
+   /**
+    * Reads a product with the version an edit of it is checked against
+    *
+    * @param storeID the store of the product
+    * @param productName the product
+    * @return storeID, productName, numberOfUnits, pricePerUnit and version, or null when the product does not exist
+    * @throws java.sql.SQLException when the product cannot be read
+    */
+   public List<String> readProduct (int storeID, String productName) throws SQLException {
+      List<List<String>> result = executeQueryAndReturnResult(READ_PRODUCT, storeID, productName);
+      return result.isEmpty() ? null : result.get(0);
+   }//end readProduct
+
+   /**
+    * Changes the stock and price of a product read at a version, unless
+    * another manager or admin changed it since, and records the change in
+    * ProductUpdates under the session's user. A relative change of the
+    * stock merges with the orders, restocks and edits made since the read,
+    * unless it also changes the price; an absolute one only applies while
+    * the stock is still the one read.
+    * The audit row is spooled as an intent before the update commits and
+    * queued once it has; when the spool cannot be written or the queue is
+    * full, it is inserted in the update's own transaction instead.
+    *
+    * @param read the product as returned by readProduct
+    * @param absolute whether units is the new number of units rather than a number to add
+    * @param units the new number of units, or the units to add when negative or positive
+    * @param price the new price per unit
+    * @return the product as it now is, with its version, the outcome (see isUpdated and
+    *         isShortOfStock) and the ID of the transaction; null when the product does not exist
+    * @throws java.sql.SQLException when the update fails
+    */
+   public List<String> updateProductValues (List<String> read, boolean absolute, int units, double price) throws SQLException {
+      int storeID = Integer.parseInt(read.get(0).trim());
+      String productName = read.get(1).trim();
+      Object[] params = {storeID, productName, Integer.valueOf(read.get(4).trim()), absolute,
+         Integer.valueOf(read.get(2).trim()), units, price};
+      long start = System.nanoTime ();
+      int roundTrips = 0;
+      List<String> updated = null;
+      AuditLog.Event intent = null;
+      boolean committed = false;
+      ConnectionPool.PooledConnection pc = this._pool.borrow ();
       try{
-         if (this._connection != null){
-            this._connection.close ();
+         Connection conn = pc.getConnection ();
+         conn.setAutoCommit (false);
+         ResultSet rs = prepare (pc, UPDATE_PRODUCT, params).executeQuery ();
+         ++roundTrips;
+         if (rs.next ()){
+            updated = new ArrayList<String>();
+            for (int i = 1; i <= rs.getMetaData ().getColumnCount (); ++i)
+               updated.add (rs.getString (i));
          }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+         rs.close ();
+         if (updated != null && isUpdated(updated)){
+            // only an intent until the change commits; it never waits long on a full queue while holding the row
+            try{
+               intent = this._audit.begin(Integer.parseInt(this.userID), storeID, productName, Long.parseLong(updated.get(6).trim()));
+            }catch (IOException e){
+               System.err.println(e.getMessage());
+            }//end try
+            if (intent == null){
+               // without the spool or room in the queue the row is inserted with the change
+               prepare (pc, INSERT_PRODUCT_UPDATE, Integer.valueOf(this.userID), storeID, productName).executeUpdate ();
+               ++roundTrips;
+            }//end if
+         }//end if
+         conn.commit ();
+         ++roundTrips;
+         committed = true;
+      }finally{
+         // rolls back the transaction unless it was committed
+         this._pool.release (pc);
+         finish (start, roundTrips, UPDATE_PRODUCT, params);
+         if (intent != null){
+            if (committed)
+               this._audit.commit(intent);
+            else
+               this._audit.abort(intent);
+         }//end if
+      }
+      if (updated == null)
+         return null;
+      // the current values either way
+      this._inventory.set(product(updated));
+      if (isUpdated(updated))
+         wrote();
+      return updated;
+   }//end updateProductValues
+
+   /**
+    * @param updated a row returned by updateProductValues
+    * @return whether the change was made
+    */
+   static boolean isUpdated (List<String> updated) {
+      return updated.get(5).trim().equals("updated");
+   }//end isUpdated
+
+   /**
+    * @param updated a row returned by updateProductValues
+    * @return whether the change was not made because it would take the stock below zero;
+    *         when neither this nor isUpdated holds, it conflicted with another edit
+    */
+   static boolean isShortOfStock (List<String> updated) {
+      return updated.get(5).trim().equals("stock");
+   }//end isShortOfStock
+
+   /**
+    * Restocks a product from a warehouse and records the supply request
+    * under the session's user.
+    *
+    * @param warehouseID the warehouse supplying the product
+    * @param storeID the store receiving the product
+    * @param productName the product supplied
+    * @param units the number of units supplied
+    * @return the new ProductSupplyRequests row, or null when the product does not exist
+    * @throws java.sql.SQLException when the request fails
+    */
+   public List<String> submitSupplyRequest (int warehouseID, int storeID, String productName, int units) throws SQLException {
+      List<List<String>> request = executeQueryAndReturnResult(SUPPLY_PRODUCT, units, storeID, productName,
+         Integer.valueOf(this.userID), warehouseID, units);
+      if (request.isEmpty())
+         return null;
+      wrote();
+      this._inventory.adjust(storeID, productName, units);
+      return request.get(0);
+   }//end submitSupplyRequest
+
+   /**
+    * Restocks many products of a store from a warehouse in one transaction.
+    * The stock is raised by JDBC-batched relative updates, made in product
+    * order like the order trigger locks products, and the requests are
+    * recorded by a batched insert; either every line is applied or none.
+    *
+    * @param managerID the manager the requests are recorded under
+    * @param warehouseID the warehouse supplying the products
+    * @param storeID the store receiving the products
+    * @param lines the products and units supplied
+    * @throws java.sql.SQLException when a product does not exist or the requests fail
+    */
+   public void submitSupplyBatch (int managerID, int warehouseID, int storeID, List<SupplyImporter.Line> lines) throws SQLException {
+      List<SupplyImporter.Line> sorted = new ArrayList<SupplyImporter.Line>(lines);
+      Collections.sort(sorted, new Comparator<SupplyImporter.Line>() {
+         public int compare(SupplyImporter.Line a, SupplyImporter.Line b) {
+            return a.productName.compareTo(b.productName);
+         }
+      });
+      long start = System.nanoTime ();
+      int roundTrips = 0;
+      ConnectionPool.PooledConnection pc = this._pool.borrow ();
+      try{
+         Connection conn = pc.getConnection ();
+         conn.setAutoCommit (false);
+         // batches are built on statements of their own, so a failed one leaves nothing in the statement cache
+         PreparedStatement restock = conn.prepareStatement (RESTOCK_PRODUCT);
+         for (SupplyImporter.Line line : sorted) {
+            bind (restock, line.units, storeID, line.productName);
+            restock.addBatch ();
+         }//end for
+         int[] restocked = restock.executeBatch ();
+         ++roundTrips;
+         restock.close ();
+         for (int i = 0; i < restocked.length; ++i)
+            if (restocked[i] == 0)
+               throw new SQLException ("Product '" + sorted.get(i).productName + "' does not exist at Store " + storeID);
+
+         PreparedStatement insert = conn.prepareStatement (INSERT_SUPPLY_REQUEST);
+         for (SupplyImporter.Line line : lines) {
+            bind (insert, managerID, warehouseID, storeID, line.productName, line.units);
+            insert.addBatch ();
+         }//end for
+         insert.executeBatch ();
+         ++roundTrips;
+         insert.close ();
+         conn.commit ();
+         ++roundTrips;
+      }finally{
+         // rolls back the transaction unless it was committed
+         this._pool.release (pc);
+         finish (start, roundTrips, RESTOCK_PRODUCT, new Object[] {lines.isEmpty() ? 0 : lines.get(0).units, storeID,
+            lines.isEmpty() ? "" : lines.get(0).productName});
+      }
+      wrote ();
+      for (SupplyImporter.Line line : lines)
+         this._inventory.adjust(storeID, line.productName, line.units);
+   }//end submitSupplyBatch
+
+   /**
+    * Method to output rows that were computed in memory in the same layout
+    * as executeQueryAndPrintResult.
+    *
+    * @param columns the column names
+    * @param rows the rows to output
+    * @return the number of rows output
+    */
+   public int printResult (String[] columns, List<List<String>> rows) {
+      try{
+         return new ResultRenderer(System.out, this.outputFormat).render(columns, rows);
+      }catch (IOException e){
+         System.err.println(e.getMessage());
+         return 0;
+      }
+   }//end printResult
+
+   /**
+    * Looks up the cached prepared statement for the SQL text and binds the
+    * parameters to it. The statement stays open in the cache after use.
+    *
+    * @param pc the borrowed connection whose statement cache is used
+    * @param sql the SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the bound statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   private PreparedStatement prepare (ConnectionPool.PooledConnection pc, String sql, Object... params) throws SQLException {
+      return bind (pc.getStatements ().prepare (sql), params);
+   }//end prepare
+
+   // records a finished statement in the metrics and the slow query log
+   private void finish (long start, int roundTrips, String sql, Object[] params) {
+      Metrics.record (start, roundTrips);
+      this._slowLog.check (start, sql, params);
+   }//end finish
+
+   private static PreparedStatement bind (PreparedStatement stmt, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject (i + 1, params[i]);
+      return stmt;
+   }//end bind
+
+   /**
+    * @return the number of statements found in the statement cache
+    */
+   public long getStatementCacheHits() {
+      return this._pool.getStatementCacheHits();
+   }
+
+   /**
+    * @return the number of statements that had to be prepared
+    */
+   public long getStatementCacheMisses() {
+      return this._pool.getStatementCacheMisses();
+   }
+
+   /**
+    * Method to close the physical connections if they are open.
+    */
+   public void cleanup(){
+      if (this._listener != null){
+         this._listener.close ();
+      }//end if
+      if (this._dashboard != null){
+         this._dashboard.close ();
+      }//end if
+      if (this._analytics != null){
+         this._analytics.close ();
+      }//end if
+      if (this._events != null){
+         this._events.close ();
+      }//end if
+      if (this._audit != null){
+         this._audit.close ();
+      }//end if
+      if (this._router != null){
+         this._router.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -246,17 +986,33 @@ public class Retail {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      String mode = args.length > 3 ? args[3] : "menu";
+      if (args.length < 3
+          || (mode.equals("server") && args.length != 5)
+          || (mode.equals("script") && args.length > 5)
+          || (mode.equals("backfill") && args.length != 4)
+          || (mode.equals("import") && args.length != 5)
+          || (mode.equals("shard") && args.length != 7)
+          || (mode.equals("supply") && args.length != 7)
+          || (mode.equals("replenish") && args.length != 4)
+          || !(mode.equals("menu") || mode.equals("server") || mode.equals("script") || mode.equals("backfill") || mode.equals("import")
+               || mode.equals("shard") || mode.equals("supply") || mode.equals("replenish"))) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Retail.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [server <listenPort> | script [<file>] | backfill | import <orders.csv>" +
+            " | shard <storeID> <productName> <shards> | supply <warehouseID> <storeID> <restock.csv> | replenish]");
          return;
       }//end if
 
       Greeting();
       Retail esql = null;
+      long metricsInterval = Long.getLong("retail.metrics.interval", 15000L);
+      File metricsFile = new File(System.getProperty("retail.metrics.file", "retail-metrics.prom"));
+      long rebalanceInterval = Long.getLong("retail.shards.rebalance", 5000L);
+      StockRebalancer rebalancer = null;
+      long replenishInterval = Long.getLong("retail.replenish.interval", 0L);
       try{
          // use postgres JDBC driver.
          Class.forName ("org.postgresql.Driver").newInstance ();
@@ -267,6 +1023,109 @@ public class Retail {
          String user = args[2];
          esql = new Retail (dbname, dbport, user, "");
 
+         // writes the query metrics for scraping, unless the interval is 0
+         if (metricsInterval > 0)
+            Metrics.startDump(metricsFile, metricsInterval);
+
+         // evens out the stock shards of hot products, unless the interval is 0
+         if (rebalanceInterval > 0 && (mode.equals("menu") || mode.equals("server") || mode.equals("script"))) {
+            rebalancer = new StockRebalancer(esql.newSession(), rebalanceInterval);
+            rebalancer.start();
+         }//end if
+
+         // restocks low products from the nearest warehouse, when an interval is set
+         if (replenishInterval > 0 && (mode.equals("menu") || mode.equals("server") || mode.equals("script"))) {
+            esql._replenisher = replenisher(esql.newSession(), replenishInterval);
+            esql._replenisher.start();
+         }//end if
+
+         if (mode.equals("server")) {
+            // every client connection gets its own session thread
+            new RetailServer(esql, Integer.parseInt(args[4]),
+               Integer.getInteger("retail.server.maxSessions", 256)).serve();
+         }else if (mode.equals("script")) {
+            // commands come from a file or standard input instead of the menus
+            BufferedReader script = args.length == 5
+               ? new BufferedReader(new FileReader(args[4]))
+               : new BufferedReader(new InputStreamReader(System.in));
+            int failures = new RetailCommands(esql).run(script);
+            script.close();
+            if (failures > 0)
+               System.err.println(failures + " command(s) failed");
+         }else if (mode.equals("import")) {
+            // loads an orders file in multi-row batches
+            BufferedReader orders = new BufferedReader(new FileReader(args[4]), 1 << 16);
+            try{
+               new OrderImporter(esql, Integer.getInteger("retail.import.batch", 5000)).run(orders);
+            }finally{
+               orders.close();
+            }
+         }else if (mode.equals("backfill")) {
+            // rebuilds the per-store order counts the popularity reports read
+            List<List<String>> result = esql.executeQueryAndReturnResult("SELECT backfill_order_counts();");
+            System.out.println("Counted " + result.get(0).get(0) + " orders");
+         }else if (mode.equals("supply")) {
+            // restocks a store from a file in one transaction, under the store's manager
+            int store = Integer.parseInt(args[5]);
+            StoreLocator.Store s = esql.getReferenceData().getStore(store);
+            if (s == null)
+               throw new IllegalArgumentException("Store " + store + " does not exist");
+            BufferedReader restock = new BufferedReader(new FileReader(args[6]), 1 << 16);
+            try{
+               new SupplyImporter(esql).run(restock, s.managerID, Integer.parseInt(args[4]), store);
+            }finally{
+               restock.close();
+            }
+         }else if (mode.equals("replenish")) {
+            // one pass over every store
+            ReplenishmentEngine engine = replenisher(esql, 0);
+            System.out.println(engine.runOnce() + " supply requests submitted");
+            System.out.println(engine.report());
+         }else if (mode.equals("shard")) {
+            // splits a hot product's stock over sub-counters; 1 shard turns it off
+            int shards = Integer.parseInt(args[6]);
+            esql.executeQueryAndReturnResult("SELECT shard_product_stock(?, ?, ?);", Integer.valueOf(args[4]), args[5], shards);
+            System.out.println(shards > 1 ? "Stock split over " + shards + " shards" : "Stock is no longer sharded");
+         }else {
+            runSession(esql);
+         }
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if (rebalancer != null)
+               rebalancer.close();
+            if (esql != null && esql._replenisher != null)
+               esql._replenisher.close();
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+               if (metricsInterval > 0)
+                  Metrics.dump(metricsFile);
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+   // a replenishment engine configured from the system properties
+   private static ReplenishmentEngine replenisher(Retail esql, long interval) {
+      return new ReplenishmentEngine(esql, interval,
+         Integer.getInteger("retail.replenish.stores", 10),
+         ReplenishmentEngine.REORDER_POINT, ReplenishmentEngine.RESTOCK_TO);
+   }//end replenisher
+
+   /**
+    * Runs the menus for one user session until they choose to exit or
+    * their input ends.
+    *
+    * @param esql the session to run the menus on
+    */
+   public static void runSession(Retail esql) {
+      try{
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -277,61 +1136,66 @@ public class Retail {
             System.out.println("9. < EXIT");
             List<String> authorisedUserData = null;
             switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUserData = LogIn(esql);break;
+               case 1: Metrics.begin("CreateUser"); CreateUser(esql); break;
+               case 2: Metrics.begin("LogIn"); authorisedUserData = LogIn(esql);break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
             if (authorisedUserData != null) {
-              esql.userID=authorisedUserData.get(0).trim();
-              esql.userType = authorisedUserData.get(1).trim();
               boolean usermenu = true;
 
               while(usermenu) {
                if(esql.userType.equals("admin")){
                   adminMenu();
                   switch (readChoice()){
-                     case 1: viewStores(esql);printWait(); break;
-                     case 2: viewProducts(esql); break;
-                     case 3: placeOrder(esql); break;
-                     case 4: viewRecentOrders(esql); break;
-                     case 5: adminViewUsers(esql);break;
-                     case 6: adminViewProducts(esql);break;
-                     case 7: adminUpdateUser(esql);break;
-                     case 8: updateProduct(esql);break;
-                     case 9: viewRecentUpdates(esql); break;
-                     case 10: viewPopularProducts(esql); break;
-                     case 11: viewPopularCustomers(esql); break;
-                     case 12: placeProductSupplyRequests(esql); break;
-                     case 13: viewStoreOrders(esql);break;
-                     case 14: viewSupplyRequests(esql);break;
+                     case 1: Metrics.begin("viewStores"); viewStores(esql);printWait(); break;
+                     case 2: Metrics.begin("viewProducts"); viewProducts(esql); break;
+                     case 3: Metrics.begin("placeOrder"); placeOrder(esql); break;
+                     case 4: Metrics.begin("viewRecentOrders"); viewRecentOrders(esql); break;
+                     case 5: Metrics.begin("adminViewUsers"); adminViewUsers(esql);break;
+                     case 6: Metrics.begin("adminViewProducts"); adminViewProducts(esql);break;
+                     case 7: Metrics.begin("adminUpdateUser"); adminUpdateUser(esql);break;
+                     case 8: Metrics.begin("updateProduct"); updateProduct(esql);break;
+                     case 9: Metrics.begin("viewRecentUpdates"); viewRecentUpdates(esql); break;
+                     case 10: Metrics.begin("viewPopularProducts"); viewPopularProducts(esql); break;
+                     case 11: Metrics.begin("viewPopularCustomers"); viewPopularCustomers(esql); break;
+                     case 12: Metrics.begin("placeProductSupplyRequests"); placeProductSupplyRequests(esql); break;
+                     case 13: Metrics.begin("viewStoreOrders"); viewStoreOrders(esql);break;
+                     case 14: Metrics.begin("viewSupplyRequests"); viewSupplyRequests(esql);break;
+                     case 15: Metrics.begin("viewMetrics"); viewMetrics(esql);break;
+                     case 16: Metrics.begin("viewSlowQueries"); viewSlowQueries(esql);break;
+                     case 17: Metrics.begin("viewSalesAnalytics"); viewSalesAnalytics(esql);break;
+                     case 19: Metrics.begin("placeCartOrder"); placeCartOrder(esql); break;
                      case 20: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
                     }
                }else if(esql.userType.equals("manager")){
                   manageMenu();
                   switch (readChoice()){
-                     case 1: viewStores(esql);printWait(); break;
-                     case 2: viewProducts(esql); break;
-                     case 3: placeOrder(esql); break;
-                     case 4: viewRecentOrders(esql); break;
-                     case 5: updateProduct(esql); break;
-                     case 6: viewRecentUpdates(esql); break;
-                     case 7: viewPopularProducts(esql); break;
-                     case 8: viewPopularCustomers(esql); break;
-                     case 9: placeProductSupplyRequests(esql); break;
-                     case 10: viewStoreOrders(esql);break;
-                     case 11: viewSupplyRequests(esql);break;
+                     case 1: Metrics.begin("viewStores"); viewStores(esql);printWait(); break;
+                     case 2: Metrics.begin("viewProducts"); viewProducts(esql); break;
+                     case 3: Metrics.begin("placeOrder"); placeOrder(esql); break;
+                     case 4: Metrics.begin("viewRecentOrders"); viewRecentOrders(esql); break;
+                     case 5: Metrics.begin("updateProduct"); updateProduct(esql); break;
+                     case 6: Metrics.begin("viewRecentUpdates"); viewRecentUpdates(esql); break;
+                     case 7: Metrics.begin("viewPopularProducts"); viewPopularProducts(esql); break;
+                     case 8: Metrics.begin("viewPopularCustomers"); viewPopularCustomers(esql); break;
+                     case 9: Metrics.begin("placeProductSupplyRequests"); placeProductSupplyRequests(esql); break;
+                     case 10: Metrics.begin("viewStoreOrders"); viewStoreOrders(esql);break;
+                     case 11: Metrics.begin("viewSupplyRequests"); viewSupplyRequests(esql);break;
+                     case 12: Metrics.begin("viewDashboard"); viewDashboard(esql);break;
+                     case 19: Metrics.begin("placeCartOrder"); placeCartOrder(esql); break;
                      case 20: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
                     }
                }else{
                   custMenu();
                switch (readChoice()){
-                  case 1: viewStores(esql);printWait(); break;
-                  case 2: viewProducts(esql); break;
-                  case 3: placeOrder(esql); break;
-                  case 4: viewRecentOrders(esql); break;
+                  case 1: Metrics.begin("viewStores"); viewStores(esql);printWait(); break;
+                  case 2: Metrics.begin("viewProducts"); viewProducts(esql); break;
+                  case 3: Metrics.begin("placeOrder"); placeOrder(esql); break;
+                  case 4: Metrics.begin("viewRecentOrders"); viewRecentOrders(esql); break;
+                  case 19: Metrics.begin("placeCartOrder"); placeCartOrder(esql); break;
                   case 20: usermenu = false; break;
                   default : System.out.println("Unrecognized choice!"); break;
                   }
@@ -339,21 +1203,10 @@ public class Retail {
             }
          }
          }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
-      }//end try
-   }//end main
+      }catch(SessionConsole.ClosedError e) {
+         // the user closed their input; end the session quietly.
+      }
+   }//end runSession
 
    public static void Greeting(){
       System.out.println(
@@ -420,21 +1273,69 @@ public class Retail {
          
          String type="customer";
 
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %d, %s,'%s')", name, password, latitude, longitude, type);
+			String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, name, password, latitude, longitude, type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
    }//end CreateUser
 
+   /**
+    * Prints a listing PAGE_SIZE rows at a time, asking before each further
+    * page. Every page is its own short query, so no transaction stays open
+    * while the user reads. CSV and TSV output is meant for saving and is
+    * streamed whole instead.
+    *
+    * @param esql the session to query with
+    * @param listing the listing to print
+    * @param params the parameters of the listing
+    * @return the number of rows printed
+    * @throws java.lang.Exception when the listing cannot be read
+    */
+   public static int printPages(Retail esql, KeysetQuery listing, Object... params) throws Exception {
+      if (esql.outputFormat != ResultRenderer.Format.TABLE)
+         return esql.executeQueryAndStreamResult(listing.getAll(), params);
+      ResultRenderer renderer = new ResultRenderer(System.out, esql.outputFormat);
+      int total = 0;
+      int rows = esql.executeQueryAndPrintResult(renderer, listing.getFirstPage(), listing.pageParameters(params, null, PAGE_SIZE));
+      total += rows;
+      while (rows == PAGE_SIZE) {
+         System.out.print("-- " + total + " rows shown, <ENTER> for more or q to stop: ");
+         if (in.readLine().trim().equalsIgnoreCase("q"))
+            break;
+         rows = esql.executeQueryAndPrintResult(renderer, listing.getNextPage(), listing.pageParameters(params, renderer.getLastRow(), PAGE_SIZE));
+         total += rows;
+      }//end while
+      return total;
+   }//end printPages
+
+   /**
+    * Prints the name, stock and price of a store's products from the
+    * inventory cache
+    *
+    * @param esql the session to read with
+    * @param storeID the store
+    * @return the number of products printed
+    * @throws java.sql.SQLException when the products cannot be read
+    */
+   public static int printProducts(Retail esql, int storeID) throws SQLException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (InventoryCache.Product p : esql.getInventory(storeID).getProducts())
+         rows.add(Arrays.asList(p.productName, String.valueOf(p.numberOfUnits), p.pricePerUnit));
+      return esql.printResult(STORE_PRODUCT_COLUMNS, rows);
+   }//end printProducts
+
    //Function to call to wait for user to prompt to continue
    //Use to let user view data sets before new prompts or menus print
    public static void printWait(){
       System.out.print("\n\nPress <ENTER>...");
-      Scanner s = new Scanner(System.in);
-      s.nextLine();
+      try{
+         in.readLine();
+      }catch(IOException e){
+         // nothing left to wait for.
+      }
    }
    public static void custMenu(){
       System.out.println("\n\nMAIN MENU");
@@ -444,6 +1345,7 @@ public class Retail {
       System.out.println("3. Place a Order");
       System.out.println("4. View 5 recent orders");
       System.out.println(".........................");
+      System.out.println("19. Place a Cart Order (several products)");
       System.out.println("20. Log out");
    }
    public static void manageMenu(){
@@ -461,7 +1363,9 @@ public class Retail {
       System.out.println("9. Place Product Supply Request to Warehouse");
       System.out.println("10.View Orders at Store");
       System.out.println("11.View 5 Recent Supply Requests for Store");
+      System.out.println("12.View Dashboard of all my Stores");
       System.out.println(".........................");
+      System.out.println("19. Place a Cart Order (several products)");
       System.out.println("20. Log out");
    }
    public static void adminMenu(){
@@ -482,7 +1386,11 @@ public class Retail {
       System.out.println("12. Place Product Supply Request to Warehouse");
       System.out.println("13.View Orders at Store");
       System.out.println("14.View 5 Recent Supply Requests for Store");
+      System.out.println("15.View Query Metrics");
+      System.out.println("16.View Slow Queries");
+      System.out.println("17.View Sales Analytics");
       System.out.println(".........................");
+      System.out.println("19. Place a Cart Order (several products)");
       System.out.println("20. Log out");
    }
    /*
@@ -496,10 +1404,8 @@ public class Retail {
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT userID, type FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-	 if (result.size() > 0){
-         List<String> user = result.get(0);
+         List<String> user = esql.login(name, password);
+	 if (user != null){
 		   return user;
       }
       System.out.println("Invalid Login...");
@@ -514,12 +1420,10 @@ public class Retail {
 
    public static String getStoreID(Retail esql){//Helper function to get valid storeID for managers and Admins with no range limits
       String storeID;
-      String query;
       if(esql.userType.equals("admin")){
-            query = String.format("SELECT storeID, name, dateestablished FROM Store;");
             System.out.println();
             try{
-               esql.executeQueryAndPrintResult(query);
+               esql.printResult(STORE_COLUMNS, ReferenceData.storeRows(esql.getReferenceData().getStores()));
             }
             catch(Exception e){
                System.err.println (e.getMessage ());
@@ -529,8 +1433,7 @@ public class Retail {
                try{
                   System.out.print("\tEnter Store ID: ");
                   storeID = in.readLine().trim();
-                  query = String.format("Select * FROM Store WHERE storeID= %s;",storeID,esql.userID);
-                  if(esql.executeQuery(query) == 0){
+                  if(esql.getReferenceData().getStore(Integer.parseInt(storeID)) == null){
                      System.out.format("Invalid Store Choice! Please select a valid store\n",esql.userID);
                   }else{break;}
                }catch (Exception e) {
@@ -539,10 +1442,9 @@ public class Retail {
                }
             }while(true);
          }else{
-            query = String.format("SELECT storeID, name, dateestablished FROM Store WHERE managerID = %s;", esql.userID);
             System.out.println();
             try{
-               esql.executeQueryAndPrintResult(query);
+               esql.printResult(STORE_COLUMNS, ReferenceData.storeRows(esql.getReferenceData().getManagedStores(Integer.parseInt(esql.userID))));
             }
             catch(Exception e){
                System.err.println (e.getMessage ());
@@ -552,8 +1454,7 @@ public class Retail {
                try{
                   System.out.print("\tEnter Store ID: ");
                   storeID = in.readLine().trim();
-                  query = String.format("Select * FROM Store WHERE storeID= %s AND managerID = %s;", storeID,esql.userID);
-                  if(esql.executeQuery(query)== 0)
+                  if(!esql.getReferenceData().isManager(Integer.parseInt(storeID), Integer.parseInt(esql.userID)))
                      System.out.format("Invalid Store Choice! Please select a store where you manage\n", esql.userID);
                   else{break;}
                }catch (Exception e) {
@@ -566,9 +1467,14 @@ public class Retail {
    }
    public static void viewStores(Retail esql) {//View Stores 30 miles or less from logged in Customer
       try{
-         String query = String.format("SELECT S.storeID, S.name, calculate_distance(U.latitude, U.longitude, S.latitude, S.longitude) AS distance FROM Store S, Users U WHERE U.userID = '%s' AND calculate_distance(U.latitude, U.longitude, S.latitude, S.longitude)<= 30;", esql.userID);
+         // answered from the in-memory store index instead of a scan of Store
+         List<List<String>> rows = new ArrayList<List<String>>();
+         List<StoreLocator.Match> matches = esql.getStoreLocator().within(esql.userLatitude, esql.userLongitude, STORE_RADIUS);
+         Collections.sort(matches, StoreLocator.BY_STORE_ID);
+         for (StoreLocator.Match m : matches)
+            rows.add(Arrays.asList(String.valueOf(m.store.storeID), m.store.name, String.valueOf(m.distance)));
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
+         esql.printResult(new String[]{"storeid", "name", "distance"}, rows);
       }catch(Exception e){
          System.err.println(e.getMessage());
       }
@@ -576,15 +1482,13 @@ public class Retail {
    public static void viewProducts(Retail esql) {//View Products available at any store
       try{
          int store=0;
-         String query = String.format("SELECT storeID, name, dateestablished FROM Store;");
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
+         esql.printResult(STORE_COLUMNS, ReferenceData.storeRows(esql.getReferenceData().getStores()));
          do {
             System.out.print("\tEnter Store ID: ");
             try { // read the integer, parse it and break.
                store = Integer.parseInt(in.readLine());
-               query = String.format("SELECT * FROM Store WHERE storeID = %d;", store);
-               if(esql.executeQuery(query)==0){
+               if(esql.getReferenceData().getStore(store)==null){
                   System.out.println("The store does not exist");
                }else{break;}
             }catch (Exception e) {
@@ -592,9 +1496,8 @@ public class Retail {
                continue;
             }//end try
          }while (true);
-      query = String.format("SELECT P.productName as Name, P.numberOfUnits as Qty, P.pricePerUnit as Unit_Price FROM Product P WHERE P.storeID = '%d';",store);
       System.out.println();
-      esql.executeQueryAndPrintResult(query);
+      printProducts(esql, store);
       printWait();
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -605,14 +1508,14 @@ public class Retail {
          int store=0;
          String productName;
          int units;
-         String query;
+         List<String> order;
          do { // StoreID input
             viewStores(esql);
             System.out.print("\tEnter Store ID: ");
             try { // read the integer, parse it and break.
                store = Integer.parseInt(in.readLine());
-               query = String.format("SELECT S.storeID FROM Store S, Users U WHERE S.storeID = '%d' AND U.userID = '%s' AND calculate_distance(U.latitude, U.longitude, S.latitude, S.longitude)<= 30;", store, esql.userID);
-               if(esql.executeQuery(query)==0){
+               double distance = esql.getStoreLocator().distance(store, esql.userLatitude, esql.userLongitude);
+               if(distance < 0 || distance > STORE_RADIUS){
                   System.out.println("The store does not exist or is too far!");
                   continue;
                }
@@ -623,39 +1526,102 @@ public class Retail {
             }//end try
          }while (true);
          do{ //Product name input
-            query = String.format("SELECT ProductName, numberofunits as Qty_Available FROM Product WHERE storeID = %d;", store);
             System.out.println();
-            esql.executeQueryAndPrintResult(query);
+            printProducts(esql, store);
             while(true){
                System.out.print("\tEnter Product Name: ");
                productName = in.readLine().trim();
-               query = String.format("SELECT * FROM Product WHERE storeID = %d AND productName = '%s';",store,productName);
-               if(esql.executeQuery(query)==0){
+               if(esql.getProduct(store, productName)==null){
                   System.out.println("Invalid Product...");
                }else{break;}
             }
             System.out.print("\tEnter Number of units: ");
             try { // read the integer, parse it and break.
                units = Integer.parseInt(in.readLine());
+               if(units <= 0){
+                  System.out.println("Number of units must be positive!");
+                  continue;
+               }
             }catch (Exception e) {
                System.out.println("Your input is invalid!");
                continue;
             }//end try
-            query = String.format("SELECT storeID FROM Product WHERE storeID = '%d' AND productName = '%s' AND numberOfUnits>=%d;", store, productName, units);
-            if(esql.executeQuery(query)==0){
-               System.out.println("The product does not exists or there is not enough stock!");
+            //Stock check, insert and stock decrement happen in one statement
+            order = esql.submitOrder(Integer.parseInt(esql.userID), store, productName, units);
+            if(order == null){
+               System.out.println("There is not enough stock!");
                continue;
             }
             break;
          }while(true);
-         
-         //Insert into Orders table; the product table is updated using a trigger
-         String q3 = String.format("INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (%s, %d, '%s', %d, DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp))", esql.userID, store, productName, units);
-         esql.executeUpdate(q3);
+
          //Feedback to user
          System.out.println("\nOrder Submitted...");
-         query = String.format("SELECT * FROM Orders WHERE customerID=%s ORDER BY orderNumber DESC LIMIT 1;",esql.userID);
-         esql.executeQueryAndPrintResult(query);
+         esql.printResult(ORDER_COLUMNS, Collections.singletonList(order));
+         printWait();
+      }
+      catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void placeCartOrder(Retail esql) {//Order several products, from stores within range, all at once
+      try{
+         Cart cart = new Cart();
+         int store=0;
+         String productName;
+         int units;
+         while(true){
+            System.out.print("\tEnter Store ID" + (cart.isEmpty() ? "" : " (Press Enter for Store " + store + ")") + ": ");
+            try { // read the integer, parse it and break.
+               String input = in.readLine().trim();
+               if(cart.isEmpty() || !input.equals("")){
+                  int choice = Integer.parseInt(input);
+                  double distance = esql.getStoreLocator().distance(choice, esql.userLatitude, esql.userLongitude);
+                  if(distance < 0 || distance > STORE_RADIUS){
+                     System.out.println("The store does not exist or is too far!");
+                     continue;
+                  }
+                  store = choice;
+                  System.out.println();
+                  printProducts(esql, store);
+               }
+               System.out.print("\tEnter Product Name: ");
+               productName = in.readLine().trim();
+               if(esql.getProduct(store, productName)==null){
+                  System.out.println("Invalid Product...");
+                  continue;
+               }
+               System.out.print("\tEnter Number of units: ");
+               units = Integer.parseInt(in.readLine());
+               cart.add(store, productName, units);
+            }catch (NumberFormatException e) {
+               System.out.println("Your input is invalid!");
+               continue;
+            }catch (RuntimeException e) {
+               System.out.println(e.getMessage());
+               continue;
+            }//end try
+            System.out.println("\nYour cart:");
+            esql.printResult(Cart.COLUMNS, cart.getRows());
+            System.out.print("\tAdd another product? (y/n): ");
+            if(!in.readLine().trim().equalsIgnoreCase("y")){
+               break;
+            }
+         }
+
+         //Every line is ordered in one transaction, or none is
+         List<List<String>> orders = esql.submitCart(Integer.parseInt(esql.userID), cart);
+         if(orders == null){
+            System.out.println("\nThe cart was not ordered, there is not enough stock of:");
+            for(Cart.Line line : cart.getLines()){
+               InventoryCache.Product product = esql.getProduct(line.storeID, line.productName);
+               if(product == null || product.numberOfUnits < line.units)
+                  System.out.format("\t%s at Store %d (%d available)\n", line.productName, line.storeID, product == null ? 0 : product.numberOfUnits);
+            }
+         }else{
+            System.out.println("\nOrders Submitted...");
+            esql.printResult(ORDER_COLUMNS, orders);
+         }
          printWait();
       }
       catch(Exception e){
@@ -664,10 +1630,8 @@ public class Retail {
    }
    public static void viewRecentOrders(Retail esql) {//View your recent orders
       try{
-         String query = String.format("SELECT S.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime FROM Store S, Orders O WHERE '%s' = O.customerID AND O.storeID = S.storeID ORDER BY O.orderTime desc LIMIT 5;", esql.userID);
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
-         if(esql.executeQuery(query)==0){
+         if(esql.executeQueryAndPrintResult(RECENT_ORDERS, Integer.valueOf(esql.userID))==0){
             System.out.println("\tYou have no orders to view");
          }
          printWait();
@@ -680,15 +1644,14 @@ public class Retail {
          String[] values = {null,null,null,null};
          List<String> validProduct=null;
          values[0] = getStoreID(esql);
-         String query = String.format("SELECT * FROM Product P WHERE P.storeID=%s ORDER BY P.storeID;", values[0]);
+         int store = Integer.parseInt(values[0]);
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
+         esql.printResult(PRODUCT_COLUMNS, esql.getInventory(store).rows());
          do{
             try{
                System.out.print("\tEnter Product Name: ");
                values[1] = in.readLine().trim();
-               query = String.format("Select * FROM Product WHERE productName = '%s' AND storeID = %s;", values[1], values[0]);
-               if(esql.executeQuery(query)== 0){
+               if(esql.getProduct(store, values[1])== null){
                   System.out.format("Product '%s' does not exist at Store %s! Please select valid product\n", values[1], values[0]);
                }else{break;}
             }catch (Exception e) {
@@ -697,26 +1660,40 @@ public class Retail {
             }
          }while(true);
 
-         validProduct=esql.executeQueryAndReturnResult(query).get(0);
-         System.out.format("Current Product : %s at Store %s\n",validProduct.get(1).trim(),validProduct.get(0).trim());
-         System.out.format("Current Quantity: %s\nNew Quantity (Press Enter to keep current): ", validProduct.get(2));
-         values[2] = in.readLine();
-         if(values[2].equals("")){
-            values[2] = validProduct.get(2);
-         }
-         System.out.format("Current Unit Price: %s\nNew Unit Price (Press Enter to keep current): ", validProduct.get(3));
-         values[3] = in.readLine();
-         if(values[3].equals("")){
-            values[3] = validProduct.get(3);
+         // the version read here is checked when writing, so changes made meanwhile are not overwritten
+         validProduct=esql.readProduct(store, values[1]);
+         while(validProduct != null){
+            System.out.format("Current Product : %s at Store %s\n",validProduct.get(1).trim(),validProduct.get(0).trim());
+            System.out.format("Current Quantity: %s\nNew Quantity, or +n/-n to add or remove units (Press Enter to keep current): ", validProduct.get(2));
+            values[2] = in.readLine().trim();
+            // a relative change merges with the orders placed meanwhile
+            boolean absolute = !(values[2].equals("") || values[2].startsWith("+") || values[2].startsWith("-"));
+            int units = values[2].equals("") ? 0 : Integer.parseInt(values[2].startsWith("+") ? values[2].substring(1) : values[2]);
+            System.out.format("Current Unit Price: %s\nNew Unit Price (Press Enter to keep current): ", validProduct.get(3));
+            values[3] = in.readLine();
+            if(values[3].equals("")){
+               values[3] = validProduct.get(3);
+            }
+            System.out.println("\nOriginal Product Info:");
+            esql.printResult(PRODUCT_VERSION_COLUMNS, Collections.singletonList(validProduct));
+            List<String> updated = esql.updateProductValues(validProduct, absolute, units, Double.parseDouble(values[3].trim()));
+            if(updated == null){
+               System.out.format("Product '%s' no longer exists at Store %s!\n", values[1], values[0]);
+            }else if(isUpdated(updated)){
+               System.out.println("\nUpdated Product Info:");
+               esql.printResult(PRODUCT_VERSION_COLUMNS, Collections.singletonList(updated.subList(0, 5)));
+            }else if(isShortOfStock(updated)){
+               System.out.format("\nOnly %s units are in stock; removing %d would leave fewer than none. Nothing was saved. Please edit the current values:\n",
+                  updated.get(2).trim(), -units);
+               validProduct = updated.subList(0, 5);
+               continue;
+            }else{
+               System.out.println("\nThe product was changed while you were editing it; nothing was saved. Please edit the current values:");
+               validProduct = updated.subList(0, 5);
+               continue;
+            }
+            break;
          }
-         System.out.println("\nOriginal Product Info:");
-         esql.executeQueryAndPrintResult(query);
-         String update = String.format("UPDATE Product SET numberOfUnits = %s , pricePerUnit = %s WHERE storeID = %s AND productName = '%s';", values[2],values[3],values[0],values[1]);
-         esql.executeUpdate(update);
-         System.out.println("\nUpdated Product Info:");
-         esql.executeQueryAndPrintResult(query);
-         query = String.format("INSERT INTO ProductUpdates (managerID,storeID,productName,updatedOn) VALUES ( %s, %s, '%s', DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp));", esql.userID, values[0], values[1]);
-         esql.executeUpdate(query);
          printWait();
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -725,9 +1702,9 @@ public class Retail {
    public static void viewRecentUpdates(Retail esql) {//View Recent Product Updates at store you manage
       try{
          String store = getStoreID(esql);
-         String query = String.format("SELECT * FROM ProductUpdates WHERE storeID = %s ORDER BY updateNumber DESC LIMIT 5;",store);
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
+         esql.flushAudit();
+         esql.executeQueryAndPrintResult(RECENT_UPDATES, Integer.parseInt(store));
          printWait();
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -737,9 +1714,8 @@ public class Retail {
    public static void viewPopularProducts(Retail esql) {//View the most popular products in a store
       try{
          String store = getStoreID(esql);
-         String query = String.format("SELECT O.productName, COUNT(*) as NumOfOrders FROM Orders O WHERE O.storeID ='%s' GROUP BY O.productName ORDER BY COUNT(*) DESC LIMIT 5;", store);
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
+         esql.executeQueryAndPrintResult(POPULAR_PRODUCTS, Integer.parseInt(store));
          printWait();
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -747,30 +1723,98 @@ public class Retail {
    }
    public static void viewPopularCustomers(Retail esql) {//View the most popular customers across all the manager's stores
       try{
-         int valid = 0;
          String store = getStoreID(esql);
-         String query = String.format("SELECT O.customerID, U.name, COUNT(*) as NumOfOrders FROM Orders O, Users U WHERE O.storeID='%s' AND O.customerID=U.userID GROUP BY O.customerID, U.name ORDER BY COUNT(*) DESC LIMIT 5;", store);
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
+         esql.executeQueryAndPrintResult(POPULAR_CUSTOMERS, Integer.parseInt(store));
          printWait();
       }catch(Exception e){
          System.err.println(e.getMessage());
       }
    }
+   public static void viewDashboard(Retail esql) {//View the reports of every store the manager runs at once
+      try{
+         System.out.println();
+         printDashboard(esql, esql.getReferenceData().getManagedStores(Integer.parseInt(esql.userID)));
+         printWait();
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /**
+    * Prints the dashboard reports of the given stores, loaded concurrently
+    *
+    * @param esql the session the queries run through
+    * @param stores the stores to report on
+    * @throws java.sql.SQLException when a report cannot be loaded
+    */
+   static void printDashboard(Retail esql, List<StoreLocator.Store> stores) throws SQLException {
+      if (stores.isEmpty()) {
+         System.out.println("You do not manage any store");
+         return;
+      }//end if
+      ManagerDashboard.Result result = esql._dashboard.load(esql, stores);
+      for (ManagerDashboard.Section section : result.sections) {
+         System.out.println(section.title);
+         esql.printResult(section.columns, section.rows);
+         System.out.println();
+      }//end for
+      System.out.println(String.format("%d stores loaded in %.2f ms (%.2f ms of queries)",
+         result.stores, result.elapsed / 1e6, result.queryTime / 1e6));
+   }//end printDashboard
+
+   public static void viewSalesAnalytics(Retail esql) {//Admins can view revenue, units and orders of the whole history grouped by a dimension
+      try{
+         SalesAnalytics.Dimension by;
+         while (true) {
+            System.out.print("\tGroup by (store, product, hour, day, week, cohort): ");
+            try{
+               by = SalesAnalytics.Dimension.valueOf(in.readLine().trim().toUpperCase());
+               break;
+            }catch (IllegalArgumentException e){
+               System.out.println("Your input is invalid!");
+            }
+         }//end while
+         System.out.print("\tEnter Store ID, or nothing for every store: ");
+         String store = in.readLine().trim();
+         System.out.println();
+         printSales(esql, by, store.isEmpty() ? -1 : Integer.parseInt(store));
+         printWait();
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /**
+    * Brings the copy of the Orders history up to date and prints its totals
+    * by a dimension
+    *
+    * @param esql the session the new orders are read through
+    * @param by what the orders are grouped by
+    * @param store the only store counted, or -1 for every store
+    * @throws java.sql.SQLException when the new orders cannot be read
+    */
+   static void printSales(Retail esql, SalesAnalytics.Dimension by, int store) throws SQLException {
+      long start = System.nanoTime();
+      int added = esql._analytics.refresh(esql);
+      long refreshed = System.nanoTime() - start;
+      SalesAnalytics.Report report = esql._analytics.aggregate(by, store, Long.MIN_VALUE, Long.MAX_VALUE);
+      esql.printResult(report.columns, report.rows);
+      System.out.println(String.format("%d orders totaled in %.2f ms (%d new orders read in %.2f ms)",
+         report.scanned, report.elapsed / 1e6, added, refreshed / 1e6));
+   }//end printSales
+
    public static void placeProductSupplyRequests(Retail esql) {//Place Supply Requests for a store you manage
       try{
          int qty = 0;
-         String query;
          String[] values = {null,null,null};
-         query = String.format("SELECT * FROM Warehouse ORDER BY warehouseID;");
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
+         esql.printResult(WAREHOUSE_COLUMNS, esql.getReferenceData().warehouseRows());
          do{
             try{
                System.out.print("\tEnter Warehouse ID: ");
                values[0] = in.readLine().trim();
-               query = String.format("SELECT * FROM Warehouse WHERE warehouseID= %s;",values[0]);
-               if(esql.executeQuery(query) == 0){
+               if(esql.getReferenceData().getWarehouse(Integer.parseInt(values[0])) == null){
                   System.out.format("Invalid Choice! Please select a warehouse\n",esql.userID);
                   }else{break;}
             }catch (Exception e) {
@@ -779,43 +1823,72 @@ public class Retail {
                }
          }while(true);
          values[1] = getStoreID(esql);
-         query = String.format("SELECT productName, numberOfUnits FROM Product WHERE storeID=%s ORDER BY productName;", values[1]);
+         int warehouse = Integer.parseInt(values[0]);
+         int store = Integer.parseInt(values[1]);
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
-         do{
-            try{
-               System.out.print("\tEnter Product Name: ");
-               values[2] = in.readLine().trim();
-               query = String.format("Select * FROM Product WHERE storeID= %s AND productName = '%s';",values[1],values[2]);
-               if(esql.executeQuery(query) == 0){
-                  System.out.format("Invalid Choice! Please select a valid product\n",esql.userID);
-               }else{break;}
-            }catch (Exception e) {
-                  System.out.println("Your input is invalid!");
-                  continue;
-            }            
-         }while(true);
-         do{ 
-            System.out.print("\tEnter Quantity: ");
-            try { 
-               qty = Integer.parseInt(in.readLine());
+         printProducts(esql, store);
+         List<SupplyImporter.Line> lines = new ArrayList<SupplyImporter.Line>();
+         while(true){
+            do{
+               try{
+                  System.out.print("\tEnter Product Name (or @<file> to load productName,units lines): ");
+                  values[2] = in.readLine().trim();
+                  if(values[2].startsWith("@")){
+                     BufferedReader file = new BufferedReader(new FileReader(values[2].substring(1).trim()));
+                     try{
+                        lines.addAll(SupplyImporter.read(file));
+                     }finally{
+                        file.close();
+                     }
+                     break;
+                  }
+                  if(esql.getProduct(store, values[2]) == null){
+                     System.out.format("Invalid Choice! Please select a valid product\n",esql.userID);
+                  }else{break;}
+               }catch (Exception e) {
+                     System.out.println("Your input is invalid!");
+                     continue;
+               }
+            }while(true);
+            if(!values[2].startsWith("@")){
+               do{
+                  System.out.print("\tEnter Quantity: ");
+                  try {
+                     qty = Integer.parseInt(in.readLine());
+                     if(qty <= 0){
+                        System.out.println("Quantity must be positive!");
+                        continue;
+                     }
+                     break;
+                  }catch (Exception e) {
+                     System.out.println("Your input is invalid!");
+                     continue;
+                  }
+               }while(true);
+               lines.add(new SupplyImporter.Line(values[2], qty));
+            }
+            System.out.print("\tAdd more products? (y/n): ");
+            if(!in.readLine().trim().equalsIgnoreCase("y")){
                break;
-            }catch (Exception e) {
-               System.out.println("Your input is invalid!");
-               continue;
             }
-         }while(true);
-         int curQty = Integer.parseInt(esql.executeQueryAndReturnResult(String.format("SELECT numberOfUnits FROM Product WHERE storeID =%s AND productName = '%s'", values[1],values[2])).get(0).get(0));
-         System.out.println("Update Product");
-         query = String.format("UPDATE Product SET numberOfUnits = %s WHERE storeID = %s AND productName = '%s';", (qty+curQty),values[1],values[2]);
-         esql.executeUpdate(query);
-         System.out.println("Insert Product Request");
-         query = String.format("INSERT INTO ProductSupplyRequests(managerID,warehouseID,storeID,productName,unitsRequested) VALUES (%s, %s, %s, '%s', %d); ",esql.userID, values[0],values[1],values[2],qty);
-         esql.executeUpdate(query);
-         System.out.println();
-         System.out.println("Order Submitted...");
-         query = String.format("SELECT * FROM ProductSupplyRequests ORDER BY requestNumber DESC LIMIT 1;");
-         esql.executeQueryAndPrintResult(query);
+         }
+         if(lines.isEmpty()){
+            System.out.println("Nothing to request...");
+         }else if(lines.size() == 1){
+            List<String> request = esql.submitSupplyRequest(warehouse, store, lines.get(0).productName, lines.get(0).units);
+            System.out.println();
+            if(request == null){
+               System.out.format("Product '%s' does not exist at Store %d!\n", lines.get(0).productName, store);
+            }else{
+               System.out.println("Order Submitted...");
+               esql.printResult(SUPPLY_REQUEST_COLUMNS, Collections.singletonList(request));
+            }
+         }else{
+            //Every line is restocked in one transaction, or none is
+            esql.submitSupplyBatch(Integer.parseInt(esql.userID), warehouse, store, lines);
+            System.out.println();
+            System.out.println(lines.size() + " Supply Requests Submitted...");
+         }
          printWait();
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -824,10 +1897,8 @@ public class Retail {
    public static void viewStoreOrders(Retail esql){//View orders at a store you manage
       try{
          String store=getStoreID(esql);
-         String query = String.format("SELECT * FROM Orders WHERE storeID = %s ORDER BY ordertime DESC;", store);
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
-         if(esql.executeQuery(query)==0){
+         if(printPages(esql, STORE_ORDERS, Integer.parseInt(store))==0){
             System.out.println("\tThis store has no orders to view");
          }
          printWait();
@@ -837,9 +1908,8 @@ public class Retail {
    }
    public static void adminViewUsers(Retail esql) {//Admins can view all registered users
        try{
-         String query = String.format("SELECT * FROM Users ORDER BY type,name;");
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
+         printPages(esql, ALL_USERS);
          printWait();
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -847,9 +1917,8 @@ public class Retail {
    }
    public static void adminViewProducts(Retail esql) {//Admins can view all products at all stores
       try{
-         String query = String.format("SELECT * FROM Product ORDER BY storeID,productName;");
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
+         printPages(esql, ALL_PRODUCTS);
          printWait();
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -863,65 +1932,100 @@ public class Retail {
          List<String> validUser=null;
          System.out.print("\tEnter User ID: ");
          user = Integer.parseInt(in.readLine());
-         String query = String.format("Select * FROM Users WHERE userID = '%d';", user);
-         result = esql.executeQueryAndReturnResult(query);
-         validUser = result.get(0);
-         System.out.format("\tUser ID : %s\n",validUser.get(0));
-         System.out.format("\tCurrent Name: %s\n\tNew User Name (Press Enter to keep current): ", validUser.get(1));
-         values[0] = in.readLine();
-         if(values[0].equals("")){
-            values[0] = validUser.get(1);
-         }
-         System.out.format("\tCurrent Password: %s\n\tNew Password (Press Enter to keep current): ", validUser.get(2));
-         values[1] = in.readLine();
-         if(values[1].equals("")){
-            values[1] = validUser.get(2);
-         }
-         System.out.format("\tCurrent Latitude: %s\n\tNew Latitude (Press Enter to keep current): ", validUser.get(3));
-         values[2] = in.readLine();
-         if(values[2].equals("")){
-            values[2] = validUser.get(3);
+         String query = READ_USER;
+         result = esql.executeQueryAndReturnResult(query, user);
+         if(result.isEmpty()){
+            System.out.println("User does not exist");
+            printWait();
+            return;
          }
-         System.out.format("\tCurrent Longitude: %s\n\tNew Longitude (Press Enter to keep current): ", validUser.get(4));
-         values[3] = in.readLine();
-         if(values[3].equals("")){
-            values[3] = validUser.get(4);
-         }
-         System.out.format("Current Account Type: %s\n", validUser.get(5));
-         System.out.println("Select New Type:");
-         System.out.println("\t1:Keep Current Value");
-         System.out.println("\t2:Set as CUSTOMER");
-         System.out.println("\t3:Set as MANAGER");
-         System.out.println("\t4:Set as ADMIN");
-         while(values[4]==null){
-            switch(readChoice()){
-               case 1:values[4]=validUser.get(5).trim();break;
-               case 2:values[4] = "customer";break;
-               case 3:values[4] = "manager";break;
-               case 4:values[4] = "admin";break;
-               default:System.out.println("Unrecognized choice!"); break;
+         // the version read here is checked when writing, so changes made meanwhile are not overwritten
+         while(true){
+            validUser = result.get(0);
+            values = new String[] {null,null,null,null,null};
+            System.out.format("\tUser ID : %s\n",validUser.get(0));
+            System.out.format("\tCurrent Name: %s\n\tNew User Name (Press Enter to keep current): ", validUser.get(1));
+            values[0] = in.readLine();
+            if(values[0].equals("")){
+               values[0] = validUser.get(1);
+            }
+            System.out.format("\tCurrent Password: %s\n\tNew Password (Press Enter to keep current): ", validUser.get(2));
+            values[1] = in.readLine();
+            if(values[1].equals("")){
+               values[1] = validUser.get(2);
+            }
+            System.out.format("\tCurrent Latitude: %s\n\tNew Latitude (Press Enter to keep current): ", validUser.get(3));
+            values[2] = in.readLine();
+            if(values[2].equals("")){
+               values[2] = validUser.get(3);
+            }
+            System.out.format("\tCurrent Longitude: %s\n\tNew Longitude (Press Enter to keep current): ", validUser.get(4));
+            values[3] = in.readLine();
+            if(values[3].equals("")){
+               values[3] = validUser.get(4);
+            }
+            System.out.format("Current Account Type: %s\n", validUser.get(5));
+            System.out.println("Select New Type:");
+            System.out.println("\t1:Keep Current Value");
+            System.out.println("\t2:Set as CUSTOMER");
+            System.out.println("\t3:Set as MANAGER");
+            System.out.println("\t4:Set as ADMIN");
+            while(values[4]==null){
+               switch(readChoice()){
+                  case 1:values[4]=validUser.get(5).trim();break;
+                  case 2:values[4] = "customer";break;
+                  case 3:values[4] = "manager";break;
+                  case 4:values[4] = "admin";break;
+                  default:System.out.println("Unrecognized choice!"); break;
+               }
             }
+            System.out.println("\nOriginal User Info:");
+            esql.printResult(USER_COLUMNS, result);
+            if(esql.executeUpdate(UPDATE_USER, values[0].trim(), values[1].trim(), new BigDecimal(values[2].trim()), new BigDecimal(values[3].trim()), values[4], user,
+                  Integer.valueOf(validUser.get(6).trim())) == 1){
+               break;
+            }
+            result = esql.executeQueryAndReturnResult(query, user);
+            if(result.isEmpty()){
+               System.out.format("User %d no longer exists!\n", user);
+               break;
+            }
+            System.out.println("\nThe user was changed while you were editing; nothing was saved. Please edit the current values:");
          }
-         System.out.println("\nOriginal User Info:");
-         esql.executeQueryAndPrintResult(query);
-         String update = String.format("UPDATE Users SET name = '%s', password = %s , latitude = %s , longitude = %s , type = '%s' WHERE userID = %d;", values[0],values[1],values[2],values[3],values[4],user);
-         esql.executeUpdate(update);
          System.out.println();
          System.out.println("\nUpdated User Info:");
-         esql.executeQueryAndPrintResult(query);
+         esql.executeQueryAndPrintResult(query, user);
          printWait();
       }catch(Exception e){
          System.err.println(e.getMessage());
       }
    }
+   public static void viewMetrics(Retail esql){//Admins can view query latency and queries per action of every operation
+      System.out.println();
+      System.out.print(Metrics.report());
+      System.out.println("statement cache: " + esql.getStatementCacheHits() + " hits, " + esql.getStatementCacheMisses() + " misses");
+      System.out.println(esql._inventory.report());
+      if (esql._replenisher != null)
+         System.out.println(esql._replenisher.report());
+      System.out.println(esql._audit.report());
+      System.out.println(esql._dashboard.report());
+      System.out.println(esql._analytics.report());
+      if (esql._events != null)
+         System.out.println(esql._events.report());
+      if (esql._router != null)
+         System.out.println(esql._router.report());
+      printWait();
+   }
+   public static void viewSlowQueries(Retail esql){//Admins can view the statements that took the most time over the slow query threshold
+      System.out.println();
+      System.out.print(esql._slowLog.report(10));
+      printWait();
+   }
    public static void viewSupplyRequests(Retail esql){//Admins and Managers can view recent Supply Requests for a store
       try{
          String store=getStoreID(esql);
-         String query = String.format("SELECT * FROM ProductSupplyRequests WHERE storeID = %s ORDER BY requestNumber DESC LIMIT 5;", store);
          System.out.println();
-         esql.executeQueryAndPrintResult(query);
-
-         if(esql.executeQuery(query)==0){
+         if(esql.executeQueryAndPrintResult(SUPPLY_REQUESTS, Integer.parseInt(store))==0){
             System.out.println("\tThis store has no Product Supply Requests to view");
          }
          printWait();
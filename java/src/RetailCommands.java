@@ -0,0 +1,287 @@
+/*
+ * Retail Scripted Commands
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class runs the menu operations without prompts. Each input line is
+ * one command followed by its arguments; arguments containing spaces are
+ * written in double quotes and lines starting with '#' are skipped. The
+ * same permission rules as the menus apply: store operations need a
+ * manager of that store or an admin.
+ *
+ *   login name password          products storeID
+ *   logout                       order storeID product units
+ *   stores                       recent-orders
+ *   update-product storeID product units|+n|-n price
+ *   supply warehouseID storeID product units
+ *   recent-updates storeID       popular-products storeID
+ *   popular-customers storeID    store-orders storeID
+ *   supply-requests storeID      users
+ *   all-products                 format table|csv|tsv
+ *   cart storeID product units [storeID product units ...]
+ *   supply-file warehouseID storeID file
+ *   dashboard                    sales store|product|hour|day|week|cohort [storeID]
+ *
+ */
+public class RetailCommands {
+
+   // times a conflicting update-product is read again and retried
+   private static final int MAX_ATTEMPTS = 5;
+
+   private final Retail _esql;
+
+   /**
+    * Creates a command runner for one session
+    *
+    * @param esql the session the commands run in
+    */
+   public RetailCommands(Retail esql) {
+      this._esql = esql;
+   }//end RetailCommands
+
+   /**
+    * Runs every command read from the input
+    *
+    * @param input the command stream
+    * @return the number of commands that failed
+    * @throws java.io.IOException when the input cannot be read
+    */
+   public int run(BufferedReader input) throws IOException {
+      int failures = 0;
+      int lineNumber = 0;
+      String line;
+      while ((line = input.readLine()) != null) {
+         ++lineNumber;
+         List<String> words = split(line);
+         if (words.isEmpty() || words.get(0).startsWith("#"))
+            continue;
+         try{
+            System.out.println("> " + line.trim());
+            execute(words);
+         }catch (Exception e){
+            ++failures;
+            System.err.println("line " + lineNumber + ": " + e.getMessage());
+         }//end try
+      }//end while
+      return failures;
+   }//end run
+
+   /**
+    * Runs one command
+    *
+    * @param words the command name followed by its arguments
+    * @throws java.lang.Exception when the command is invalid or fails
+    */
+   public void execute(List<String> words) throws Exception {
+      String command = words.get(0).toLowerCase();
+      Metrics.begin(command);
+      if (command.equals("format")) {
+         expect(words, 1);
+         this._esql.outputFormat = ResultRenderer.format(words.get(1));
+         return;
+      }//end if
+      if (command.equals("login")) {
+         expect(words, 2);
+         if (this._esql.login(words.get(1), words.get(2)) == null)
+            throw new IllegalArgumentException("Invalid Login...");
+         return;
+      }//end if
+      if (this._esql.userID == null)
+         throw new IllegalStateException("Not logged in");
+
+      if (command.equals("logout")) {
+         expect(words, 0);
+         this._esql.userID = null;
+         this._esql.userType = null;
+      }else if (command.equals("stores")) {
+         expect(words, 0);
+         Retail.viewStores(this._esql);
+      }else if (command.equals("products")) {
+         expect(words, 1);
+         Retail.printProducts(this._esql, number(words.get(1)));
+      }else if (command.equals("order")) {
+         expect(words, 3);
+         List<String> order = this._esql.submitOrder(Integer.parseInt(this._esql.userID),
+            number(words.get(1)), words.get(2), positive(words.get(3)));
+         if (order == null)
+            throw new IllegalStateException("There is not enough stock!");
+         this._esql.printResult(Retail.ORDER_COLUMNS, Collections.singletonList(order));
+      }else if (command.equals("cart")) {
+         if (words.size() < 4 || (words.size() - 1) % 3 != 0)
+            throw new IllegalArgumentException("cart takes storeID product units for each product");
+         Cart cart = new Cart();
+         for (int i = 1; i < words.size(); i += 3)
+            cart.add(number(words.get(i)), words.get(i + 1), positive(words.get(i + 2)));
+         List<List<String>> orders = this._esql.submitCart(Integer.parseInt(this._esql.userID), cart);
+         if (orders == null)
+            throw new IllegalStateException("There is not enough stock for the cart!");
+         this._esql.printResult(Retail.ORDER_COLUMNS, orders);
+      }else if (command.equals("recent-orders")) {
+         expect(words, 0);
+         this._esql.executeQueryAndPrintResult(Retail.RECENT_ORDERS, Integer.valueOf(this._esql.userID));
+      }else if (command.equals("update-product")) {
+         expect(words, 4);
+         int store = managedStore(words.get(1));
+         // +n and -n change the stock by n; a conflicting change made meanwhile is read again and the edit reapplied,
+         // but removing more units than are in stock fails at once
+         String units = words.get(3).trim();
+         boolean absolute = !(units.startsWith("+") || units.startsWith("-"));
+         List<String> updated = null;
+         for (int attempt = 0; attempt < MAX_ATTEMPTS && (updated == null || !Retail.isUpdated(updated)); ++attempt) {
+            List<String> product = this._esql.readProduct(store, words.get(2));
+            if (product == null)
+               throw new IllegalArgumentException("Product '" + words.get(2) + "' does not exist at Store " + store);
+            updated = this._esql.updateProductValues(product, absolute,
+               Integer.parseInt(units.startsWith("+") ? units.substring(1) : units), Double.parseDouble(words.get(4)));
+            if (updated != null && Retail.isShortOfStock(updated))
+               throw new IllegalStateException("Product '" + words.get(2) + "' has only " + updated.get(2).trim() +
+                  " units in stock; nothing was saved");
+         }//end for
+         if (updated == null || !Retail.isUpdated(updated))
+            throw new IllegalStateException("Product '" + words.get(2) + "' kept changing; nothing was saved");
+      }else if (command.equals("supply")) {
+         expect(words, 4);
+         int store = managedStore(words.get(2));
+         List<String> request = this._esql.submitSupplyRequest(number(words.get(1)), store, words.get(3), positive(words.get(4)));
+         if (request == null)
+            throw new IllegalArgumentException("Product '" + words.get(3) + "' does not exist at Store " + store);
+         this._esql.printResult(Retail.SUPPLY_REQUEST_COLUMNS, Collections.singletonList(request));
+      }else if (command.equals("supply-file")) {
+         expect(words, 3);
+         int store = managedStore(words.get(2));
+         BufferedReader file = new BufferedReader(new FileReader(words.get(3)), 1 << 16);
+         try{
+            new SupplyImporter(this._esql).run(file, Integer.parseInt(this._esql.userID), number(words.get(1)), store);
+         }finally{
+            file.close();
+         }//end try
+      }else if (command.equals("recent-updates")) {
+         expect(words, 1);
+         int store = managedStore(words.get(1));
+         this._esql.flushAudit();
+         this._esql.executeQueryAndPrintResult(Retail.RECENT_UPDATES, store);
+      }else if (command.equals("popular-products")) {
+         expect(words, 1);
+         this._esql.executeQueryAndPrintResult(Retail.POPULAR_PRODUCTS, managedStore(words.get(1)));
+      }else if (command.equals("popular-customers")) {
+         expect(words, 1);
+         this._esql.executeQueryAndPrintResult(Retail.POPULAR_CUSTOMERS, managedStore(words.get(1)));
+      }else if (command.equals("store-orders")) {
+         expect(words, 1);
+         this._esql.executeQueryAndStreamResult(Retail.STORE_ORDERS.getAll(), managedStore(words.get(1)));
+      }else if (command.equals("supply-requests")) {
+         expect(words, 1);
+         this._esql.executeQueryAndPrintResult(Retail.SUPPLY_REQUESTS, managedStore(words.get(1)));
+      }else if (command.equals("dashboard")) {
+         expect(words, 0);
+         if (!"manager".equals(this._esql.userType))
+            throw new IllegalStateException("Only managers can do this");
+         Retail.printDashboard(this._esql, this._esql.getReferenceData().getManagedStores(Integer.parseInt(this._esql.userID)));
+      }else if (command.equals("sales")) {
+         if (words.size() != 2 && words.size() != 3)
+            throw new IllegalArgumentException(words.get(0) + " takes 1 or 2 argument(s)");
+         SalesAnalytics.Dimension by = SalesAnalytics.Dimension.valueOf(words.get(1).toUpperCase());
+         if (words.size() == 3) {
+            Retail.printSales(this._esql, by, managedStore(words.get(2)));
+         }else {
+            requireAdmin();
+            Retail.printSales(this._esql, by, -1);
+         }//end if
+      }else if (command.equals("users")) {
+         expect(words, 0);
+         requireAdmin();
+         this._esql.executeQueryAndStreamResult(Retail.ALL_USERS.getAll());
+      }else if (command.equals("all-products")) {
+         expect(words, 0);
+         requireAdmin();
+         this._esql.executeQueryAndStreamResult(Retail.ALL_PRODUCTS.getAll());
+      }else {
+         throw new IllegalArgumentException("Unrecognized command: " + command);
+      }//end if
+   }//end execute
+
+   /**
+    * Splits a command line into words, keeping quoted text together
+    *
+    * @param line the command line
+    * @return the words of the line
+    */
+   public static List<String> split(String line) {
+      List<String> words = new ArrayList<String>();
+      StringBuilder word = null;
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); ++i) {
+         char c = line.charAt(i);
+         if (c == '"') {
+            quoted = !quoted;
+            if (word == null)
+               word = new StringBuilder();
+         }else if (Character.isWhitespace(c) && !quoted) {
+            if (word != null)
+               words.add(word.toString());
+            word = null;
+         }else {
+            if (word == null)
+               word = new StringBuilder();
+            word.append(c);
+         }//end if
+      }//end for
+      if (word != null)
+         words.add(word.toString());
+      return words;
+   }//end split
+
+   // checks that the session may manage the store, like getStoreID does
+   private int managedStore(String value) throws Exception {
+      int store = number(value);
+      String type = this._esql.userType;
+      if (type.equals("admin")) {
+         if (this._esql.getReferenceData().getStore(store) == null)
+            throw new IllegalArgumentException("Invalid Store Choice! Please select a valid store");
+      }else if (type.equals("manager")) {
+         if (!this._esql.getReferenceData().isManager(store, Integer.parseInt(this._esql.userID)))
+            throw new IllegalArgumentException("Invalid Store Choice! Please select a store where you manage");
+      }else {
+         throw new IllegalStateException("Only managers and admins can do this");
+      }//end if
+      return store;
+   }//end managedStore
+
+   private void requireAdmin() {
+      if (!"admin".equals(this._esql.userType))
+         throw new IllegalStateException("Only admins can do this");
+   }//end requireAdmin
+
+   private static void expect(List<String> words, int count) {
+      if (words.size() != count + 1)
+         throw new IllegalArgumentException(words.get(0) + " takes " + count + " argument(s)");
+   }//end expect
+
+   private static int number(String value) {
+      return Integer.parseInt(value.trim());
+   }//end number
+
+   private static int positive(String value) {
+      int n = number(value);
+      if (n <= 0)
+         throw new IllegalArgumentException("Number of units must be positive!");
+      return n;
+   }//end positive
+
+}//end RetailCommands
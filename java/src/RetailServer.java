@@ -0,0 +1,109 @@
+/*
+ * Retail Multi-Session Server
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class serves the Retail menus to many clerks and customers at once.
+ * Every client that connects over TCP (for example with telnet or nc) gets
+ * its own session thread running the normal menu loop. The sessions share
+ * the connection pool of one Retail instance and only hold a database
+ * connection while a statement runs.
+ *
+ */
+public class RetailServer {
+
+   private final Retail _esql;
+   private final int _port;
+   private final ExecutorService _sessions;
+   private final AtomicInteger _active = new AtomicInteger();
+
+   /**
+    * Creates a new server
+    *
+    * @param esql the Retail instance whose connection pool is shared
+    * @param port the TCP port to listen on
+    * @param maxSessions the largest number of sessions served at once
+    */
+   public RetailServer(Retail esql, int port, int maxSessions) {
+      this._esql = esql;
+      this._port = port;
+      final AtomicInteger ids = new AtomicInteger();
+      this._sessions = Executors.newFixedThreadPool(maxSessions, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "retail-session-" + ids.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end RetailServer
+
+   /**
+    * Accepts clients until the process is stopped
+    *
+    * @throws java.io.IOException when the listening socket fails
+    */
+   public void serve() throws IOException {
+      SessionConsole.install();
+      ServerSocket listener = new ServerSocket(this._port);
+      System.out.println("Serving Retail sessions on port " + this._port);
+      try{
+         while (true) {
+            final Socket client = listener.accept();
+            this._sessions.execute(new Runnable() {
+               public void run() {
+                  session(client);
+               }
+            });
+         }//end while
+      }finally{
+         listener.close();
+         this._sessions.shutdownNow();
+      }//end try
+   }//end serve
+
+   private void session(Socket client) {
+      String who = client.getRemoteSocketAddress().toString();
+      System.out.println("Session opened: " + who + " (" + this._active.incrementAndGet() + " active)");
+      try{
+         BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+         PrintStream out = new PrintStream(client.getOutputStream(), true);
+         SessionConsole.attach(in, out);
+         try{
+            Retail.Greeting();
+            Retail.runSession(this._esql.newSession());
+         }finally{
+            SessionConsole.detach();
+         }//end try
+      }catch (IOException e){
+         System.err.println(e.getMessage());
+      }finally{
+         try{
+            client.close();
+         }catch (IOException e){
+            // ignored.
+         }//end try
+         System.out.println("Session closed: " + who + " (" + this._active.decrementAndGet() + " active)");
+      }//end try
+   }//end session
+
+}//end RetailServer
@@ -0,0 +1,539 @@
+/*
+ * Retail Sales Analytics
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps a copy of the Orders history in memory, one primitive
+ * array per column, and answers revenue, unit and order totals grouped by
+ * store, product, hour of day, day, week or customer cohort (the month of a
+ * customer's first order) without asking Postgres. Product names are kept
+ * as codes into a dictionary, order times as epoch seconds and prices as
+ * whole cents, so revenue adds up exactly however many orders there are.
+ * An order's revenue is its units times the price of its product when it
+ * was copied.
+ *
+ * The copy only grows: a refresh reads the orders numbered after the last
+ * one it has, a page at a time, through a read that may go to the replica.
+ * An order number that was skipped may belong to a transaction that had not
+ * committed yet, so skipped numbers are looked for again for a while before
+ * they are taken as rolled back. Orders changed or deleted after they were
+ * copied keep their copied values.
+ *
+ * An aggregation splits the rows into ranges that the threads of a
+ * fork-join pool total on their own, and adds the totals of two ranges
+ * together as their tasks finish. Readers never lock: a refresh appends
+ * past the rows any reader can see and then publishes the larger copy.
+ *
+ */
+public class SalesAnalytics {
+
+   // orders numbered in (after, through], a page at a time, with the current price of their product
+   static final String ORDERS_RANGE =
+      "SELECT O.orderNumber, O.storeID, O.productName, O.customerID, EXTRACT(EPOCH FROM O.orderTime)::bigint, " +
+      "O.unitsOrdered, COALESCE(P.pricePerUnit, 0) " +
+      "FROM Orders O LEFT JOIN Product P ON P.storeID = O.storeID AND P.productName = O.productName " +
+      "WHERE O.orderNumber > ? AND O.orderNumber <= ? ORDER BY O.orderNumber LIMIT ?;";
+
+   // orders read per round trip of a refresh
+   private static final int PAGE_SIZE = Integer.getInteger("retail.analytics.page", 10000);
+
+   // a longer run of skipped numbers is taken as deleted orders rather than ones still committing
+   private static final int MAX_GAP = 1000;
+
+   // skipped numbers remembered at most; the oldest are given up first
+   private static final int MAX_GAPS = 100000;
+
+   // groups a single aggregation may have
+   private static final int MAX_GROUPS = 1 << 22;
+
+   /**
+    * What the orders are grouped by
+    */
+   public enum Dimension {
+      STORE("storeid", 0), PRODUCT("productname", 0), HOUR("hour", 0),
+      DAY("day", 86400), WEEK("week", 7 * 86400), COHORT("cohort", 0);
+
+      final String column;
+      // the length of a time bucket in seconds, 0 when not grouped by time
+      final int bucket;
+
+      Dimension(String column, int bucket) {
+         this.column = column;
+         this.bucket = bucket;
+      }
+   }//end Dimension
+
+   /**
+    * The totals of one aggregation, one row per group with orders
+    */
+   public static class Report {
+      public final String[] columns;
+      public final List<List<String>> rows = new ArrayList<List<String>>();
+      // the rows of the copy the aggregation scanned
+      public final int scanned;
+      // nanoseconds the aggregation took
+      public long elapsed;
+
+      Report(Dimension by, int scanned) {
+         this.columns = new String[] {by.column, "orders", "units", "revenue"};
+         this.scanned = scanned;
+      }
+   }//end Report
+
+   /**
+    * The rows that can be read, and the dictionaries they refer to. The
+    * arrays may be longer than size and grow past it after publishing.
+    */
+   static final class Columns {
+      final int size;
+      final int[] store;
+      final int[] product;
+      final int[] customer;
+      final int[] time;
+      final int[] units;
+      // the price of one unit in cents
+      final int[] price;
+      final String[] products;
+      // the month of the first order of every customerID, as year * 12 + month - 1
+      final int[] cohort;
+      final int minTime, maxTime, maxStore, minCohort, maxCohort;
+
+      Columns(int size, int[] store, int[] product, int[] customer, int[] time, int[] units, int[] price,
+              String[] products, int[] cohort, int minTime, int maxTime, int maxStore, int minCohort, int maxCohort) {
+         this.size = size;
+         this.store = store;
+         this.product = product;
+         this.customer = customer;
+         this.time = time;
+         this.units = units;
+         this.price = price;
+         this.products = products;
+         this.cohort = cohort;
+         this.minTime = minTime;
+         this.maxTime = maxTime;
+         this.maxStore = maxStore;
+         this.minCohort = minCohort;
+         this.maxCohort = maxCohort;
+      }
+   }//end Columns
+
+   // totals of a range of rows, indexed by group
+   private static final class Totals {
+      final long[] orders;
+      final long[] units;
+      // in cents
+      final long[] revenue;
+
+      Totals(int groups) {
+         this.orders = new long[groups];
+         this.units = new long[groups];
+         this.revenue = new long[groups];
+      }
+
+      void add(Totals other) {
+         for (int g = 0; g < this.orders.length; ++g) {
+            this.orders[g] += other.orders[g];
+            this.units[g] += other.units[g];
+            this.revenue[g] += other.revenue[g];
+         }//end for
+      }
+   }//end Totals
+
+   // totals a range of rows, splitting it while it is larger than the grain
+   private static final class Aggregation extends RecursiveTask<Totals> {
+      private static final long serialVersionUID = 1L;
+
+      private final Columns _columns;
+      private final Dimension _by;
+      private final int _groups, _origin, _from, _to, _store, _grain, _lo, _hi;
+
+      Aggregation(Columns columns, Dimension by, int groups, int origin, int from, int to, int store, int grain, int lo, int hi) {
+         this._columns = columns;
+         this._by = by;
+         this._groups = groups;
+         this._origin = origin;
+         this._from = from;
+         this._to = to;
+         this._store = store;
+         this._grain = grain;
+         this._lo = lo;
+         this._hi = hi;
+      }
+
+      protected Totals compute() {
+         if (this._hi - this._lo <= this._grain)
+            return scan(this._columns, this._by, this._groups, this._origin, this._from, this._to, this._store, this._lo, this._hi);
+         int mid = (this._lo + this._hi) >>> 1;
+         Aggregation left = new Aggregation(this._columns, this._by, this._groups, this._origin, this._from, this._to,
+            this._store, this._grain, this._lo, mid);
+         Aggregation right = new Aggregation(this._columns, this._by, this._groups, this._origin, this._from, this._to,
+            this._store, this._grain, mid, this._hi);
+         left.fork();
+         Totals totals = right.compute();
+         totals.add(left.join());
+         return totals;
+      }
+   }//end Aggregation
+
+   private final ForkJoinPool _workers;
+   private final long _gapMillis;
+
+   // what readers see; replaced by every refresh
+   private volatile Columns _columns;
+
+   // the refresh's own state, guarded by this
+   private int _size = 0;
+   private int[] _store = new int[0], _product = new int[0], _customer = new int[0], _time = new int[0], _units = new int[0];
+   private int[] _price = new int[0];
+   private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+   private final List<String> _products = new ArrayList<String>();
+   private int[] _firstOrder = new int[0];
+   private int _minTime = Integer.MAX_VALUE, _maxTime = Integer.MIN_VALUE, _maxStore = -1;
+   private int _lastSeen = 0;
+   // skipped order numbers and when they were first missed
+   private final TreeMap<Integer, Long> _gaps = new TreeMap<Integer, Long>();
+
+   private final LatencyHistogram _latency = new LatencyHistogram();
+   private final AtomicLong _refreshes = new AtomicLong();
+   private final AtomicLong _lateOrders = new AtomicLong();
+   private volatile long _lastRefresh = 0;
+
+   /**
+    * @param threads the threads an aggregation is split over
+    * @param gapMillis milliseconds a skipped order number is looked for again
+    */
+   public SalesAnalytics(int threads, long gapMillis) {
+      this._workers = new ForkJoinPool(Math.max(1, threads));
+      this._gapMillis = gapMillis;
+      publish();
+   }//end SalesAnalytics
+
+   /**
+    * Copies the orders placed since the last refresh, and those that were
+    * skipped then and have committed since
+    *
+    * @param esql the session the orders are read through
+    * @return the number of orders added
+    * @throws java.sql.SQLException when the orders cannot be read
+    */
+   public synchronized int refresh(Retail esql) throws SQLException {
+      long start = System.nanoTime();
+      int added = 0;
+      long now = System.currentTimeMillis();
+      for (Iterator<Long> it = this._gaps.values().iterator(); it.hasNext(); )
+         if (now - it.next() > this._gapMillis)
+            it.remove();
+      if (!this._gaps.isEmpty()) {
+         int after = this._gaps.firstKey() - 1;
+         int through = this._gaps.lastKey();
+         List<List<String>> page;
+         do {
+            page = esql.executeQueryAndReturnResult(ORDERS_RANGE, after, through, PAGE_SIZE);
+            for (List<String> row : page) {
+               after = Integer.parseInt(row.get(0));
+               if (this._gaps.remove(after) != null) {
+                  append(row);
+                  ++added;
+                  this._lateOrders.incrementAndGet();
+               }//end if
+            }//end for
+         } while (page.size() == PAGE_SIZE);
+      }//end if
+
+      List<List<String>> page;
+      do {
+         page = esql.executeQueryAndReturnResult(ORDERS_RANGE, this._lastSeen, Integer.MAX_VALUE, PAGE_SIZE);
+         for (List<String> row : page) {
+            int number = Integer.parseInt(row.get(0));
+            if (number - this._lastSeen - 1 <= MAX_GAP)
+               for (int skipped = this._lastSeen + 1; skipped < number; ++skipped)
+                  this._gaps.put(skipped, now);
+            while (this._gaps.size() > MAX_GAPS)
+               this._gaps.pollFirstEntry();
+            this._lastSeen = number;
+            append(row);
+            ++added;
+         }//end for
+      } while (page.size() == PAGE_SIZE);
+      // only numbers close to the newest can still be committing; older ones were deleted
+      for (Iterator<Map.Entry<Integer, Long>> it = this._gaps.headMap(this._lastSeen - PAGE_SIZE).entrySet().iterator(); it.hasNext(); )
+         if (it.next().getValue() == now)
+            it.remove();
+
+      if (added > 0)
+         publish();
+      this._refreshes.incrementAndGet();
+      this._lastRefresh = System.nanoTime() - start;
+      return added;
+   }//end refresh
+
+   // adds an ORDERS_RANGE row to the columns
+   private void append(List<String> row) {
+      add(Integer.parseInt(row.get(1)), row.get(2).trim(), Integer.parseInt(row.get(3)),
+         (int)Long.parseLong(row.get(4)), Integer.parseInt(row.get(5)), cents(row.get(6)));
+   }//end append
+
+   // a price as Postgres prints it, in whole cents
+   static int cents(String price) {
+      return (int)Math.round(Double.parseDouble(price) * 100);
+   }//end cents
+
+   /**
+    * Adds an order to the columns; readers see it after the next publish
+    *
+    * @param store the storeID
+    * @param product the product name, without padding
+    * @param customer the customerID
+    * @param time the order time in epoch seconds
+    * @param units the units ordered
+    * @param price the price of one unit in cents
+    */
+   synchronized void add(int store, String product, int customer, int time, int units, int price) {
+      if (this._size == this._store.length)
+         reserve(Math.max(1024, this._size + (this._size >> 1)));
+      Integer code = this._codes.get(product);
+      if (code == null) {
+         code = this._products.size();
+         this._codes.put(product, code);
+         this._products.add(product);
+      }//end if
+      if (customer >= this._firstOrder.length) {
+         int length = this._firstOrder.length;
+         this._firstOrder = Arrays.copyOf(this._firstOrder, Math.max(customer + 1, length + (length >> 1)));
+         Arrays.fill(this._firstOrder, length, this._firstOrder.length, Integer.MAX_VALUE);
+      }//end if
+
+      int i = this._size;
+      this._store[i] = store;
+      this._product[i] = code;
+      this._customer[i] = customer;
+      this._time[i] = time;
+      this._units[i] = units;
+      this._price[i] = price;
+      this._firstOrder[customer] = Math.min(this._firstOrder[customer], time);
+      this._minTime = Math.min(this._minTime, time);
+      this._maxTime = Math.max(this._maxTime, time);
+      this._maxStore = Math.max(this._maxStore, store);
+      this._size = i + 1;
+   }//end add
+
+   /**
+    * Makes room for a number of orders, so that the columns are not copied
+    * while they are added
+    *
+    * @param capacity the number of orders the columns hold at least
+    */
+   synchronized void reserve(int capacity) {
+      if (capacity <= this._store.length)
+         return;
+      this._store = Arrays.copyOf(this._store, capacity);
+      this._product = Arrays.copyOf(this._product, capacity);
+      this._customer = Arrays.copyOf(this._customer, capacity);
+      this._time = Arrays.copyOf(this._time, capacity);
+      this._units = Arrays.copyOf(this._units, capacity);
+      this._price = Arrays.copyOf(this._price, capacity);
+   }//end reserve
+
+   /**
+    * Makes the orders added so far visible to aggregations
+    */
+   synchronized void publish() {
+      // a new array, as readers of the previous copy index their groups by the old months
+      int[] cohort = new int[this._firstOrder.length];
+      int minCohort = Integer.MAX_VALUE, maxCohort = Integer.MIN_VALUE;
+      for (int c = 0; c < cohort.length; ++c) {
+         if (this._firstOrder[c] == Integer.MAX_VALUE)
+            continue;
+         cohort[c] = month(this._firstOrder[c]);
+         minCohort = Math.min(minCohort, cohort[c]);
+         maxCohort = Math.max(maxCohort, cohort[c]);
+      }//end for
+      this._columns = new Columns(this._size, this._store, this._product, this._customer, this._time, this._units, this._price,
+         this._products.toArray(new String[this._products.size()]), cohort,
+         this._minTime, this._maxTime, this._maxStore, minCohort, maxCohort);
+   }//end publish
+
+   /**
+    * Totals the orders of the copy by a dimension
+    *
+    * @param by what the orders are grouped by
+    * @param store the only store counted, or -1 for every store
+    * @param from the first order time counted, in epoch seconds
+    * @param to the order time, in epoch seconds, from which orders are no longer counted
+    * @return one row per group with orders, in group order
+    */
+   public Report aggregate(Dimension by, int store, long from, long to) {
+      return aggregate(by, store, from, to, true);
+   }//end aggregate
+
+   /**
+    * @param parallel false to total every row on the calling thread
+    * @see #aggregate(Dimension, int, long, long)
+    */
+   Report aggregate(Dimension by, int store, long from, long to, boolean parallel) {
+      long start = System.nanoTime();
+      Columns columns = this._columns;
+      Report report = new Report(by, columns.size);
+      long first = Math.max(from, columns.minTime);
+      long last = Math.min(to, columns.maxTime + 1L) - 1;
+      if (columns.size == 0 || first > last)
+         return report;
+
+      int groups;
+      int origin = 0;
+      switch (by) {
+         case STORE: groups = columns.maxStore + 1; break;
+         case PRODUCT: groups = columns.products.length; break;
+         case HOUR: groups = 24; break;
+         case COHORT:
+            origin = columns.minCohort;
+            groups = columns.maxCohort - columns.minCohort + 1;
+            break;
+         default:
+            // buckets start at midnight, and weeks on the Thursday the epoch started on
+            origin = (int)(floorDiv(first, by.bucket) * by.bucket);
+            groups = (int)((last - origin) / by.bucket + 1);
+            break;
+      }//end switch
+      if (groups > MAX_GROUPS)
+         throw new IllegalArgumentException("Too many groups to total: " + groups);
+
+      int lo = (int)Math.max(Integer.MIN_VALUE, from);
+      int hi = (int)Math.min(Integer.MAX_VALUE, to);
+      Totals totals;
+      if (parallel) {
+         int grain = Math.max(1 << 15, columns.size / (this._workers.getParallelism() * 4));
+         totals = this._workers.invoke(new Aggregation(columns, by, groups, origin, lo, hi, store, grain, 0, columns.size));
+      }else {
+         totals = scan(columns, by, groups, origin, lo, hi, store, 0, columns.size);
+      }//end if
+
+      for (int g = 0; g < groups; ++g) {
+         if (totals.orders[g] == 0)
+            continue;
+         List<String> row = new ArrayList<String>(4);
+         row.add(label(columns, by, origin, g));
+         row.add(String.valueOf(totals.orders[g]));
+         row.add(String.valueOf(totals.units[g]));
+         row.add(String.format("%d.%02d", totals.revenue[g] / 100, totals.revenue[g] % 100));
+         report.rows.add(row);
+      }//end for
+      report.elapsed = System.nanoTime() - start;
+      if (parallel)
+         this._latency.record(report.elapsed);
+      return report;
+   }//end aggregate
+
+   // totals the rows lo to hi that pass the filters
+   private static Totals scan(Columns c, Dimension by, int groups, int origin, int from, int to, int store, int lo, int hi) {
+      Totals totals = new Totals(groups);
+      int[] time = c.time;
+      int[] units = c.units;
+      for (int i = lo; i < hi; ++i) {
+         int t = time[i];
+         if (t < from || t >= to || (store >= 0 && c.store[i] != store))
+            continue;
+         int key;
+         switch (by) {
+            case STORE: key = c.store[i]; break;
+            case PRODUCT: key = c.product[i]; break;
+            case HOUR: key = ((t % 86400) + 86400) % 86400 / 3600; break;
+            case COHORT: key = c.cohort[c.customer[i]] - origin; break;
+            default: key = (int)(((long)t - origin) / by.bucket); break;
+         }//end switch
+         ++totals.orders[key];
+         totals.units[key] += units[i];
+         totals.revenue[key] += (long)units[i] * c.price[i];
+      }//end for
+      return totals;
+   }//end scan
+
+   private static String label(Columns columns, Dimension by, int origin, int group) {
+      switch (by) {
+         case STORE: return String.valueOf(group);
+         case PRODUCT: return columns.products[group];
+         case HOUR: return String.format("%02d:00", group);
+         case COHORT:
+            int month = origin + group;
+            return String.format("%04d-%02d", month / 12, month % 12 + 1);
+         default:
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.format(new Date(((long)origin + (long)group * by.bucket) * 1000));
+      }//end switch
+   }//end label
+
+   /**
+    * @param seconds a time in epoch seconds
+    * @return its month as year * 12 + month - 1, in UTC like the stored order times
+    */
+   static int month(long seconds) {
+      // days to civil date, after Howard Hinnant's days_from_civil inverse
+      long z = floorDiv(seconds, 86400) + 719468;
+      long era = (z >= 0 ? z : z - 146096) / 146097;
+      long doe = z - era * 146097;
+      long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+      long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+      long mp = (5 * doy + 2) / 153;
+      long m = mp < 10 ? mp + 3 : mp - 9;
+      long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+      return (int)(y * 12 + m - 1);
+   }//end month
+
+   private static long floorDiv(long x, long y) {
+      long q = x / y;
+      return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+   }//end floorDiv
+
+   /**
+    * @return the number of orders in the copy
+    */
+   public int size() {
+      return this._columns.size;
+   }
+
+   /**
+    * @return the size of the copy and the latency of the aggregations so far
+    */
+   public String report() {
+      Columns columns = this._columns;
+      long bytes = 6L * 4 * columns.store.length + 4L * columns.cohort.length;
+      return String.format("analytics: %d orders (%.1f MB, %d products), %d refreshes (last %.2f ms, %d late orders); " +
+         "%d aggregations (mean %.2f ms, p99 %.2f ms, max %.2f ms) on %d threads",
+         columns.size, bytes / 1e6, columns.products.length, this._refreshes.get(), this._lastRefresh / 1e6, this._lateOrders.get(),
+         this._latency.getCount(), this._latency.getMean() / 1e6, this._latency.getQuantile(0.99) / 1e6,
+         this._latency.getMax() / 1e6, this._workers.getParallelism());
+   }//end report
+
+   /**
+    * Stops the worker threads
+    */
+   public void close() {
+      this._workers.shutdownNow();
+   }//end close
+
+}//end SalesAnalytics
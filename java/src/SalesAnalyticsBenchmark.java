@@ -0,0 +1,115 @@
+/*
+ * Sales Analytics Benchmark
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Random;
+
+/**
+ * This class measures how fast SalesAnalytics totals synthetic orders by
+ * every dimension, on the calling thread and split over a fork-join pool,
+ * and how long adding a batch of new orders and publishing it takes. Every
+ * aggregation is run a few times first so the JIT has compiled it, and the
+ * two ways are checked to give the same totals. No database is needed.
+ *
+ * A hundred million orders take about 2.4 GB, so give the JVM enough heap,
+ * e.g. java -Xmx4g SalesAnalyticsBenchmark.
+ *
+ * Usage: java SalesAnalyticsBenchmark [orders] [rounds] [threads]
+ *
+ */
+public class SalesAnalyticsBenchmark {
+
+   private static final int STORES = 2000;
+   private static final int PRODUCTS = 500;
+   private static final int CUSTOMERS = 1000000;
+   // 2016-09-10 00:00 UTC, when the sample data starts
+   private static final int START = 1473465600;
+   private static final int YEAR = 365 * 86400;
+
+   public static void main(String[] args) throws Exception {
+      int orders = args.length > 0 ? Integer.parseInt(args[0]) : 100000000;
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+      SalesAnalytics analytics = new SalesAnalytics(threads, 0);
+      Random random = new Random(166);
+      String[] names = new String[PRODUCTS];
+      for (int p = 0; p < PRODUCTS; ++p)
+         names[p] = "Product " + p;
+      int batch = Math.max(1, orders / 100);
+      analytics.reserve(orders + batch);
+      long start = System.nanoTime();
+      generate(analytics, random, names, orders);
+      analytics.publish();
+      System.out.println(String.format("%d orders generated in %.1f s on %d threads", orders, (System.nanoTime() - start) / 1e9, threads));
+
+      for (SalesAnalytics.Dimension by : SalesAnalytics.Dimension.values()) {
+         for (int i = 0; i < 3; ++i) {
+            analytics.aggregate(by, -1, Long.MIN_VALUE, Long.MAX_VALUE, false);
+            analytics.aggregate(by, -1, Long.MIN_VALUE, Long.MAX_VALUE, true);
+         }//end for
+         SalesAnalytics.Report sequential = null;
+         SalesAnalytics.Report parallel = null;
+         long sequentialTime = 0;
+         long parallelTime = 0;
+         for (int r = 0; r < rounds; ++r) {
+            sequential = analytics.aggregate(by, -1, Long.MIN_VALUE, Long.MAX_VALUE, false);
+            sequentialTime += sequential.elapsed;
+            parallel = analytics.aggregate(by, -1, Long.MIN_VALUE, Long.MAX_VALUE, true);
+            parallelTime += parallel.elapsed;
+         }//end for
+         report(by + " sequential", orders, sequential.rows.size(), sequentialTime / rounds);
+         report(by + " fork-join", orders, parallel.rows.size(), parallelTime / rounds);
+         System.out.println(String.format("%-20s%.1fx%s", "", (double)sequentialTime / parallelTime,
+            same(sequential, parallel) ? "" : "  TOTALS DIFFER"));
+      }//end for
+
+      // a store and a month, as a manager would ask
+      SalesAnalytics.Report filtered = null;
+      long filteredTime = 0;
+      for (int r = 0; r < rounds + 3; ++r) {
+         filtered = analytics.aggregate(SalesAnalytics.Dimension.DAY, 1, START + 30L * 86400, START + 60L * 86400, true);
+         if (r >= 3)
+            filteredTime += filtered.elapsed;
+      }//end for
+      report("DAY store 1 month", orders, filtered.rows.size(), filteredTime / rounds);
+
+      start = System.nanoTime();
+      generate(analytics, random, names, batch);
+      analytics.publish();
+      System.out.println(String.format("%-20s%10d orders added and published in %.1f ms", "refresh", batch, (System.nanoTime() - start) / 1e6));
+      System.out.println(analytics.report());
+      analytics.close();
+   }//end main
+
+   // orders skewed towards a few products and customers, spread over a year
+   private static void generate(SalesAnalytics analytics, Random random, String[] names, int count) {
+      for (int i = 0; i < count; ++i) {
+         int product = (int)(PRODUCTS * Math.pow(random.nextDouble(), 3));
+         int customer = 2 + (int)(CUSTOMERS * Math.pow(random.nextDouble(), 2));
+         int store = 1 + random.nextInt(STORES);
+         int cents = 100 + (product * 3001 + store * 7) % 20000;
+         analytics.add(store, names[product], customer, START + random.nextInt(YEAR), 1 + random.nextInt(10), cents);
+      }//end for
+   }//end generate
+
+   private static void report(String name, int orders, int groups, long nanos) {
+      System.out.println(String.format("%-20s%10.2f ms%12.1f M orders/sec%10d groups",
+         name, nanos / 1e6, orders / (nanos / 1e9) / 1e6, groups));
+   }//end report
+
+   // the same groups with the same counts and revenue; cents add up the same in any order
+   private static boolean same(SalesAnalytics.Report a, SalesAnalytics.Report b) {
+      return a.rows.equals(b.rows);
+   }//end same
+
+}//end SalesAnalyticsBenchmark
@@ -0,0 +1,127 @@
+/*
+ * Session Console
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+/**
+ * This class lets several menu sessions run side by side in one JVM. The
+ * menus read from Retail.in and write to System.out; both are replaced by
+ * streams that forward to whatever console is attached to the current
+ * thread, and fall back to the process console otherwise.
+ *
+ */
+public class SessionConsole {
+
+   /**
+    * Thrown when the input of a session reaches its end. It is an Error so
+    * that the catch (Exception) blocks in the menus let it through.
+    */
+   public static class ClosedError extends Error {
+      private static final long serialVersionUID = 1L;
+
+      public ClosedError() {
+         super("Session input closed");
+      }
+   }//end ClosedError
+
+   private static final BufferedReader STDIN = new BufferedReader(new InputStreamReader(System.in));
+   private static final PrintStream STDOUT = System.out;
+   private static final PrintStream STDERR = System.err;
+
+   private static final ThreadLocal<BufferedReader> _reader = new ThreadLocal<BufferedReader>();
+   private static final ThreadLocal<PrintStream> _out = new ThreadLocal<PrintStream>();
+
+   private static boolean _installed = false;
+
+   /**
+    * @return a reader that reads from the console of the calling thread
+    */
+   public static BufferedReader reader() {
+      return new BufferedReader(new StringReader("")) {
+         @Override
+         public String readLine() throws IOException {
+            BufferedReader current = _reader.get();
+            String line = (current == null ? STDIN : current).readLine();
+            if (line == null)
+               throw new ClosedError();
+            return line;
+         }
+      };
+   }//end reader
+
+   /**
+    * Replaces System.out and System.err with streams that follow the console
+    * attached to the calling thread. Only needed when sessions run on threads.
+    */
+   public static synchronized void install() {
+      if (_installed)
+         return;
+      System.setOut(new PrintStream(new Forward(STDOUT), true));
+      System.setErr(new PrintStream(new Forward(STDERR), true));
+      _installed = true;
+   }//end install
+
+   /**
+    * Attaches a console to the calling thread
+    *
+    * @param in the session input
+    * @param out the session output
+    */
+   public static void attach(BufferedReader in, PrintStream out) {
+      _reader.set(in);
+      _out.set(out);
+   }//end attach
+
+   /**
+    * Detaches the console of the calling thread
+    */
+   public static void detach() {
+      _reader.remove();
+      _out.remove();
+   }//end detach
+
+   // forwards bytes to the session stream of the writing thread
+   private static class Forward extends OutputStream {
+      private final PrintStream _fallback;
+
+      Forward(PrintStream fallback) {
+         this._fallback = fallback;
+      }
+
+      private PrintStream target() {
+         PrintStream out = _out.get();
+         return out == null ? this._fallback : out;
+      }
+
+      @Override
+      public void write(int b) {
+         target().write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+         target().write(b, off, len);
+      }
+
+      @Override
+      public void flush() {
+         target().flush();
+      }
+   }//end Forward
+
+}//end SessionConsole
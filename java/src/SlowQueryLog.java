@@ -0,0 +1,274 @@
+/*
+ * Retail Slow Query Log
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This class keeps track of statements that take longer than a threshold.
+ * Every slow statement is added to a summary per operation and SQL text.
+ * A sample of them is explained again on a background thread, and the
+ * plan is appended to a log file that rotates once it reaches a size
+ * limit. Plain reads are run under EXPLAIN (ANALYZE, BUFFERS); statements
+ * that change data or call a function that does only get a plain EXPLAIN,
+ * so explaining them never places an order or takes stock a second time.
+ * Reads that the router sends to the replica are explained on the replica.
+ *
+ * The capture is off while the threshold is negative.
+ *
+ */
+public class SlowQueryLog {
+
+   /**
+    * The slow executions of one statement of one operation
+    */
+   private static class Entry {
+      final String operation;
+      final String sql;
+      final AtomicLong count = new AtomicLong();
+      final AtomicLong total = new AtomicLong();
+      final AtomicLong max = new AtomicLong();
+      volatile boolean seqScan = false;
+
+      Entry(String operation, String sql) {
+         this.operation = operation;
+         this.sql = sql;
+      }
+   }//end Entry
+
+   private static final Comparator<Entry> BY_TOTAL = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+         long x = a.total.get(), y = b.total.get();
+         return x < y ? 1 : x > y ? -1 : 0;
+      }
+   };
+
+   // slowest statements whose plans can wait in the queue
+   private static final int QUEUE_SIZE = 64;
+
+   // statements that write, lock rows or call a function with side effects; see triggers.sql
+   private static final Pattern WRITES = Pattern.compile(
+      "\\b(INSERT|UPDATE|DELETE|FOR\\s+SHARE|FOR\\s+KEY\\s+SHARE)\\b" +
+      "|\\b(place_order|place_cart|update_product|take_stock|backfill_order_counts|shard_product_stock" +
+      "|rebalance_product_stock|nextval|setval|setseed|pg_notify)\\s*\\(", Pattern.CASE_INSENSITIVE);
+
+   private final ConnectionPool _pool;
+   private final ReplicaRouter _router;
+   private final long _threshold;
+   private final double _sample;
+   private final File _file;
+   private final long _maxSize;
+   private final int _keep;
+   private final ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+   private final ThreadPoolExecutor _explainer;
+
+   /**
+    * @param pool the pool the EXPLAIN statements borrow connections from
+    * @param router sends the replica reads to the replica, null without one
+    * @param thresholdMillis statements slower than this are captured; negative turns capture off
+    * @param sample the fraction of slow statements that are explained, between 0 and 1
+    * @param file the plan log
+    * @param maxSize the size in bytes at which the log is rotated
+    * @param keep the number of rotated logs kept
+    */
+   public SlowQueryLog(ConnectionPool pool, ReplicaRouter router, long thresholdMillis, double sample, File file, long maxSize, int keep) {
+      this._pool = pool;
+      this._router = router;
+      this._threshold = thresholdMillis < 0 ? -1 : thresholdMillis * 1000000L;
+      this._sample = sample;
+      this._file = file;
+      this._maxSize = maxSize;
+      this._keep = keep;
+      // one daemon thread; plans that do not fit in the queue are dropped
+      this._explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+         new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "slow-query-explain");
+               t.setDaemon(true);
+               return t;
+            }
+         }, new ThreadPoolExecutor.DiscardPolicy());
+   }//end SlowQueryLog
+
+   /**
+    * @return whether statements are being captured
+    */
+   public boolean isEnabled() {
+      return this._threshold >= 0;
+   }
+
+   /**
+    * Captures a statement if it was slow
+    *
+    * @param start the System.nanoTime() the statement started at
+    * @param sql the statement with '?' placeholders
+    * @param params the values bound to the placeholders
+    */
+   public void check(long start, final String sql, final Object[] params) {
+      if (this._threshold < 0)
+         return;
+      final long elapsed = System.nanoTime() - start;
+      if (elapsed < this._threshold)
+         return;
+      final String operation = Metrics.getOperation();
+      final Entry entry = entry(operation, sql);
+      entry.count.incrementAndGet();
+      entry.total.addAndGet(elapsed);
+      long max = entry.max.get();
+      while (elapsed > max && !entry.max.compareAndSet(max, elapsed))
+         max = entry.max.get();
+
+      if (Math.random() >= this._sample || !explainable(sql))
+         return;
+      final Object[] values = params.clone();
+      this._explainer.execute(new Runnable() {
+         public void run() {
+            explain(entry, elapsed, values);
+         }
+      });
+   }//end check
+
+   private Entry entry(String operation, String sql) {
+      String key = operation + '\u0000' + sql;
+      Entry entry = this._entries.get(key);
+      if (entry == null) {
+         Entry created = new Entry(operation, sql);
+         entry = this._entries.putIfAbsent(key, created);
+         if (entry == null)
+            entry = created;
+      }//end if
+      return entry;
+   }//end entry
+
+   private static boolean explainable(String sql) {
+      String verb = sql.trim().split("\\s+", 2)[0].toUpperCase();
+      return verb.equals("SELECT") || verb.equals("WITH") || verb.equals("INSERT")
+         || verb.equals("UPDATE") || verb.equals("DELETE");
+   }//end explainable
+
+   // whether running the statement again under ANALYZE changes nothing
+   private static boolean readOnly(String sql) {
+      return !WRITES.matcher(sql).find();
+   }//end readOnly
+
+   // runs on the explain thread
+   private void explain(Entry entry, long elapsed, Object[] params) {
+      List<String> plan = new ArrayList<String>();
+      ConnectionPool.PooledConnection pc = null;
+      try{
+         // a replica read is explained where it ran
+         pc = this._router == null ? this._pool.borrow() : this._router.borrow(entry.sql, ReplicaRouter.NO_WRITE);
+         Connection conn = pc.getConnection();
+         // ANALYZE runs the statement, so anything it still changes is undone
+         conn.setAutoCommit(false);
+         PreparedStatement stmt = conn.prepareStatement(
+            (readOnly(entry.sql) ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + entry.sql);
+         for (int i = 0; i < params.length; ++i)
+            stmt.setObject(i + 1, params[i]);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            plan.add(rs.getString(1));
+         rs.close();
+         stmt.close();
+      }catch (SQLException e){
+         plan.add("EXPLAIN failed: " + e.getMessage());
+      }finally{
+         // rolls the transaction back
+         if (this._router == null)
+            this._pool.release(pc);
+         else
+            this._router.release(pc);
+      }//end try
+      for (String line : plan)
+         if (line.contains("Seq Scan"))
+            entry.seqScan = true;
+
+      StringBuilder sb = new StringBuilder();
+      sb.append("=== ").append(new Timestamp(System.currentTimeMillis()))
+        .append(" operation=").append(entry.operation)
+        .append(String.format(" elapsed=%.3f ms%n", elapsed / 1e6));
+      sb.append("SQL: ").append(entry.sql).append(String.format("%n"));
+      sb.append("parameters: ").append(Arrays.toString(params)).append(String.format("%n"));
+      for (String line : plan)
+         sb.append("  ").append(line).append(String.format("%n"));
+      sb.append(String.format("%n"));
+      try{
+         write(sb.toString());
+      }catch (IOException e){
+         System.err.println(e.getMessage());
+      }//end try
+   }//end explain
+
+   private void write(String text) throws IOException {
+      if (this._file.length() + text.length() > this._maxSize && this._file.length() > 0) {
+         // log.1 is the newest rotated log, log.<keep> the oldest
+         new File(this._file.getPath() + "." + this._keep).delete();
+         for (int i = this._keep - 1; i >= 1; --i)
+            new File(this._file.getPath() + "." + i).renameTo(new File(this._file.getPath() + "." + (i + 1)));
+         if (this._keep > 0)
+            this._file.renameTo(new File(this._file.getPath() + ".1"));
+         else
+            this._file.delete();
+      }//end if
+      Writer out = new FileWriter(this._file, true);
+      try{
+         out.write(text);
+      }finally{
+         out.close();
+      }//end try
+   }//end write
+
+   /**
+    * @param limit the largest number of statements listed
+    * @return the slow statements that took the most time in total
+    */
+   public String report(int limit) {
+      List<Entry> entries = new ArrayList<Entry>(this._entries.values());
+      Collections.sort(entries, BY_TOTAL);
+      StringBuilder sb = new StringBuilder();
+      if (this._threshold < 0)
+         sb.append(String.format("Slow query capture is off; start with -Dretail.slow.threshold=<ms> to turn it on.%n"));
+      else
+         sb.append(String.format("Statements slower than %d ms; plans are in %s%n", this._threshold / 1000000L, this._file));
+      sb.append(String.format("%-28s%8s%12s%10s%10s%6s  %s%n", "operation", "count", "total ms", "mean ms", "max ms", "seq", "statement"));
+      for (int i = 0; i < entries.size() && i < limit; ++i) {
+         Entry e = entries.get(i);
+         String sql = e.sql.length() > 70 ? e.sql.substring(0, 67) + "..." : e.sql;
+         long count = e.count.get();
+         sb.append(String.format("%-28s%8d%12.1f%10.2f%10.2f%6s  %s%n", e.operation, count, e.total.get() / 1e6,
+            e.total.get() / 1e6 / count, e.max.get() / 1e6, e.seqScan ? "yes" : "", sql));
+      }//end for
+      return sb.toString();
+   }//end report
+
+}//end SlowQueryLog
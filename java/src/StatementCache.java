@@ -0,0 +1,115 @@
+/*
+ * Prepared Statement Cache
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a bounded, least recently used set of prepared statements
+ * for one physical connection, keyed by the SQL text. Statements are prepared
+ * on the server the first time they are seen so that later executions skip
+ * the parse and plan steps.
+ *
+ */
+public class StatementCache {
+
+   // connection the cached statements belong to
+   private final Connection _connection;
+
+   // maximum number of statements kept open at once
+   private final int _capacity;
+
+   // statements in access order, least recently used first
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   private long _hits = 0;
+   private long _misses = 0;
+
+   /**
+    * Creates a new statement cache for a connection
+    *
+    * @param connection the connection used to prepare statements
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, int capacity) {
+      this._connection = connection;
+      this._capacity = capacity;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(capacity, 0.75f, true);
+   }//end StatementCache
+
+   /**
+    * Returns the prepared statement for the given SQL text, preparing it
+    * and evicting the least recently used statement if needed.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @return a prepared statement ready for parameter binding
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public synchronized PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt != null) {
+         ++this._hits;
+         return stmt;
+      }//end if
+      ++this._misses;
+      stmt = this._connection.prepareStatement(sql);
+      try{
+         // the bundled driver substitutes parameters on the client unless asked
+         if (stmt instanceof org.postgresql.PGStatement)
+            ((org.postgresql.PGStatement) stmt).setUseServerPrepare(true);
+      }catch (Exception e){
+         // newer drivers prepare on the server on their own.
+      }//end try
+      this._statements.put(sql, stmt);
+      if (this._statements.size() > this._capacity) {
+         Iterator<Map.Entry<String, PreparedStatement>> eldest = this._statements.entrySet().iterator();
+         close(eldest.next().getValue());
+         eldest.remove();
+      }//end if
+      return stmt;
+   }//end prepare
+
+   public synchronized long getHits() {
+      return this._hits;
+   }
+
+   public synchronized long getMisses() {
+      return this._misses;
+   }
+
+   public synchronized int size() {
+      return this._statements.size();
+   }
+
+   /**
+    * Closes every cached statement. The connection itself is left open.
+    */
+   public synchronized void clear() {
+      for (PreparedStatement stmt : this._statements.values())
+         close(stmt);
+      this._statements.clear();
+   }//end clear
+
+   private static void close(PreparedStatement stmt) {
+      try{
+         stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end close
+
+}//end StatementCache
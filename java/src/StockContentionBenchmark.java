@@ -0,0 +1,149 @@
+/*
+ * Hot Product Contention Benchmark
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures how many orders per second many concurrent workers
+ * can place for one product, first with its stock in the single Product
+ * row and then split over stock shards. Every worker has a connection of
+ * its own and places one-unit orders through place_order, as the menus do.
+ *
+ * The benchmark adds a product of its own to the store and removes it,
+ * with its orders, when done; the order counts are then rebuilt.
+ *
+ * Usage: java StockContentionBenchmark <dbname> <port> <user> [storeID] [workers] [seconds] [shards]
+ *
+ */
+public class StockContentionBenchmark {
+
+   private static final String PRODUCT = "contention benchmark";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java [-classpath <classpath>] " + StockContentionBenchmark.class.getName() +
+            " <dbname> <port> <user> [storeID] [workers] [seconds] [shards]");
+         return;
+      }//end if
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      int store = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+      int workers = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+      int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+      int shards = args.length > 6 ? Integer.parseInt(args[6]) : 16;
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      Connection admin = DriverManager.getConnection(url, args[2], "");
+      try{
+         List<Integer> customers = new ArrayList<Integer>();
+         ResultSet rs = admin.createStatement().executeQuery("SELECT userID FROM Users WHERE type = 'customer' ORDER BY userID;");
+         while (rs.next())
+            customers.add(rs.getInt(1));
+         rs.close();
+         if (customers.isEmpty())
+            throw new IllegalStateException("There are no customers to order with");
+         update(admin, "INSERT INTO Product (storeID, productName, numberOfUnits, pricePerUnit) VALUES (?, ?, ?, 1);",
+            store, PRODUCT, Integer.MAX_VALUE / 2);
+
+         System.out.println(String.format("%d workers ordering one product of store %d for %d s", workers, store, seconds));
+         System.out.println(String.format("%-16s%14s%12s%12s", "stock", "orders/sec", "p50 ms", "p99 ms"));
+         run(url, args[2], "single row", store, customers, workers, seconds);
+         update(admin, "SELECT shard_product_stock(?, ?, ?);", store, PRODUCT, shards);
+         run(url, args[2], shards + " shards", store, customers, workers, seconds);
+      }finally{
+         update(admin, "DELETE FROM Orders WHERE storeID = ? AND productName = ?;", store, PRODUCT);
+         update(admin, "DELETE FROM Product WHERE storeID = ? AND productName = ?;", store, PRODUCT);
+         update(admin, "SELECT backfill_order_counts();");
+         admin.close();
+      }//end try
+   }//end main
+
+   // places orders from every worker for the given time and prints the rate
+   private static void run(final String url, final String user, String name, final int store,
+                           final List<Integer> customers, int workers, int seconds) throws Exception {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong failed = new AtomicLong();
+      final CountDownLatch ready = new CountDownLatch(workers);
+      final long[] window = new long[2];
+      final CountDownLatch go = new CountDownLatch(1);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int w = 0; w < workers; ++w) {
+         final int customer = customers.get(w % customers.size());
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               Connection conn = null;
+               boolean started = false;
+               try{
+                  conn = DriverManager.getConnection(url, user, "");
+                  PreparedStatement order = conn.prepareStatement(Retail.PLACE_ORDER);
+                  order.setInt(1, customer);
+                  order.setInt(2, store);
+                  order.setString(3, PRODUCT);
+                  order.setInt(4, 1);
+                  ready.countDown();
+                  started = true;
+                  go.await();
+                  while (System.nanoTime() < window[1]) {
+                     long start = System.nanoTime();
+                     ResultSet rs = order.executeQuery();
+                     if (!rs.next())
+                        failed.incrementAndGet();
+                     rs.close();
+                     latency.record(System.nanoTime() - start);
+                  }//end while
+               }catch (Exception e){
+                  failed.incrementAndGet();
+                  System.err.println(e.getMessage());
+               }finally{
+                  if (!started)
+                     ready.countDown();
+                  try{
+                     if (conn != null)
+                        conn.close();
+                  }catch (SQLException e){
+                     // ignored.
+                  }//end try
+               }//end try
+            }
+         });
+         threads.add(t);
+         t.start();
+      }//end for
+      ready.await();
+      window[0] = System.nanoTime();
+      window[1] = window[0] + seconds * 1000000000L;
+      go.countDown();
+      for (Thread t : threads)
+         t.join();
+      double elapsed = (System.nanoTime() - window[0]) / 1e9;
+      System.out.println(String.format("%-16s%14.0f%12.2f%12.2f%s", name, latency.getCount() / elapsed,
+         latency.getQuantile(0.50) / 1e6, latency.getQuantile(0.99) / 1e6,
+         failed.get() == 0 ? "" : "   (" + failed.get() + " failed)"));
+   }//end run
+
+   private static void update(Connection conn, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(sql);
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+      stmt.execute();
+      stmt.close();
+   }//end update
+
+}//end StockContentionBenchmark
@@ -0,0 +1,89 @@
+/*
+ * Retail Stock Rebalancer
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This class periodically evens out the stock of every sharded product
+ * over its shards, so an order keeps finding a shard with enough units
+ * without locking the others, and moves the order counts kept on the
+ * shards to the popularity rollups. Each product is rebalanced in a
+ * transaction of its own, so only its rows are locked, and only briefly.
+ *
+ */
+public class StockRebalancer {
+
+   static final String SHARDED_PRODUCTS = "SELECT DISTINCT storeID, productName FROM ProductStockShards ORDER BY storeID, productName;";
+   static final String REBALANCE = "SELECT rebalance_product_stock(?, ?);";
+
+   private final Retail _esql;
+   private final long _interval;
+   private Thread _thread = null;
+
+   /**
+    * @param esql the session the shards are rebalanced through
+    * @param interval milliseconds between rebalances
+    */
+   public StockRebalancer(Retail esql, long interval) {
+      this._esql = esql;
+      this._interval = interval;
+   }//end StockRebalancer
+
+   /**
+    * Rebalances every sharded product once
+    *
+    * @return the number of products rebalanced
+    * @throws java.sql.SQLException when a product cannot be rebalanced
+    */
+   public int rebalance() throws SQLException {
+      List<List<String>> products = this._esql.executeQueryAndReturnResult(SHARDED_PRODUCTS);
+      for (List<String> product : products)
+         this._esql.executeQueryAndReturnResult(REBALANCE, Integer.valueOf(product.get(0).trim()), product.get(1));
+      return products.size();
+   }//end rebalance
+
+   /**
+    * Starts a background thread that rebalances every interval
+    */
+   public synchronized void start() {
+      if (this._thread != null)
+         return;
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            Metrics.begin("rebalanceStock");
+            while (!Thread.currentThread().isInterrupted()) {
+               try{
+                  Thread.sleep(StockRebalancer.this._interval);
+                  rebalance();
+               }catch (InterruptedException e){
+                  return;
+               }catch (SQLException e){
+                  System.err.println(e.getMessage());
+               }//end try
+            }//end while
+         }
+      }, "stock-rebalancer");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end start
+
+   /**
+    * Stops the background thread
+    */
+   public synchronized void close() {
+      if (this._thread != null)
+         this._thread.interrupt();
+   }//end close
+
+}//end StockRebalancer
@@ -0,0 +1,264 @@
+/*
+ * Store Locator
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class answers "stores within R of a point" and "k nearest stores"
+ * from a uniform grid over Store.latitude and Store.longitude. The index is
+ * immutable; a changed store list is handled by building a new locator and
+ * swapping it in. Distances are the same euclidean distance used by the
+ * calculate_distance function in triggers.sql.
+ *
+ */
+public class StoreLocator {
+
+   // average number of stores per grid cell the cell size is chosen for
+   private static final int STORES_PER_CELL = 8;
+
+   /**
+    * One store position in the index, with the rest of its Store row
+    */
+   public static class Store {
+      public final int storeID;
+      public final String name;
+      public final double latitude;
+      public final double longitude;
+      public final int managerID;
+      public final String dateEstablished;
+
+      public Store(int storeID, String name, double latitude, double longitude) {
+         this(storeID, name, latitude, longitude, 0, null);
+      }
+
+      public Store(int storeID, String name, double latitude, double longitude, int managerID, String dateEstablished) {
+         this.storeID = storeID;
+         this.name = name;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.managerID = managerID;
+         this.dateEstablished = dateEstablished;
+      }
+   }//end Store
+
+   /**
+    * A store found by a query together with its distance from the query point
+    */
+   public static class Match {
+      public final Store store;
+      public final double distance;
+
+      Match(Store store, double distance) {
+         this.store = store;
+         this.distance = distance;
+      }
+   }//end Match
+
+   public static final Comparator<Match> BY_STORE_ID = new Comparator<Match>() {
+      public int compare(Match a, Match b) {
+         return Integer.compare(a.store.storeID, b.store.storeID);
+      }
+   };
+
+   public static final Comparator<Match> BY_DISTANCE = new Comparator<Match>() {
+      public int compare(Match a, Match b) {
+         int c = Double.compare(a.distance, b.distance);
+         return c != 0 ? c : Integer.compare(a.store.storeID, b.store.storeID);
+      }
+   };
+
+   private final long _loadedAt;
+   private final Map<Integer, Store> _byID;
+
+   // grid origin, cell size and dimensions
+   private final double _minLat;
+   private final double _minLong;
+   private final double _cellSize;
+   private final int _rows;
+   private final int _cols;
+
+   // stores ordered by cell; cell c holds _cells[_cellStart[c] .. _cellStart[c + 1])
+   private final int[] _cellStart;
+   private final Store[] _cells;
+
+   /**
+    * Builds the grid over a list of stores
+    *
+    * @param stores every store to index
+    */
+   public StoreLocator(List<Store> stores) {
+      this._loadedAt = System.currentTimeMillis();
+      this._byID = new HashMap<Integer, Store>(stores.size() * 2);
+      double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+      double minLong = Double.MAX_VALUE, maxLong = -Double.MAX_VALUE;
+      for (Store s : stores) {
+         this._byID.put(s.storeID, s);
+         minLat = Math.min(minLat, s.latitude);
+         maxLat = Math.max(maxLat, s.latitude);
+         minLong = Math.min(minLong, s.longitude);
+         maxLong = Math.max(maxLong, s.longitude);
+      }//end for
+      if (stores.isEmpty()) {
+         minLat = maxLat = minLong = maxLong = 0;
+      }//end if
+
+      // pick square cells so that each holds a handful of stores on average
+      double height = Math.max(maxLat - minLat, 1e-9);
+      double width = Math.max(maxLong - minLong, 1e-9);
+      int cellCount = Math.max(1, stores.size() / STORES_PER_CELL);
+      double cellSize = Math.sqrt(height * width / cellCount);
+      cellSize = Math.max(cellSize, Math.max(height, width) / 4096);
+      this._minLat = minLat;
+      this._minLong = minLong;
+      this._cellSize = cellSize;
+      this._rows = (int) (height / cellSize) + 1;
+      this._cols = (int) (width / cellSize) + 1;
+
+      // counting sort of the stores into their cells
+      this._cellStart = new int[this._rows * this._cols + 1];
+      int[] cellOf = new int[stores.size()];
+      for (int i = 0; i < stores.size(); ++i) {
+         Store s = stores.get(i);
+         cellOf[i] = row(s.latitude) * this._cols + col(s.longitude);
+         ++this._cellStart[cellOf[i] + 1];
+      }//end for
+      for (int c = 0; c < this._rows * this._cols; ++c)
+         this._cellStart[c + 1] += this._cellStart[c];
+      int[] next = Arrays.copyOf(this._cellStart, this._cellStart.length - 1);
+      this._cells = new Store[stores.size()];
+      for (int i = 0; i < stores.size(); ++i)
+         this._cells[next[cellOf[i]]++] = stores.get(i);
+   }//end StoreLocator
+
+   /**
+    * @return the time in milliseconds this index was built
+    */
+   public long getLoadedAt() {
+      return this._loadedAt;
+   }
+
+   /**
+    * @return the number of stores in the index
+    */
+   public int size() {
+      return this._cells.length;
+   }
+
+   /**
+    * @param storeID the store to look up
+    * @return the store or null when it does not exist
+    */
+   public Store get(int storeID) {
+      return this._byID.get(storeID);
+   }
+
+   /**
+    * @return the distance between a point and a store, or -1 if the store does not exist
+    */
+   public double distance(int storeID, double latitude, double longitude) {
+      Store s = this._byID.get(storeID);
+      return s == null ? -1 : distance(s, latitude, longitude);
+   }//end distance
+
+   /**
+    * Finds every store within a radius of a point
+    *
+    * @param latitude the latitude of the point
+    * @param longitude the longitude of the point
+    * @param radius the largest distance included
+    * @return the matching stores in no particular order
+    */
+   public List<Match> within(double latitude, double longitude, double radius) {
+      List<Match> result = new ArrayList<Match>();
+      int r0 = row(latitude - radius), r1 = row(latitude + radius);
+      int c0 = col(longitude - radius), c1 = col(longitude + radius);
+      for (int r = r0; r <= r1; ++r)
+         for (int c = c0; c <= c1; ++c)
+            collect(r * this._cols + c, latitude, longitude, radius, result);
+      return result;
+   }//end within
+
+   /**
+    * Finds the k stores closest to a point
+    *
+    * @param latitude the latitude of the point
+    * @param longitude the longitude of the point
+    * @param k the number of stores wanted
+    * @return up to k stores ordered by distance
+    */
+   public List<Match> nearest(double latitude, double longitude, int k) {
+      List<Match> found = new ArrayList<Match>();
+      if (k <= 0 || this._cells.length == 0)
+         return found;
+      int pr = rawRow(latitude), pc = rawCol(longitude);
+      int maxRing = Math.max(this._rows, this._cols) + Math.max(Math.abs(pr), Math.abs(pc));
+      for (int ring = 0; ring <= maxRing; ++ring) {
+         // visit the cells on the border of the square of the given ring
+         for (int r = pr - ring; r <= pr + ring; ++r) {
+            if (r < 0 || r >= this._rows)
+               continue;
+            boolean edge = (r == pr - ring || r == pr + ring);
+            for (int c = pc - ring; c <= pc + ring; c += edge ? 1 : 2 * Math.max(ring, 1)) {
+               if (c >= 0 && c < this._cols)
+                  collect(r * this._cols + c, latitude, longitude, Double.MAX_VALUE, found);
+            }//end for
+         }//end for
+         if (found.size() >= k) {
+            Collections.sort(found, BY_DISTANCE);
+            // every unvisited cell is at least this far from the point
+            double reach = ring * this._cellSize;
+            if (found.get(k - 1).distance <= reach || found.size() == this._cells.length)
+               return new ArrayList<Match>(found.subList(0, k));
+         }//end if
+      }//end for
+      Collections.sort(found, BY_DISTANCE);
+      return new ArrayList<Match>(found.subList(0, Math.min(k, found.size())));
+   }//end nearest
+
+   private void collect(int cell, double latitude, double longitude, double radius, List<Match> out) {
+      for (int i = this._cellStart[cell]; i < this._cellStart[cell + 1]; ++i) {
+         double d = distance(this._cells[i], latitude, longitude);
+         if (d <= radius)
+            out.add(new Match(this._cells[i], d));
+      }//end for
+   }//end collect
+
+   private static double distance(Store s, double latitude, double longitude) {
+      double t1 = (s.latitude - latitude) * (s.latitude - latitude);
+      double t2 = (s.longitude - longitude) * (s.longitude - longitude);
+      return Math.sqrt(t1 + t2);
+   }//end distance
+
+   private int rawRow(double latitude) {
+      return (int) Math.floor((latitude - this._minLat) / this._cellSize);
+   }
+
+   private int rawCol(double longitude) {
+      return (int) Math.floor((longitude - this._minLong) / this._cellSize);
+   }
+
+   private int row(double latitude) {
+      return Math.min(this._rows - 1, Math.max(0, rawRow(latitude)));
+   }
+
+   private int col(double longitude) {
+      return Math.min(this._cols - 1, Math.max(0, rawCol(longitude)));
+   }
+
+}//end StoreLocator
@@ -0,0 +1,172 @@
+/*
+ * Store Locator Benchmark
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class compares the StoreLocator grid with the scan it replaces on a
+ * large synthetic set of stores. Without database arguments the scan is the
+ * same per-row distance test done in Java. With them, the stores are
+ * generated into a temporary table and the calculate_distance query used by
+ * viewStores is timed as well.
+ *
+ * Usage: java StoreLocatorBenchmark [stores] [queries] [<dbname> <port> <user>]
+ *
+ */
+public class StoreLocatorBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      int storeCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+      int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+      Connection connection = null;
+      List<StoreLocator.Store> stores;
+      if (args.length >= 5) {
+         Class.forName("org.postgresql.Driver").newInstance();
+         connection = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[3] + "/" + args[2], args[4], "");
+         stores = generateInDatabase(connection, storeCount);
+      }else {
+         stores = generate(storeCount);
+      }//end if
+
+      Random random = new Random(42);
+      double[][] points = new double[queryCount][2];
+      for (double[] p : points) {
+         p[0] = random.nextDouble() * 100;
+         p[1] = random.nextDouble() * 100;
+      }//end for
+
+      long start = System.nanoTime();
+      StoreLocator locator = new StoreLocator(stores);
+      report("build grid", 1, System.nanoTime() - start);
+
+      // warm up both paths before timing them
+      for (int i = 0; i < Math.min(queryCount, 1000); ++i) {
+         locator.within(points[i][0], points[i][1], Retail.STORE_RADIUS);
+         scan(stores, points[i][0], points[i][1], Retail.STORE_RADIUS);
+      }//end for
+
+      // the customer radius, and a small one where few stores match
+      double[] radii = {Retail.STORE_RADIUS, 2};
+      for (double radius : radii) {
+         long found = 0;
+         start = System.nanoTime();
+         for (double[] p : points)
+            found += locator.within(p[0], p[1], radius).size();
+         report("grid within " + (int) radius, queryCount, System.nanoTime() - start);
+
+         long scanned = 0;
+         start = System.nanoTime();
+         for (double[] p : points)
+            scanned += scan(stores, p[0], p[1], radius).size();
+         report("scan within " + (int) radius, queryCount, System.nanoTime() - start);
+         if (found != scanned)
+            System.out.println("MISMATCH: grid found " + found + " stores, scan found " + scanned);
+      }//end for
+
+      start = System.nanoTime();
+      for (double[] p : points)
+         locator.nearest(p[0], p[1], 5);
+      report("grid 5 nearest", queryCount, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (double[] p : points)
+         scanNearest(stores, p[0], p[1], 5);
+      report("scan 5 nearest", queryCount, System.nanoTime() - start);
+
+      if (connection != null) {
+         int sqlQueries = Math.min(queryCount, 100);
+         PreparedStatement stmt = connection.prepareStatement(
+            "SELECT S.storeID, S.name, calculate_distance(?, ?, S.latitude, S.longitude) AS distance FROM BenchStore S WHERE calculate_distance(?, ?, S.latitude, S.longitude)<= 30;");
+         start = System.nanoTime();
+         for (int i = 0; i < sqlQueries; ++i) {
+            for (int j = 0; j < 2; ++j) {
+               stmt.setDouble(2 * j + 1, points[i][0]);
+               stmt.setDouble(2 * j + 2, points[i][1]);
+            }//end for
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next())
+               rs.getString(2);
+            rs.close();
+         }//end for
+         report("sql within 30", sqlQueries, System.nanoTime() - start);
+         stmt.close();
+         connection.close();
+      }//end if
+   }//end main
+
+   private static void report(String name, int operations, long nanos) {
+      System.out.println(String.format("%-20s%12d ops%14.3f ms total%14.2f us/op",
+         name, operations, nanos / 1e6, nanos / 1e3 / operations));
+   }//end report
+
+   private static List<StoreLocator.Store> generate(int count) {
+      Random random = new Random(7);
+      List<StoreLocator.Store> stores = new ArrayList<StoreLocator.Store>(count);
+      for (int i = 1; i <= count; ++i)
+         stores.add(new StoreLocator.Store(i, "store" + i, random.nextDouble() * 100, random.nextDouble() * 100));
+      return stores;
+   }//end generate
+
+   private static List<StoreLocator.Store> generateInDatabase(Connection connection, int count) throws Exception {
+      Statement stmt = connection.createStatement();
+      stmt.execute("CREATE TEMP TABLE BenchStore (storeID integer PRIMARY KEY, name char(30) NOT NULL, latitude decimal(8,6) NOT NULL, longitude decimal(9,6) NOT NULL)");
+      stmt.execute("SELECT setseed(0.42)");
+      stmt.execute("INSERT INTO BenchStore SELECT g, 'store' || g, random() * 100, random() * 100 FROM generate_series(1, " + count + ") g");
+      stmt.execute("ANALYZE BenchStore");
+      List<StoreLocator.Store> stores = new ArrayList<StoreLocator.Store>(count);
+      ResultSet rs = stmt.executeQuery("SELECT storeID, name, latitude, longitude FROM BenchStore");
+      while (rs.next())
+         stores.add(new StoreLocator.Store(rs.getInt(1), rs.getString(2).trim(), rs.getDouble(3), rs.getDouble(4)));
+      rs.close();
+      stmt.close();
+      return stores;
+   }//end generateInDatabase
+
+   private static List<StoreLocator.Store> scan(List<StoreLocator.Store> stores, double latitude, double longitude, double radius) {
+      List<StoreLocator.Store> found = new ArrayList<StoreLocator.Store>();
+      for (StoreLocator.Store s : stores) {
+         double t1 = (s.latitude - latitude) * (s.latitude - latitude);
+         double t2 = (s.longitude - longitude) * (s.longitude - longitude);
+         if (Math.sqrt(t1 + t2) <= radius)
+            found.add(s);
+      }//end for
+      return found;
+   }//end scan
+
+   private static double[] scanNearest(List<StoreLocator.Store> stores, double latitude, double longitude, int k) {
+      double[] best = new double[k];
+      java.util.Arrays.fill(best, Double.MAX_VALUE);
+      for (StoreLocator.Store s : stores) {
+         double t1 = (s.latitude - latitude) * (s.latitude - latitude);
+         double t2 = (s.longitude - longitude) * (s.longitude - longitude);
+         double d = Math.sqrt(t1 + t2);
+         if (d < best[k - 1]) {
+            int i = k - 1;
+            while (i > 0 && best[i - 1] > d) {
+               best[i] = best[i - 1];
+               --i;
+            }//end while
+            best[i] = d;
+         }//end if
+      }//end for
+      return best;
+   }//end scanNearest
+
+}//end StoreLocatorBenchmark
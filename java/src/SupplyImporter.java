@@ -0,0 +1,115 @@
+/*
+ * Retail Supply Importer
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class reads a restock file for one store, a CSV file with a header
+ * line and productName and units columns, and submits every line as a
+ * supply request from one warehouse. The whole file is one transaction:
+ * either every product is restocked or, when a product does not exist,
+ * none is.
+ *
+ */
+public class SupplyImporter {
+
+   /**
+    * One product of a supply request
+    */
+   public static class Line {
+      public final String productName;
+      public final int units;
+
+      public Line(String productName, int units) {
+         this.productName = productName.trim();
+         this.units = units;
+      }
+   }//end Line
+
+   private final Retail _esql;
+
+   /**
+    * @param esql the session the requests are submitted through
+    */
+   public SupplyImporter(Retail esql) {
+      this._esql = esql;
+   }//end SupplyImporter
+
+   /**
+    * Submits every line of a restock file and prints the rate
+    *
+    * @param input the restock file
+    * @param managerID the manager the requests are recorded under
+    * @param warehouseID the warehouse supplying the products
+    * @param storeID the store receiving the products
+    * @return the number of lines submitted
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.sql.SQLException when the requests are rejected; nothing is restocked then
+    */
+   public int run(BufferedReader input, int managerID, int warehouseID, int storeID) throws IOException, SQLException {
+      List<Line> lines = read(input);
+      if (lines.isEmpty())
+         return 0;
+      long start = System.nanoTime();
+      this._esql.submitSupplyBatch(managerID, warehouseID, storeID, lines);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("%d supply lines submitted in %.2f s: %.0f lines/sec", lines.size(), seconds, lines.size() / seconds));
+      return lines.size();
+   }//end run
+
+   /**
+    * Reads the lines of a restock file
+    *
+    * @param input the restock file
+    * @return its lines, in file order
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public static List<Line> read(BufferedReader input) throws IOException {
+      List<Line> lines = new ArrayList<Line>();
+      String header = input.readLine();
+      if (header == null)
+         return lines;
+      int[] columns = columns(header.split(","));
+      String line;
+      while ((line = input.readLine()) != null) {
+         if (line.trim().isEmpty())
+            continue;
+         String[] fields = line.split(",");
+         int units = Integer.parseInt(fields[columns[1]].trim());
+         if (units <= 0)
+            throw new IllegalArgumentException("Number of units must be positive: " + line);
+         lines.add(new Line(fields[columns[0]], units));
+      }//end while
+      return lines;
+   }//end read
+
+   // the positions of productName and units, which may also be called unitsRequested
+   private static int[] columns(String[] header) {
+      List<String> names = new ArrayList<String>();
+      for (String name : header)
+         names.add(name.trim().toLowerCase());
+      int product = names.indexOf("productname");
+      int units = names.indexOf("units");
+      if (units < 0)
+         units = names.indexOf("unitsrequested");
+      if (product < 0 || units < 0)
+         throw new IllegalArgumentException("Restock file needs productName and units columns: " + Arrays.toString(header));
+      return new int[] {product, units};
+   }//end columns
+
+}//end SupplyImporter
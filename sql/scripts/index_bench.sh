@@ -0,0 +1,25 @@
+#!/bin/bash
+# Compares the plans and execution times of the hottest reads with only the
+# primary keys and with create_indexes.sql, on a scratch copy of the data
+# grown by a scale factor (default 2000, about a million orders).
+# Usage: source ./sql/scripts/index_bench.sh [scale]
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SCALE=${1:-2000}
+BENCH_DB=$USER"_BENCH"
+cp $DIR/../../data/*.csv /tmp/$USER/myDB/data/
+dropdb -h localhost -p $PGPORT --if-exists $BENCH_DB
+createdb -h localhost -p $PGPORT $BENCH_DB
+psql -q -h localhost -p $PGPORT $BENCH_DB < $DIR/../src/create_tables.sql
+psql -q -h localhost -p $PGPORT $BENCH_DB < $DIR/../src/load_data.sql
+psql -q -h localhost -p $PGPORT -v scale=$SCALE $BENCH_DB < $DIR/../src/scale_data.sql
+
+echo "=== BEFORE: primary keys only"
+psql -q -h localhost -p $PGPORT $BENCH_DB < $DIR/../src/index_bench_queries.sql
+
+psql -q -h localhost -p $PGPORT $BENCH_DB < $DIR/../src/create_indexes.sql
+psql -q -h localhost -p $PGPORT $BENCH_DB -c "VACUUM ANALYZE"
+
+echo "=== AFTER: create_indexes.sql"
+psql -q -h localhost -p $PGPORT $BENCH_DB < $DIR/../src/index_bench_queries.sql
+
+dropdb -h localhost -p $PGPORT $BENCH_DB
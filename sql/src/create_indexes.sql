@@ -1,7 +1,37 @@
 DROP INDEX IF EXISTS Store_Manager_Index;
 DROP INDEX IF EXISTS Product_Store_Index;
 DROP INDEX IF EXISTS Customer_Order_Index;
+DROP INDEX IF EXISTS Customer_Order_Time_Index;
+DROP INDEX IF EXISTS Store_Order_Time_Index;
+DROP INDEX IF EXISTS Store_Update_Index;
+DROP INDEX IF EXISTS Store_Supply_Request_Index;
+DROP INDEX IF EXISTS User_Login_Index;
+DROP INDEX IF EXISTS User_Type_Name_Index;
+DROP INDEX IF EXISTS Store_Product_Popularity_Index;
+DROP INDEX IF EXISTS Store_Customer_Popularity_Index;
+
+-- Product(storeID) is served by the leading column of the Product primary key
 
 CREATE INDEX Store_Manager_Index ON Store(managerID);
-CREATE INDEX Product_Store_Index ON Product(storeID);
-CREATE INDEX Customer_Order_Index ON Orders(customerID);
\ No newline at end of file
+
+-- recent orders of a customer (viewRecentOrders): a top-5 scan of the newest entries
+CREATE INDEX Customer_Order_Time_Index ON Orders(customerID, orderTime DESC) INCLUDE (storeID, productName, unitsOrdered);
+
+-- orders of a store, newest first, in keyset pages (viewStoreOrders); covers every column
+CREATE INDEX Store_Order_Time_Index ON Orders(storeID, orderTime, orderNumber) INCLUDE (customerID, productName, unitsOrdered);
+
+-- 5 recent product updates of a store (viewRecentUpdates); covers every column
+CREATE INDEX Store_Update_Index ON ProductUpdates(storeID, updateNumber DESC) INCLUDE (managerID, productName, updatedOn);
+
+-- 5 recent supply requests of a store (viewSupplyRequests); covers every column
+CREATE INDEX Store_Supply_Request_Index ON ProductSupplyRequests(storeID, requestNumber DESC) INCLUDE (managerID, warehouseID, productName, unitsRequested);
+
+-- LogIn looks users up by name and password and reads four columns
+CREATE INDEX User_Login_Index ON Users(name, password) INCLUDE (userID, type, latitude, longitude);
+
+-- keyset pages of the user listing
+CREATE INDEX User_Type_Name_Index ON Users(type, name, userID);
+
+-- top products and customers of a store, read from the front of the index
+CREATE INDEX Store_Product_Popularity_Index ON StoreProductOrders(storeID, numOrders DESC);
+CREATE INDEX Store_Customer_Popularity_Index ON StoreCustomerOrders(storeID, numOrders DESC);
@@ -5,6 +5,11 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS StoreProductOrders CASCADE;
+DROP TABLE IF EXISTS StoreCustomerOrders CASCADE;
+DROP TABLE IF EXISTS ProductStockShards CASCADE;
+DROP TABLE IF EXISTS ReorderPolicy CASCADE;
+DROP TABLE IF EXISTS AuditSpool CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -12,6 +17,7 @@ CREATE TABLE Users ( userID serial,
 					 latitude decimal(8,6) NOT NULL,
                      longitude decimal(9,6) NOT NULL,
                      type char(10) NOT NULL,  -- type can be 'customer', 'manager', 'admin' 
+                     version integer NOT NULL DEFAULT 0,  -- bumped by every edit, checked by the next
                      PRIMARY KEY(userID)
 );
 
@@ -30,6 +36,7 @@ CREATE TABLE Product ( storeID integer NOT NULL,
                        productName char(30) NOT NULL,
                        numberOfUnits integer NOT NULL,
                        pricePerUnit float NOT NULL,
+                       version integer NOT NULL DEFAULT 0,  -- bumped by manager edits, not by orders or restocks
                        PRIMARY KEY(storeID, productName), 
                        FOREIGN KEY(storeID) REFERENCES Store(storeID)
 		               ON DELETE CASCADE
@@ -77,6 +84,70 @@ CREATE TABLE ProductUpdates (
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
 
+-- running order counts per store, kept by update_order_counts_trigger
+CREATE TABLE StoreProductOrders (
+                        	storeID integer NOT NULL,
+                       		productName char(30) NOT NULL,
+                            numOrders bigint NOT NULL,
+                            unitsOrdered bigint NOT NULL,
+                        	PRIMARY KEY(storeID, productName),
+                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                            ON DELETE CASCADE
+);
+
+CREATE TABLE StoreCustomerOrders (
+                        	storeID integer NOT NULL,
+                            customerID integer NOT NULL,
+                            numOrders bigint NOT NULL,
+                            unitsOrdered bigint NOT NULL,
+                        	PRIMARY KEY(storeID, customerID),
+                        	FOREIGN KEY(storeID) REFERENCES Store(storeID) ON DELETE CASCADE,
+                        	FOREIGN KEY(customerID) REFERENCES Users(userID)
+);
+
+-- stock of a hot product split over sub-counters, so concurrent orders lock
+-- different rows. A sharded product's stock is Product.numberOfUnits plus
+-- the units of its shards; the order counts kept here are moved to
+-- StoreProductOrders when the shards are rebalanced.
+CREATE TABLE ProductStockShards (
+                        	storeID integer NOT NULL,
+                       		productName char(30) NOT NULL,
+                            shard integer NOT NULL,
+                            numberOfUnits integer NOT NULL,
+                            numOrders bigint NOT NULL DEFAULT 0,
+                            unitsOrdered bigint NOT NULL DEFAULT 0,
+                        	PRIMARY KEY(storeID, productName, shard),
+                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                            ON DELETE CASCADE
+);
+
+-- per-store reorder point of the replenishment engine: products below
+-- reorderPoint units are restocked up to restockTo units. Stores without a
+-- row use the application's defaults.
+CREATE TABLE ReorderPolicy (
+                        	storeID integer NOT NULL,
+                            reorderPoint integer NOT NULL,
+                            restockTo integer NOT NULL,
+                        	PRIMARY KEY(storeID),
+                        	FOREIGN KEY(storeID) REFERENCES Store(storeID) ON DELETE CASCADE,
+                            CHECK (restockTo >= reorderPoint)
+);
+
+-- the last audit row each application's spool file has in ProductUpdates
+CREATE TABLE AuditSpool (
+                        	spoolID char(36) NOT NULL,
+                            flushedThrough bigint NOT NULL,
+                        	PRIMARY KEY(spoolID)
+);
+
+-- Product with the stock of sharded products summed
+CREATE VIEW ProductStock AS
+SELECT P.storeID, P.productName,
+       P.numberOfUnits + COALESCE((SELECT SUM(S.numberOfUnits) FROM ProductStockShards S
+                                   WHERE S.storeID = P.storeID AND S.productName = P.productName), 0)::integer AS numberOfUnits,
+       P.pricePerUnit
+FROM Product P;
+
 CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
 
 RETURNS decimal AS $dist$
@@ -0,0 +1,17 @@
+-- The reads the index pack is built for, as the application sends them.
+-- Run by index_bench.sh before and after create_indexes.sql.
+
+\echo '--- viewRecentOrders'
+EXPLAIN (ANALYZE, BUFFERS) SELECT S.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime FROM Store S, Orders O WHERE 2 = O.customerID AND O.storeID = S.storeID ORDER BY O.orderTime desc LIMIT 5;
+
+\echo '--- viewStoreOrders, first page'
+EXPLAIN (ANALYZE, BUFFERS) SELECT * FROM Orders WHERE storeID = 1 ORDER BY orderTime DESC, orderNumber DESC LIMIT 50;
+
+\echo '--- viewRecentUpdates'
+EXPLAIN (ANALYZE, BUFFERS) SELECT * FROM ProductUpdates WHERE storeID = 1 ORDER BY updateNumber DESC LIMIT 5;
+
+\echo '--- viewSupplyRequests'
+EXPLAIN (ANALYZE, BUFFERS) SELECT * FROM ProductSupplyRequests WHERE storeID = 1 ORDER BY requestNumber DESC LIMIT 5;
+
+\echo '--- LogIn'
+EXPLAIN (ANALYZE, BUFFERS) SELECT userID, type, latitude, longitude FROM USERS WHERE name = 'Amy' AND password = 'xyz';
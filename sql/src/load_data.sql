@@ -1,14 +1,15 @@
 
-COPY Users
+-- the sequences continue after the loaded rows, however many the files hold
+COPY Users (userID, name, password, latitude, longitude, type)
 FROM 'users.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE users_userID_seq RESTART 101;
+SELECT setval(pg_get_serial_sequence('users', 'userid'), (SELECT MAX(userID) FROM Users));
 
 COPY Store
 FROM 'stores.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Product
+COPY Product (storeID, productName, numberOfUnits, pricePerUnit)
 FROM 'products.csv'
 WITH DELIMITER ',' CSV HEADER;
 
@@ -19,14 +20,17 @@ WITH DELIMITER ',' CSV HEADER;
 COPY Orders
 FROM 'orders.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
+SELECT setval(pg_get_serial_sequence('orders', 'ordernumber'), (SELECT MAX(orderNumber) FROM Orders));
 
 COPY ProductSupplyRequests
 FROM 'productSupplyRequests.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE productsupplyrequests_requestNumber_seq RESTART 11;
+SELECT setval(pg_get_serial_sequence('productsupplyrequests', 'requestnumber'), (SELECT MAX(requestNumber) FROM ProductSupplyRequests));
 
 COPY ProductUpdates
 FROM 'productUpdates.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE productupdates_updateNumber_seq RESTART 51;
\ No newline at end of file
+SELECT setval(pg_get_serial_sequence('productupdates', 'updatenumber'), (SELECT MAX(updateNumber) FROM ProductUpdates));
+
+-- index-only scans need the visibility map that VACUUM builds
+VACUUM ANALYZE;
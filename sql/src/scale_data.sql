@@ -0,0 +1,22 @@
+-- Grows the loaded data by the psql variable scale for index benchmarks:
+-- psql -v scale=2000 ... < scale_data.sql
+-- Orders, product updates and supply requests are copied scale times into
+-- earlier days, and scale * 100 extra users are added.
+
+INSERT INTO Users (name, password, latitude, longitude, type)
+SELECT 'user' || g, 'pw' || (g % 1000), random() * 100, random() * 100, 'customer'
+FROM generate_series(1, :scale * 100) g;
+
+INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)
+SELECT O.customerID, O.storeID, O.productName, O.unitsOrdered, O.orderTime - g * INTERVAL '1 day'
+FROM Orders O, generate_series(1, :scale) g;
+
+INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn)
+SELECT U.managerID, U.storeID, U.productName, U.updatedOn - g * INTERVAL '1 day'
+FROM ProductUpdates U, generate_series(1, :scale) g;
+
+INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested)
+SELECT R.managerID, R.warehouseID, R.storeID, R.productName, R.unitsRequested
+FROM ProductSupplyRequests R, generate_series(1, :scale) g;
+
+VACUUM ANALYZE;
@@ -1,11 +1,160 @@
 CREATE OR REPLACE LANGUAGE plpgsql;
 
+-- takes units off a product's stock, from its shards first and then from
+-- Product; the product and its shards are locked in key order before the
+-- stock is summed. Unless forced it takes nothing when the stock is short;
+-- forced, the stock in Product may go negative.
+CREATE OR REPLACE FUNCTION take_stock(store integer, product char(30), units integer, force boolean)
+RETURNS boolean AS
+$BODY$
+DECLARE
+    remaining integer := units;
+    s record;
+BEGIN
+    -- NO KEY UPDATE leaves the key share locks of other orders' foreign keys alone
+    PERFORM 1 FROM Product WHERE storeID = store AND productName = product FOR NO KEY UPDATE;
+    IF NOT FOUND THEN
+        RETURN FALSE;
+    END IF;
+    -- place_order takes units off a shard without locking Product, so the shards are locked before they are summed
+    PERFORM 1 FROM ProductStockShards WHERE storeID = store AND productName = product ORDER BY shard FOR NO KEY UPDATE;
+    IF NOT force AND (SELECT numberOfUnits FROM ProductStock WHERE storeID = store AND productName = product) < units THEN
+        RETURN FALSE;
+    END IF;
+
+    FOR s IN SELECT shard, numberOfUnits FROM ProductStockShards
+             WHERE storeID = store AND productName = product AND numberOfUnits > 0
+             ORDER BY shard FOR NO KEY UPDATE LOOP
+        EXIT WHEN remaining = 0;
+        UPDATE ProductStockShards SET numberOfUnits = numberOfUnits - LEAST(remaining, s.numberOfUnits)
+        WHERE storeID = store AND productName = product AND shard = s.shard;
+        remaining := remaining - LEAST(remaining, s.numberOfUnits);
+    END LOOP;
+    IF remaining > 0 THEN
+        UPDATE Product SET numberOfUnits = numberOfUnits - remaining
+        WHERE storeID = store AND productName = product AND (force OR numberOfUnits >= remaining);
+        IF NOT FOUND THEN
+            RAISE EXCEPTION 'Product % of store % cannot cover % more units', trim(product), store, remaining;
+        END IF;
+    END IF;
+    RETURN TRUE;
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- places one order if the store has the stock. A sharded product's units
+-- come from a random shard that no other order holds, and the order is
+-- counted on that shard; when none has enough the
+-- units are gathered by take_stock. retail.order_taken tells the Orders
+-- triggers what was already done for the inserted row.
+CREATE OR REPLACE FUNCTION place_order(customer integer, store integer, product char(30), units integer)
+RETURNS SETOF Orders AS
+$BODY$
+DECLARE
+    shards integer;
+    picked integer;
+    taken text := 'stock';
+    o Orders%ROWTYPE;
+BEGIN
+    SELECT COUNT(*) INTO shards FROM ProductStockShards WHERE storeID = store AND productName = product;
+    IF shards > 0 THEN
+        SELECT shard INTO picked FROM ProductStockShards
+        WHERE storeID = store AND productName = product AND numberOfUnits >= units
+        ORDER BY random()
+        LIMIT 1 FOR NO KEY UPDATE SKIP LOCKED;
+    END IF;
+    IF picked IS NOT NULL THEN
+        UPDATE ProductStockShards
+        SET numberOfUnits = numberOfUnits - units, numOrders = numOrders + 1, unitsOrdered = unitsOrdered + units
+        WHERE storeID = store AND productName = product AND shard = picked;
+        taken := 'counted';
+    ELSIF NOT take_stock(store, product, units, false) THEN
+        RETURN;
+    END IF;
+
+    PERFORM set_config('retail.order_taken', taken, true);
+    INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)
+    VALUES (customer, store, product, units, DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp))
+    RETURNING * INTO o;
+    PERFORM set_config('retail.order_taken', '', true);
+    RETURN NEXT o;
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- places every line of a cart as an order, or none of them when a product
+-- is missing or short of stock. The products and then their shards are
+-- locked in key order and checked together, and the orders are inserted by
+-- one statement whose trigger takes the stock off set-wise, all in the
+-- caller's transaction. A line of no or negative units is an error.
+CREATE OR REPLACE FUNCTION place_cart(customer integer, stores integer[], products char(30)[], units integer[])
+RETURNS SETOF Orders AS
+$BODY$
+DECLARE
+    o Orders%ROWTYPE;
+BEGIN
+    IF EXISTS (SELECT 1 FROM unnest(units) u WHERE u IS NULL OR u <= 0) THEN
+        RAISE EXCEPTION 'Number of units must be positive!';
+    END IF;
+
+    PERFORM 1 FROM Product P
+    WHERE (P.storeID, P.productName) IN (SELECT * FROM unnest(stores, products))
+    ORDER BY P.storeID, P.productName
+    FOR NO KEY UPDATE;
+    -- single orders take units off a shard without locking Product
+    PERFORM 1 FROM ProductStockShards S
+    WHERE (S.storeID, S.productName) IN (SELECT * FROM unnest(stores, products))
+    ORDER BY S.storeID, S.productName, S.shard
+    FOR NO KEY UPDATE;
+
+    IF EXISTS (SELECT 1
+               FROM (SELECT L.storeID, L.productName, SUM(L.units) AS units
+                     FROM unnest(stores, products, units) AS L(storeID, productName, units)
+                     GROUP BY L.storeID, L.productName) L
+               LEFT JOIN ProductStock S ON S.storeID = L.storeID AND S.productName = L.productName
+               WHERE S.numberOfUnits IS NULL OR S.numberOfUnits < L.units) THEN
+        RETURN;
+    END IF;
+
+    FOR o IN INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)
+             SELECT customer, L.storeID, L.productName, L.units, DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp)
+             FROM unnest(stores, products, units) WITH ORDINALITY AS L(storeID, productName, units, line)
+             ORDER BY L.line
+             RETURNING * LOOP
+        RETURN NEXT o;
+    END LOOP;
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- takes the units of every order in the statement off the stock, one UPDATE
+-- per statement however many orders it inserted
 CREATE OR REPLACE FUNCTION update_prod_order()
 RETURNS "trigger" AS
 $BODY$
 BEGIN
-    UPDATE Product SET numberOfUnits = numberOfUnits - NEW.unitsOrdered WHERE storeID = NEW.storeID AND productName = NEW.productName;
-    RETURN new;
+    -- place_order took the stock already
+    IF COALESCE(current_setting('retail.order_taken', true), '') <> '' THEN
+        RETURN NULL;
+    END IF;
+
+    -- locks the products in key order so concurrent batches cannot deadlock
+    PERFORM 1 FROM Product P
+    WHERE (P.storeID, P.productName) IN (SELECT storeID, productName FROM new_orders)
+    ORDER BY P.storeID, P.productName
+    FOR NO KEY UPDATE;
+
+    UPDATE Product P SET numberOfUnits = P.numberOfUnits - N.units
+    FROM (SELECT storeID, productName, SUM(unitsOrdered) AS units FROM new_orders GROUP BY storeID, productName) N
+    WHERE P.storeID = N.storeID AND P.productName = N.productName
+    AND NOT EXISTS (SELECT 1 FROM ProductStockShards S WHERE S.storeID = P.storeID AND S.productName = P.productName);
+
+    -- sharded products are taken from their shards
+    PERFORM take_stock(N.storeID, N.productName, N.units::integer, true)
+    FROM (SELECT storeID, productName, SUM(unitsOrdered) AS units FROM new_orders
+          WHERE (storeID, productName) IN (SELECT storeID, productName FROM ProductStockShards)
+          GROUP BY storeID, productName ORDER BY storeID, productName) N;
+    RETURN NULL;
 END
 $BODY$
 LANGUAGE plpgsql VOLATILE;
@@ -14,5 +163,270 @@ DROP TRIGGER IF EXISTS update_order_trigger ON Orders;
 CREATE TRIGGER update_order_trigger
 AFTER INSERT
 ON Orders
-FOR EACH ROW
-EXECUTE PROCEDURE update_prod_order();
\ No newline at end of file
+REFERENCING NEW TABLE AS new_orders
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_prod_order();
+
+CREATE OR REPLACE FUNCTION update_order_counts()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    -- place_order counted the order on a stock shard
+    IF COALESCE(current_setting('retail.order_taken', true), '') <> 'counted' THEN
+        INSERT INTO StoreProductOrders (storeID, productName, numOrders, unitsOrdered)
+        SELECT storeID, productName, COUNT(*), SUM(unitsOrdered) FROM new_orders
+        GROUP BY storeID, productName ORDER BY storeID, productName
+        ON CONFLICT (storeID, productName) DO UPDATE
+        SET numOrders = StoreProductOrders.numOrders + EXCLUDED.numOrders, unitsOrdered = StoreProductOrders.unitsOrdered + EXCLUDED.unitsOrdered;
+    END IF;
+
+    INSERT INTO StoreCustomerOrders (storeID, customerID, numOrders, unitsOrdered)
+    SELECT storeID, customerID, COUNT(*), SUM(unitsOrdered) FROM new_orders
+    GROUP BY storeID, customerID ORDER BY storeID, customerID
+    ON CONFLICT (storeID, customerID) DO UPDATE
+    SET numOrders = StoreCustomerOrders.numOrders + EXCLUDED.numOrders, unitsOrdered = StoreCustomerOrders.unitsOrdered + EXCLUDED.unitsOrdered;
+    RETURN NULL;
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS update_order_counts_trigger ON Orders;
+CREATE TRIGGER update_order_counts_trigger
+AFTER INSERT
+ON Orders
+REFERENCING NEW TABLE AS new_orders
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_order_counts();
+
+-- rebuilds the order counts from Orders; orders placed meanwhile wait for it
+CREATE OR REPLACE FUNCTION backfill_order_counts()
+RETURNS bigint AS
+$BODY$
+BEGIN
+    LOCK TABLE Orders IN SHARE MODE;
+    DELETE FROM StoreProductOrders;
+    DELETE FROM StoreCustomerOrders;
+    UPDATE ProductStockShards SET numOrders = 0, unitsOrdered = 0 WHERE numOrders <> 0;
+
+    INSERT INTO StoreProductOrders (storeID, productName, numOrders, unitsOrdered)
+    SELECT storeID, productName, COUNT(*), SUM(unitsOrdered) FROM Orders GROUP BY storeID, productName;
+
+    INSERT INTO StoreCustomerOrders (storeID, customerID, numOrders, unitsOrdered)
+    SELECT storeID, customerID, COUNT(*), SUM(unitsOrdered) FROM Orders GROUP BY storeID, customerID;
+    RETURN (SELECT COUNT(*) FROM Orders);
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- evens out the stock of a sharded product over its shards, leaving
+-- Product.numberOfUnits at 0 unless the stock is negative, and moves the
+-- order counts of the shards to StoreProductOrders
+CREATE OR REPLACE FUNCTION rebalance_product_stock(store integer, product char(30))
+RETURNS integer AS
+$BODY$
+DECLARE
+    shards integer;
+    total integer;
+    orders bigint;
+    units bigint;
+BEGIN
+    PERFORM 1 FROM Product WHERE storeID = store AND productName = product FOR NO KEY UPDATE;
+    PERFORM 1 FROM ProductStockShards WHERE storeID = store AND productName = product ORDER BY shard FOR NO KEY UPDATE;
+    SELECT COUNT(*), SUM(numberOfUnits), SUM(numOrders), SUM(unitsOrdered) INTO shards, total, orders, units
+    FROM ProductStockShards WHERE storeID = store AND productName = product;
+    IF shards = 0 THEN
+        RETURN 0;
+    END IF;
+
+    IF orders > 0 THEN
+        INSERT INTO StoreProductOrders (storeID, productName, numOrders, unitsOrdered)
+        VALUES (store, product, orders, units)
+        ON CONFLICT (storeID, productName) DO UPDATE
+        SET numOrders = StoreProductOrders.numOrders + EXCLUDED.numOrders, unitsOrdered = StoreProductOrders.unitsOrdered + EXCLUDED.unitsOrdered;
+    END IF;
+
+    total := total + (SELECT numberOfUnits FROM Product WHERE storeID = store AND productName = product);
+    UPDATE Product SET numberOfUnits = LEAST(total, 0) WHERE storeID = store AND productName = product;
+    -- the first total % shards shards get one unit more
+    UPDATE ProductStockShards
+    SET numberOfUnits = GREATEST(total, 0) / shards + CASE WHEN shard < GREATEST(total, 0) % shards THEN 1 ELSE 0 END,
+        numOrders = 0, unitsOrdered = 0
+    WHERE storeID = store AND productName = product;
+    RETURN shards;
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- splits the stock of a product over a number of shards; 1 or less folds
+-- it back into Product
+CREATE OR REPLACE FUNCTION shard_product_stock(store integer, product char(30), shards integer)
+RETURNS integer AS
+$BODY$
+BEGIN
+    PERFORM rebalance_product_stock(store, product);
+    UPDATE Product P SET numberOfUnits = P.numberOfUnits + COALESCE((SELECT SUM(S.numberOfUnits) FROM ProductStockShards S
+                                                                     WHERE S.storeID = store AND S.productName = product), 0)
+    WHERE P.storeID = store AND P.productName = product;
+    DELETE FROM ProductStockShards WHERE storeID = store AND productName = product;
+    IF shards > 1 THEN
+        INSERT INTO ProductStockShards (storeID, productName, shard, numberOfUnits)
+        SELECT store, product, g, 0 FROM generate_series(0, shards - 1) g;
+        PERFORM rebalance_product_stock(store, product);
+        RETURN shards;
+    END IF;
+    RETURN 0;
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- changes a product unless a manager changed it since it was read at
+-- expected_version. A relative change adds units to the stock and merges
+-- with the orders and restocks made in the meantime; when it keeps the
+-- current price it merges with other edits too, so it is not checked
+-- against the version. An absolute one sets the stock to units, emptying
+-- the shards, only while the stock is still expected_units. Returns the
+-- product as it now is and the outcome: 'updated', 'conflict' when it was
+-- changed since it was read, or 'stock' when a relative change would take
+-- the stock below zero. Returns nothing when the product does not exist.
+DROP FUNCTION IF EXISTS update_product(integer, char(30), integer, boolean, integer, integer, float);
+CREATE OR REPLACE FUNCTION update_product(store integer, product char(30), expected_version integer,
+                                          absolute boolean, expected_units integer, units integer, price float)
+RETURNS TABLE (storeID integer, productName char(30), numberOfUnits integer, pricePerUnit float, version integer, outcome text) AS
+$BODY$
+#variable_conflict use_column
+DECLARE
+    current record;
+    stock integer;
+BEGIN
+    SELECT P.version, P.pricePerUnit INTO current FROM Product P
+    WHERE P.storeID = store AND P.productName = product FOR NO KEY UPDATE;
+    IF NOT FOUND THEN
+        RETURN;
+    END IF;
+    IF absolute THEN
+        -- no order takes from the shards between the check and emptying them
+        PERFORM 1 FROM ProductStockShards S WHERE S.storeID = store AND S.productName = product ORDER BY S.shard FOR NO KEY UPDATE;
+    END IF;
+    stock := (SELECT S.numberOfUnits FROM ProductStock S WHERE S.storeID = store AND S.productName = product);
+
+    IF (current.version <> expected_version AND (absolute OR price <> current.pricePerUnit))
+       OR (absolute AND stock <> expected_units) THEN
+        RETURN QUERY SELECT store, product, stock, current.pricePerUnit, current.version, 'conflict'::text;
+        RETURN;
+    END IF;
+    IF NOT absolute AND stock + units < 0 THEN
+        RETURN QUERY SELECT store, product, stock, current.pricePerUnit, current.version, 'stock'::text;
+        RETURN;
+    END IF;
+    IF absolute THEN
+        UPDATE ProductStockShards S SET numberOfUnits = 0 WHERE S.storeID = store AND S.productName = product;
+        UPDATE Product P SET numberOfUnits = units, pricePerUnit = price, version = P.version + 1
+        WHERE P.storeID = store AND P.productName = product;
+    ELSE
+        UPDATE Product P SET numberOfUnits = P.numberOfUnits + units, pricePerUnit = price, version = P.version + 1
+        WHERE P.storeID = store AND P.productName = product;
+    END IF;
+    RETURN QUERY SELECT store, product, (SELECT S.numberOfUnits FROM ProductStock S WHERE S.storeID = store AND S.productName = product),
+                        price, current.version + 1, 'updated'::text;
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- counts the orders loaded by load_data.sql, which runs before the triggers exist
+SELECT backfill_order_counts();
+
+-- tells the running applications to reload their Store and Warehouse snapshot
+CREATE OR REPLACE FUNCTION notify_reference_change()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    PERFORM pg_notify('retail_reference', TG_TABLE_NAME);
+    RETURN NULL;
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS store_reference_trigger ON Store;
+CREATE TRIGGER store_reference_trigger
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE
+ON Store
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_reference_change();
+
+DROP TRIGGER IF EXISTS warehouse_reference_trigger ON Warehouse;
+CREATE TRIGGER warehouse_reference_trigger
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE
+ON Warehouse
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_reference_change();
+
+-- tells the running applications which stores' cached products changed,
+-- one notification per store however many rows the statement changed
+CREATE OR REPLACE FUNCTION notify_inventory_change()
+RETURNS "trigger" AS
+$BODY$
+DECLARE
+    store integer;
+BEGIN
+    IF TG_OP = 'UPDATE' THEN
+        FOR store IN SELECT storeID FROM changed_products UNION SELECT storeID FROM old_products LOOP
+            PERFORM pg_notify('retail_inventory_' || store, '');
+        END LOOP;
+    ELSE
+        FOR store IN SELECT DISTINCT storeID FROM changed_products LOOP
+            PERFORM pg_notify('retail_inventory_' || store, '');
+        END LOOP;
+    END IF;
+    RETURN NULL;
+END
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS product_insert_inventory_trigger ON Product;
+CREATE TRIGGER product_insert_inventory_trigger
+AFTER INSERT
+ON Product
+REFERENCING NEW TABLE AS changed_products
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_inventory_change();
+
+DROP TRIGGER IF EXISTS product_update_inventory_trigger ON Product;
+CREATE TRIGGER product_update_inventory_trigger
+AFTER UPDATE
+ON Product
+REFERENCING NEW TABLE AS changed_products OLD TABLE AS old_products
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_inventory_change();
+
+DROP TRIGGER IF EXISTS product_delete_inventory_trigger ON Product;
+CREATE TRIGGER product_delete_inventory_trigger
+AFTER DELETE
+ON Product
+REFERENCING OLD TABLE AS changed_products
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_inventory_change();
+
+-- orders of sharded products change only their shards
+DROP TRIGGER IF EXISTS shard_insert_inventory_trigger ON ProductStockShards;
+CREATE TRIGGER shard_insert_inventory_trigger
+AFTER INSERT
+ON ProductStockShards
+REFERENCING NEW TABLE AS changed_products
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_inventory_change();
+
+DROP TRIGGER IF EXISTS shard_update_inventory_trigger ON ProductStockShards;
+CREATE TRIGGER shard_update_inventory_trigger
+AFTER UPDATE
+ON ProductStockShards
+REFERENCING NEW TABLE AS changed_products OLD TABLE AS old_products
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_inventory_change();
+
+DROP TRIGGER IF EXISTS shard_delete_inventory_trigger ON ProductStockShards;
+CREATE TRIGGER shard_delete_inventory_trigger
+AFTER DELETE
+ON ProductStockShards
+REFERENCING OLD TABLE AS changed_products
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_inventory_change();